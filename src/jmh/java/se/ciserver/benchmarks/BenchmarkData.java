@@ -0,0 +1,120 @@
+package se.ciserver.benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import se.ciserver.buildlist.Build;
+
+/**
+ * Generates the inputs shared by the benchmarks: build histories of a
+ * given size and push payloads with many commits.
+ */
+final class BenchmarkData
+{
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /**
+     * Constructor to prevent instantiation.
+     */
+    private BenchmarkData() {}
+
+    /**
+     * Writes a build history journal with the given number of builds,
+     * spread over ten branches, without going through the BuildStore.
+     *
+     * @param file  The journal to write
+     * @param count The number of builds
+     *
+     * @return The ids of the written builds, oldest first
+     *
+     * @throws IOException If the journal can not be written
+     */
+    static String[] writeHistory(Path file, int count) throws IOException
+    {
+        String[] ids   = new String[count];
+        Instant  start = Instant.parse("2026-01-01T00:00:00Z");
+
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8))
+        {
+            for (int i = 0; i < count; i++)
+            {
+                Build build = new Build(String.format("build-%08d", i),
+                                        String.format("%040x", i * 2654435761L),
+                                        "branch-" + (i % 10),
+                                        start.plusSeconds(60L * i).toString(),
+                                        i % 7 != 0, null);
+                build.testStatus = build.status;
+                build.treeId     = String.format("%040x", i * 40503L);
+                ids[i] = build.id;
+
+                out.write(MAPPER.writeValueAsString(build));
+                out.write('\n');
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Builds a push payload with many commits, each listing changed files,
+     * from the single commit of a small payload.
+     *
+     * @param smallPayload A push payload with at least one commit
+     * @param commits      The number of commits of the large payload
+     *
+     * @return The large payload
+     *
+     * @throws IOException If the small payload is not valid JSON
+     */
+    static String largePayload(String smallPayload, int commits) throws IOException
+    {
+        ObjectNode root     = (ObjectNode) MAPPER.readTree(smallPayload);
+        ObjectNode template = (ObjectNode) root.get("commits").get(0);
+        ArrayNode  list     = MAPPER.createArrayNode();
+
+        for (int i = 0; i < commits; i++)
+        {
+            ObjectNode commit = template.deepCopy();
+            commit.put("id", String.format("%040x", i * 2654435761L));
+            commit.put("message", "Change " + i + "\n\n" + "Longer description of the change. ".repeat(10));
+
+            ArrayNode added    = commit.putArray("added");
+            ArrayNode modified = commit.putArray("modified");
+            commit.putArray("removed");
+            for (int f = 0; f < 20; f++)
+            {
+                added.add("src/main/java/se/ciserver/module" + f + "/Added" + i + ".java");
+                modified.add("src/main/java/se/ciserver/module" + f + "/Modified" + f + ".java");
+            }
+            list.add(commit);
+        }
+
+        root.set("commits", list);
+        return MAPPER.writeValueAsString(root);
+    }
+
+    /**
+     * Deletes a directory created for a benchmark and everything in it.
+     *
+     * @param directory The directory to delete
+     *
+     * @throws IOException If the directory can not be listed
+     */
+    static void delete(Path directory) throws IOException
+    {
+        try (Stream<Path> paths = Files.walk(directory))
+        {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
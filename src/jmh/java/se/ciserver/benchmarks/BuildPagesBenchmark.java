@@ -0,0 +1,111 @@
+package se.ciserver.benchmarks;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.server.LocalConnector;
+import org.eclipse.jetty.server.Server;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import se.ciserver.ContinuousIntegrationServer;
+import se.ciserver.ServerConfig;
+import se.ciserver.build.Compiler;
+
+/**
+ * Measures the HTML rendering of {@code handle()}: the build history
+ * list and a single build page. Requests go through Jetty's in-memory
+ * {@link LocalConnector}, so HTTP parsing is included but no sockets.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(3)
+public class BuildPagesBenchmark
+{
+    /** The request headers, closing the connection so that finished requests do not pile up as idle endpoints. */
+    private static final String HEADERS = " HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n";
+
+    /** The number of stored builds. */
+    @Param({ "1000", "10000" })
+    public int builds;
+
+    private Path           directory;
+    private String[]       ids;
+    private Server         server;
+    private LocalConnector connector;
+
+    /**
+     * Writes a history and starts a server on it.
+     *
+     * @throws Exception If the history can not be written or the server fails to start
+     */
+    @Setup
+    public void setUp() throws Exception
+    {
+        directory = Files.createTempDirectory("ci-bench-");
+        ids       = BenchmarkData.writeHistory(directory.resolve("history.json"), builds);
+
+        ServerConfig config = new ServerConfig();
+        config.historyFile = directory.resolve("history.json").toString();
+
+        server    = new Server();
+        connector = new LocalConnector(server);
+        server.addConnector(connector);
+        server.setHandler(new ContinuousIntegrationServer("", config, new Compiler()));
+        server.start();
+    }
+
+    /**
+     * Stops the server and deletes the history.
+     *
+     * @throws Exception If the server fails to stop
+     */
+    @TearDown
+    public void tearDown() throws Exception
+    {
+        server.stop();
+        BenchmarkData.delete(directory);
+    }
+
+    /**
+     * Renders the list of all builds.
+     *
+     * @return The raw HTTP response
+     *
+     * @throws Exception If the request fails
+     */
+    @Benchmark
+    public String buildList() throws Exception
+    {
+        return connector.getResponse("GET /builds" + HEADERS);
+    }
+
+    /**
+     * Renders the page of a random build.
+     *
+     * @return The raw HTTP response
+     *
+     * @throws Exception If the request fails
+     */
+    @Benchmark
+    public String buildPage() throws Exception
+    {
+        String id = ids[ThreadLocalRandom.current().nextInt(ids.length)];
+        return connector.getResponse("GET /builds/" + id + HEADERS);
+    }
+}
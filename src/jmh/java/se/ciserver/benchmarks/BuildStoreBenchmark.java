@@ -0,0 +1,132 @@
+package se.ciserver.benchmarks;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import se.ciserver.buildlist.Build;
+import se.ciserver.buildlist.BuildStore;
+
+/**
+ * Measures the BuildStore at 1k, 10k and 100k stored builds: adding a
+ * build (journal append, log compression and search indexing), looking
+ * a build up by id and loading the whole history at startup.
+ *
+ * Every benchmark runs in its own fork on a freshly written history.
+ * The builds added by {@link #add(History)} stay in the store, which
+ * does not matter as adding does not depend on the history size.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(3)
+public class BuildStoreBenchmark
+{
+    /** A typical short build log, as stored by every add. */
+    private static final String LOG =
+        "[INFO] Scanning for projects...\n"
+      + "[INFO] Building ci-server 1.0-SNAPSHOT\n".repeat(20)
+      + "[INFO] Tests run: 45, Failures: 0, Errors: 0, Skipped: 0\n"
+      + "[INFO] BUILD SUCCESS\n";
+
+    /**
+     * A history file of a given size and a store loaded from it.
+     */
+    @State(Scope.Benchmark)
+    public static class History
+    {
+        /** The number of stored builds. */
+        @Param({ "1000", "10000", "100000" })
+        public int builds;
+
+        Path       directory;
+        String     file;
+        String[]   ids;
+        BuildStore store;
+
+        /**
+         * Writes the history and loads it once, which also builds its
+         * search index.
+         *
+         * @throws Exception If the history can not be written
+         */
+        @Setup(Level.Trial)
+        public void setUp() throws Exception
+        {
+            directory = Files.createTempDirectory("ci-bench-");
+            file      = directory.resolve("history.json").toString();
+            ids       = BenchmarkData.writeHistory(directory.resolve("history.json"), builds);
+            store     = new BuildStore(file);
+        }
+
+        /**
+         * Deletes the history.
+         *
+         * @throws Exception If the directory can not be listed
+         */
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception
+        {
+            BenchmarkData.delete(directory);
+        }
+    }
+
+    /**
+     * Adds a build with a short log to the store.
+     *
+     * @param history The store
+     *
+     * @return The added build
+     */
+    @Benchmark
+    public Build add(History history)
+    {
+        Build build = Build.newBuild("0123456789abcdef", "main", true, LOG);
+        history.store.add(build);
+        return build;
+    }
+
+    /**
+     * Looks up a random stored build by id.
+     *
+     * @param history The store
+     *
+     * @return The build
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public Build getById(History history)
+    {
+        return history.store.getById(history.ids[ThreadLocalRandom.current().nextInt(history.ids.length)]);
+    }
+
+    /**
+     * Loads the history file into a new store, as on server startup.
+     *
+     * @param history The history file
+     *
+     * @return The loaded store
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public BuildStore load(History history)
+    {
+        return new BuildStore(history.file);
+    }
+}
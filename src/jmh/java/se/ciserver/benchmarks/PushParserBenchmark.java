@@ -0,0 +1,67 @@
+package se.ciserver.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import se.ciserver.TestUtils;
+import se.ciserver.github.Push;
+import se.ciserver.github.PushParser;
+
+/**
+ * Measures parsing a webhook payload as it is read from the request, for
+ * the small test payload and for a payload of 2000 commits (about 5 MB).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(3)
+public class PushParserBenchmark
+{
+    /** Which payload is parsed. */
+    @Param({ "small", "large" })
+    public String payload;
+
+    private final PushParser parser = new PushParser();
+    private byte[]           bytes;
+
+    /**
+     * Loads or generates the payload.
+     *
+     * @throws Exception If the test payload can not be read
+     */
+    @Setup
+    public void setUp() throws Exception
+    {
+        String small = TestUtils.readFile("githubPush.json");
+        String json  = "small".equals(payload) ? small : BenchmarkData.largePayload(small, 2000);
+        bytes = json.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Parses the payload from a stream, as the webhook handler does.
+     *
+     * @return The parsed push
+     *
+     * @throws Exception If the payload is invalid
+     */
+    @Benchmark
+    public Push parse() throws Exception
+    {
+        return parser.parse(new ByteArrayInputStream(bytes), bytes.length);
+    }
+}
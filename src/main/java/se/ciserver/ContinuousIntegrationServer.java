@@ -1,29 +1,71 @@
 package se.ciserver;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
-import java.util.stream.Collectors;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
 import org.eclipse.jetty.client.HttpClient;
 import org.eclipse.jetty.client.api.ContentResponse;
 import org.eclipse.jetty.client.util.StringContentProvider;
+import org.eclipse.jetty.server.Handler;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.server.handler.gzip.GzipHandler;
 import org.eclipse.jetty.util.ssl.SslContextFactory;
 
+import se.ciserver.build.BuildJob;
+import se.ciserver.build.BuildQueue;
+import se.ciserver.build.BuildResources;
 import se.ciserver.build.CompilationResult;
 import se.ciserver.build.Compiler;
+import se.ciserver.build.LogBuffer;
+import se.ciserver.build.MirrorCache;
+import se.ciserver.build.PhaseTimings;
+import se.ciserver.build.PriorityRules;
+import se.ciserver.build.RepositoryQuotas;
+import se.ciserver.build.WarmRunnerPool;
+import se.ciserver.build.WorkspacePool;
 import se.ciserver.buildlist.Build;
+import se.ciserver.buildlist.BuildQuery;
 import se.ciserver.buildlist.BuildStore;
+import se.ciserver.buildlist.LogIndex;
+import se.ciserver.buildlist.LogSearchIndex;
 import se.ciserver.github.InvalidPayloadException;
+import se.ciserver.github.PayloadTooLargeException;
 import se.ciserver.github.Push;
 import se.ciserver.github.PushParser;
+import se.ciserver.github.StatusReporter;
+import se.ciserver.metrics.Metrics;
 
 /**
  * A Jetty-based CI-server that can start locally and receive HTTP-requests.
@@ -31,28 +73,106 @@ import se.ciserver.github.PushParser;
 public class ContinuousIntegrationServer extends AbstractHandler
 {
 
-    private final PushParser parser   = new PushParser();
-    private final Compiler   compiler = new Compiler();
-    private final BuildStore store = new BuildStore("build-history.json");
+    /** Number of builds per page of the build history API, unless a limit is given. */
+    private static final int DEFAULT_PAGE_SIZE = 50;
+    /** Largest page of the build history API. */
+    private static final int MAX_PAGE_SIZE     = 500;
+    /** Number of log lines shown on a build page, unless a number is given. */
+    private static final int LOG_PAGE_LINES     = 200;
+    /** Largest number of log lines shown on one build page. */
+    private static final int MAX_LOG_PAGE_LINES = 5000;
+    /** Number of builds listed by a log search, unless a limit is given. */
+    private static final int SEARCH_RESULTS     = 50;
+    /** Number of matching lines linked per build in the search results. */
+    private static final int SEARCH_LINE_LINKS  = 10;
+    /** Interval of the keep-alive comments sent on an idle build output stream. */
+    private static final long SSE_KEEPALIVE_MILLIS = 15_000;
+    /** Number of stored log lines read at a time when a finished build is replayed. */
+    private static final int STREAM_PAGE_LINES = 1000;
+
+    private final PushParser  parser      = new PushParser();
+    private final JsonFactory jsonFactory = new JsonFactory();
+    private final Compiler   compiler;
+    private final BuildStore store;
+    private final BuildQueue buildQueue;
+    private final Metrics    metrics;
+    private final Map<String, BuildJob> activeBuilds = new ConcurrentHashMap<>();
+    private final boolean    resultCache;
+    private final long       maxPayloadBytes;
+    private final String     githubApiUrl;
+    private final Semaphore  streamSlots;
+    private final ExecutorService streamExecutor = Executors.newCachedThreadPool(runnable ->
+    {
+        Thread thread = new Thread(runnable, "ci-log-stream");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ExecutorService reuseExecutor = Executors.newSingleThreadExecutor(runnable ->
+    {
+        Thread thread = new Thread(runnable, "ci-result-reuse");
+        thread.setDaemon(true);
+        return thread;
+    });
 
-    private HttpClient httpClient;
+    private HttpClient     httpClient;
+    private StatusReporter statusReporter;
     private String accessToken;
-    private String latestTestOutput = "No tests run yet.";
+    private volatile String latestTestOutput = "No tests run yet.";
 
     /**
-     * Constructs the ContinuousIntegrationServer and starts a HttpClient
+     * Constructs the ContinuousIntegrationServer with the default
+     * configuration and starts a HttpClient
      * @param accessToken A githubs access token with commit status permission for the repository
      * 
      * @throws Exception if httpClient fails to start
      */
     public ContinuousIntegrationServer(String accessToken)
         throws Exception
+    {
+        this(accessToken, new ServerConfig(), new Compiler());
+    }
+
+    /**
+     * Constructs the ContinuousIntegrationServer, starts a HttpClient
+     * and the build workers
+     * @param accessToken A githubs access token with commit status permission for the repository
+     * @param config      The server configuration
+     * @param compiler    The compiler used by the build workers
+     * 
+     * @throws Exception if httpClient fails to start
+     */
+    public ContinuousIntegrationServer(String accessToken, ServerConfig config, Compiler compiler)
+        throws Exception
     {
         this.accessToken = accessToken;
-        
+        this.compiler    = compiler;
+        this.store       = new BuildStore(config.historyFile);
+        this.resultCache = config.resultCache;
+        this.maxPayloadBytes = config.maxPayloadBytes;
+        this.githubApiUrl    = config.githubApiUrl.replaceAll("/+$", "");
+        this.streamSlots     = new Semaphore(config.maxLogStreams);
+        this.buildQueue  = new BuildQueue(config.buildWorkers, config.queueCapacity,
+                                          config.coalesceBranches,
+                                          this::runBuild, this::recordSuperseded,
+                                          createResources(config));
+        this.metrics     = new Metrics(buildQueue::size, buildQueue::activeCount);
+        buildQueue.setPriorityRules(PriorityRules.parse(config.priorityRules),
+                                    config.priorityAgingSeconds * 1000L);
+        buildQueue.setPositionListener(this::reportPosition);
+        if (!config.repositoryQuotas.isBlank())
+        {
+            buildQueue.setQuotas(RepositoryQuotas.load(Paths.get(config.repositoryQuotas)));
+        }
+        metrics.setRepositoryGauges(buildQueue::queuedByRepository, buildQueue::activeByRepository);
+        store.setSaveListener(metrics::recordStoreSave);
+
         SslContextFactory.Client sslContextFactory = new SslContextFactory.Client();
         httpClient = new HttpClient(sslContextFactory);
         httpClient.start();
+
+        statusReporter = new StatusReporter(httpClient, accessToken,
+                                            config.statusRetries, config.statusBackoffMillis);
+        statusReporter.setPostListener(metrics::recordStatusPost);
     }
 
     /**
@@ -74,77 +194,109 @@ public class ContinuousIntegrationServer extends AbstractHandler
     {
         if ("/webhook".equals(target) && "POST".equalsIgnoreCase(request.getMethod()))
         {
-            // Read the full JSON payload from the request body
-            String json = request.getReader().lines().collect(Collectors.joining(System.lineSeparator()));
-
             try
             {
-                // Parse the GitHub push event payload into a Push object
-                Push push = parser.parse(json);
+                // Reject payloads announced as too large before reading them
+                if (request.getContentLengthLong() > maxPayloadBytes)
+                {
+                    throw new PayloadTooLargeException(maxPayloadBytes);
+                }
+
+                // Parse the GitHub push event payload into a Push object while it is read
+                Push push = parser.parse(request.getInputStream(), maxPayloadBytes);
 
                 // Log the push event details to the server console
                 System.out.println("\nReceived push on branch : " + push.ref +
                                    "\nAfter SHA               : " + push.after +
                                    "\nRepository URL          : " + push.repository.clone_url +
                                    "\nPusher name             : " + push.pusher.name +
-                                   "\n\nHead commit message     : " + push.head_commit.message);
-
-                // Set commit status to pending
-                String githubCommitUrl = "https://api.github.com/repos/"+push.repository.owner.name+"/"+push.repository.name+"/statuses/"+push.after;
-                setCommitStatus(githubCommitUrl, "pending", "Testing in progress...", "ci_server");
-                
-                // P1: Clone the pushed branch and run mvn clean compile
-                System.out.println("\nStarting compilation...");
-                CompilationResult result = compiler.compile(
-                    push.repository.clone_url,
-                    push.ref,
-                    push.after);
-
-
-                // Log the compilation outcome to the server console
-                if (result.success)
+                                   "\n\nHead commit message     : " +
+                                   (push.head_commit == null ? "-" : push.head_commit.message));
+
+                // Reuse the result of an earlier build of the same tree
+                Build cached = resultCache ? store.getByTreeId(treeId(push)) : null;
+
+                // Hand the build to the queue and acknowledge the webhook right away
+                BuildJob job = new BuildJob(UUID.randomUUID().toString(), push);
+
+                if (cached != null)
                 {
-                    System.out.println("\nCompilation SUCCEEDED");
-                    if (result.testSuccess) {
-                        System.out.println("Tests SUCCEEDED");
-                        setCommitStatus(githubCommitUrl, "success", "All tests succeeded", "ci_server");
-                    }
-                    else {
-                        System.out.println("Tests FAILED");
-                        setCommitStatus(githubCommitUrl, "failure", "Test failures", "ci_server");
-                    }   
+                    // Recording writes the history and the log, so it is kept off the request thread
+                    reuseExecutor.execute(() -> reuseResult(job, cached));
+                    metrics.countWebhook("reused");
+                    response.setStatus(HttpServletResponse.SC_OK);
+                    response.setHeader("Location", "/builds/" + job.id);
+                    response.getWriter().println("Build result reused: " + job.id + " (from build " + cached.id + ")");
+                }
+                else if (submit(job))
+                {
+                    metrics.countWebhook("queued");
+                    response.setStatus(HttpServletResponse.SC_ACCEPTED);
+                    response.setHeader("Location", "/builds/" + job.id);
+                    response.getWriter().println("Build queued: " + job.id);
                 }
                 else
                 {
-                    System.out.println("\nCompilation FAILED");
-                    setCommitStatus(githubCommitUrl, "failure", "Compilation failed", "ci_server");
+                    metrics.countWebhook("rejected");
+                    response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                    response.getWriter().println("Build queue is full, try again later");
                 }
-                
-                // Construct the current build into the history list
-                Build build = Build.newBuild(push.after, push.ref, result.success, result.output);
-                store.add(build);
-                
-                response.getWriter().println(result.output + "\n\n" + result.testOutput);
-                latestTestOutput = "<pre>" + result.output + "\n\n" + result.testOutput + "</pre>";
-
-                response.setStatus(HttpServletResponse.SC_OK);
-                
+            }
+            catch (PayloadTooLargeException e)
+            {
+                metrics.countWebhook("too_large");
+                response.setStatus(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+                response.getWriter().println("Invalid payload: " + e.getMessage());
             }
             catch (InvalidPayloadException e)
             {
                 // Malformed or missing JSON fields
+                metrics.countWebhook("invalid");
                 response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
                 response.getWriter().println("Invalid payload: " + e.getMessage());
             }
 
             baseRequest.setHandled(true);
         }
+        else if ("/metrics".equals(target) && "GET".equalsIgnoreCase(request.getMethod()))
+        {
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.setContentType(Metrics.CONTENT_TYPE);
+            response.getWriter().print(metrics.scrape());
+            baseRequest.setHandled(true);
+        }
+        else if ("/api/builds".equals(target) && "GET".equalsIgnoreCase(request.getMethod()))
+        {
+            writeBuildsJson(request, response);
+            baseRequest.setHandled(true);
+        }
+        else if (target.startsWith("/builds/") && target.endsWith("/stream")
+                 && "GET".equalsIgnoreCase(request.getMethod()))
+        {
+            String id = target.substring("/builds/".length(), target.length() - "/stream".length());
+            streamBuildLog(id, request, response);
+            baseRequest.setHandled(true);
+        }
+        else if (target.startsWith("/builds/") && target.endsWith("/log")
+                 && "GET".equalsIgnoreCase(request.getMethod()))
+        {
+            String id = target.substring("/builds/".length(), target.length() - "/log".length());
+            writeRawLog(id, request, response);
+            baseRequest.setHandled(true);
+        }
+        else if ("/builds/search".equals(target) && "GET".equalsIgnoreCase(request.getMethod()))
+        {
+            writeSearchResults(request, response);
+            baseRequest.setHandled(true);
+        }
         else if ("/builds".equals(target) && "GET".equalsIgnoreCase(request.getMethod())) {
             response.setContentType("text/html;charset=utf-8");
             response.setStatus(HttpServletResponse.SC_OK);
 
             StringBuilder html = new StringBuilder();
-            html.append("<html><body><h1>Build history</h1><ul>");
+            html.append("<html><body><h1>Build history</h1>")
+                .append("<form action=\"/builds/search\"><input name=\"q\"> <button>Search logs</button></form>")
+                .append("<ul>");
 
             for (Build b : store.getAll()) {
                 html.append("<li>")
@@ -168,6 +320,8 @@ public class ContinuousIntegrationServer extends AbstractHandler
             if (b == null) {
                 response.setStatus(HttpServletResponse.SC_NOT_FOUND);
                 response.getWriter().println("Build not found");
+            } else if (notModified(b, request, response)) {
+                response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
             } else {
                 response.setContentType("text/html;charset=utf-8");
                 response.setStatus(HttpServletResponse.SC_OK);
@@ -178,167 +332,1183 @@ public class ContinuousIntegrationServer extends AbstractHandler
                     .append("<p>Commit: ").append(b.commitId).append("</p>")
                     .append("<p>Branch: ").append(b.branch).append("</p>")
                     .append("<p>Date: ").append(b.timestamp).append("</p>")
-                    .append("<p>Status: ").append(b.status).append("</p>")
-                    .append("<h2>Log</h2>")
-                    .append("<pre>").append(b.log).append("</pre>")
-                    .append("</body></html>");
+                    .append("<p>Status: ").append(b.status).append("</p>");
+                appendTimings(html, b);
+                html.append("<h2>Log</h2>");
+                appendLogPage(html, b, request);
+                html.append("</body></html>");
 
                 response.getWriter().println(html.toString());
             }
             baseRequest.setHandled(true);
         }
-        else if (target.startsWith("/builds") && "GET".equalsIgnoreCase(request.getMethod())) {
-            // Build history endpoints
+        else // Placeholder for other endpoints
+        {
             response.setContentType("text/html;charset=utf-8");
             response.setStatus(HttpServletResponse.SC_OK);
+            baseRequest.setHandled(true);
 
-            // Check if this is /builds or /builds/<id>
-            if ("/builds".equals(target) || "/builds/".equals(target)) {
-                // List view
-                StringBuilder html = new StringBuilder();
-                html.append("<!DOCTYPE html>")
-                    .append("<html><head><meta charset=\"utf-8\">")
-                    .append("<title>Build history</title>")
-                    .append("</head><body>")
-                    .append("<h1>Build history</h1>");
-
-                java.util.List<Build> builds = store.getAll();
-                if (builds.isEmpty()) {
-                    html.append("<p>No builds recorded yet.</p>");
-                } else {
-                    html.append("<table border=\"1\" cellspacing=\"0\" cellpadding=\"4\">")
-                        .append("<tr>")
-                        .append("<th>Build ID</th>")
-                        .append("<th>Commit</th>")
-                        .append("<th>Branch</th>")
-                        .append("<th>Timestamp</th>")
-                        .append("<th>Status</th>")
-                        .append("</tr>");
-
-                    for (Build b : builds) {
-                        html.append("<tr>")
-                            .append("<td><a href=\"/builds/").append(b.id).append("\">")
-                            .append(b.id)
-                            .append("</a></td>")
-                            .append("<td>").append(b.commitId).append("</td>")
-                            .append("<td>").append(b.branch).append("</td>")
-                            .append("<td>").append(b.timestamp).append("</td>")
-                            .append("<td>").append(Boolean.TRUE.equals(b.status) ? "SUCCESS" : "FAILURE").append("</td>")
-                            .append("</tr>");
-                    }
-                    html.append("</table>");
-                }
-
-                html.append("</body></html>");
-                response.getWriter().println(html.toString());
-                baseRequest.setHandled(true);
+            if (latestTestOutput != null) {
+                response.getWriter().println(latestTestOutput);
             } else {
-                // Detail view: /builds/<id>
-                String[] parts = target.split("/");
-                String id = parts.length >= 3 ? parts[2] : null;
-
-                if (id == null || id.isEmpty()) {
-                    response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-                    response.getWriter().println("Missing build id");
-                    baseRequest.setHandled(true);
-                    return;
-                }
+                response.getWriter().println("CI job done (placeholder)");
+            }
+        }
+    }
 
-                Build b = store.getById(id);
-                if (b == null) {
-                    response.setStatus(HttpServletResponse.SC_NOT_FOUND);
-                    response.getWriter().println("Build not found: " + id);
-                    baseRequest.setHandled(true);
-                    return;
-                }
+    /**
+     * Sets the caching headers of a build page and checks whether the
+     * client already holds the current version. The page is identified
+     * by a strong ETag holding the build id and a SHA-256 digest of the
+     * stored record. Only the page of a finished build that was not
+     * superseded is cached for good; others are revalidated on every use.
+     *
+     * @param build    The build shown on the page
+     * @param request  The request, possibly carrying {@code If-None-Match}
+     * @param response The response receiving the caching headers
+     *
+     * @return True if the client's copy is current and 304 can be sent
+     */
+    private static boolean notModified(Build build, HttpServletRequest request, HttpServletResponse response)
+    {
+        String etag = "\"" + build.id + "-" + digest(
+            build.commitId, build.branch, build.timestamp, build.status, build.testStatus,
+            build.logFile, build.treeId, build.supersededBy, build.cachedFrom, build.timings) + "\"";
 
-                StringBuilder html = new StringBuilder();
-                html.append("<!DOCTYPE html>")
-                    .append("<html><head><meta charset=\"utf-8\">")
-                    .append("<title>Build ").append(b.id).append("</title>")
-                    .append("</head><body>")
-                    .append("<h1>Build ").append(b.id).append("</h1>")
-                    .append("<p><strong>Commit:</strong> ").append(b.commitId).append("</p>")
-                    .append("<p><strong>Branch:</strong> ").append(b.branch).append("</p>")
-                    .append("<p><strong>Timestamp:</strong> ").append(b.timestamp).append("</p>")
-                    .append("<p><strong>Status:</strong> ")
-                    .append(Boolean.TRUE.equals(b.status) ? "SUCCESS" : "FAILURE")
-                    .append("</p>")
-                    .append("<h2>Build log</h2>")
-                    .append("<pre>")
-                    .append(b.log == null ? "" : b.log)
-                    .append("</pre>")
-                    .append("<p><a href=\"/builds\">Back to build history</a></p>")
-                    .append("</body></html>");
+        boolean immutable = build.status != null && build.supersededBy == null;
+        response.setHeader("ETag", etag);
+        response.setHeader("Cache-Control", immutable
+            ? "public, max-age=31536000, immutable"
+            : "public, no-cache");
 
-                response.getWriter().println(html.toString());
-                baseRequest.setHandled(true);
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch == null)
+        {
+            return false;
+        }
+
+        for (String candidate : ifNoneMatch.split(","))
+        {
+            String tag = candidate.trim();
+            if (tag.equals("*") || tag.equals(etag))
+            {
+                return true;
             }
         }
-        else // Placeholder for other endpoints
+        return false;
+    }
+
+    /**
+     * Computes the SHA-256 digest of a list of values. Each value is
+     * prefixed so that null, an empty string and the text "null" differ.
+     *
+     * @param values The values, each may be null
+     *
+     * @return The digest as lower case hex
+     */
+    private static String digest(Object... values)
+    {
+        try
         {
-            response.setContentType("text/html;charset=utf-8");
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            for (Object value : values)
+            {
+                String text = value == null ? "-" : "+" + value;
+                sha.update(text.getBytes(StandardCharsets.UTF_8));
+                sha.update((byte) 0);
+            }
+
+            StringBuilder hex = new StringBuilder();
+            for (byte b : sha.digest())
+            {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Appends a table of the time spent in each phase of a build to a
+     * build page. Builds recorded before timings were kept have none.
+     *
+     * @param html  The page being built
+     * @param build The build
+     */
+    private static void appendTimings(StringBuilder html, Build build)
+    {
+        if (build.timings == null || build.timings.isEmpty())
+        {
+            return;
+        }
+
+        long total = 0;
+        html.append("<h2>Timings</h2><table>");
+        for (Map.Entry<String, Long> phase : build.timings.entrySet())
+        {
+            html.append("<tr><td>").append(escapeHtml(phase.getKey())).append("</td><td>")
+                .append(formatMillis(phase.getValue())).append("</td></tr>");
+            total += phase.getValue();
+        }
+        html.append("<tr><th>total</th><th>").append(formatMillis(total)).append("</th></tr></table>");
+    }
+
+    /**
+     * Formats a duration for display, e.g. {@code 850 ms} or {@code 12.3 s}.
+     *
+     * @param millis The duration in milliseconds
+     *
+     * @return The formatted duration
+     */
+    private static String formatMillis(long millis)
+    {
+        return millis < 1000 ? millis + " ms" : String.format("%.1f s", millis / 1000.0);
+    }
+
+    /**
+     * Appends one page of a build log to a build page. Without paging
+     * parameters the page shows the end of the log, where failures are
+     * reported; {@code from} and {@code lines} select other lines. Only
+     * the part of the log file holding the page is decompressed.
+     *
+     * @param html    The page being built
+     * @param build   The build
+     * @param request The request, possibly carrying {@code from} and {@code lines}
+     *
+     * @throws IOException If the log can not be read
+     */
+    private void appendLogPage(StringBuilder html, Build build, HttpServletRequest request) throws IOException
+    {
+        LogIndex index = store.logIndex(build);
+        if (index == null)
+        {
+            // A log that could not be stored separately is held by the build itself
+            String log = store.readLog(build);
+            html.append("<pre>").append(log == null ? "" : escapeHtml(log)).append("</pre>");
+            return;
+        }
+
+        int  count = (int) Math.max(1, Math.min(MAX_LOG_PAGE_LINES, longParameter(request, "lines", LOG_PAGE_LINES)));
+        long from  = Math.max(0, Math.min(index.lines - 1,
+                                          longParameter(request, "from", index.lines - count)));
+
+        List<String> lines = store.readLogLines(build, from, count);
+        long to = from + lines.size();
+        String base = "/builds/" + build.id;
+
+        html.append("<p>Lines ").append(lines.isEmpty() ? 0 : from + 1).append("-").append(to)
+            .append(" of ").append(index.lines).append(" | ");
+        if (from > 0)
+        {
+            html.append("<a href=\"").append(base).append("?from=").append(Math.max(0, from - count))
+                .append("&amp;lines=").append(count).append("\">Earlier lines</a> | ");
+        }
+        if (to < index.lines)
+        {
+            html.append("<a href=\"").append(base).append("?from=").append(to)
+                .append("&amp;lines=").append(count).append("\">Later lines</a> | ");
+        }
+        html.append("<a href=\"").append(base).append("/log\">Full log</a> (")
+            .append(index.length / 1024).append(" KB)</p>")
+            .append("<pre>");
+        for (String line : lines)
+        {
+            html.append(escapeHtml(line)).append('\n');
+        }
+        html.append("</pre>");
+    }
+
+    /**
+     * Writes the plain text log of a build. A single byte range given in
+     * a {@code Range} header is answered with {@code 206 Partial Content}
+     * and only that range is read; other requests get the whole log.
+     *
+     * @param id       The build id
+     * @param request  The request, possibly carrying a {@code Range} header
+     * @param response The response to write the log to
+     *
+     * @throws IOException If the log can not be read or written
+     */
+    private void writeRawLog(String id, HttpServletRequest request, HttpServletResponse response) throws IOException
+    {
+        Build b = store.getById(id);
+        if (b == null)
+        {
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            response.getWriter().println("Build not found: " + id);
+            return;
+        }
+        if (notModified(b, request, response))
+        {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        response.setContentType("text/plain;charset=utf-8");
+        LogIndex index = store.logIndex(b);
+        if (index == null)
+        {
+            String log = store.readLog(b);
             response.setStatus(HttpServletResponse.SC_OK);
-            baseRequest.setHandled(true);
+            response.getWriter().print(log == null ? "" : log);
+            return;
+        }
 
-            if (latestTestOutput != null) {
-                response.getWriter().println(latestTestOutput);
-            } else {
-                response.getWriter().println("CI job done (placeholder)");
+        response.setHeader("Accept-Ranges", "bytes");
+        long[] range = parseRange(request.getHeader("Range"), index.length);
+
+        // A range of a different version of the log is useless to the client
+        String ifRange = request.getHeader("If-Range");
+        if (ifRange != null && !ifRange.trim().equals(response.getHeader("ETag")))
+        {
+            range = null;
+        }
+
+        if (range != null && range.length == 0)
+        {
+            response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            response.setHeader("Content-Range", "bytes */" + index.length);
+            return;
+        }
+
+        long start = range == null ? 0 : range[0];
+        long end   = range == null ? index.length : range[1] + 1;
+
+        if (range == null)
+        {
+            response.setStatus(HttpServletResponse.SC_OK);
+        }
+        else
+        {
+            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            response.setHeader("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + index.length);
+        }
+        response.setContentLengthLong(end - start);
+
+        try (InputStream in = store.openLog(b, start))
+        {
+            OutputStream out = response.getOutputStream();
+            byte[] buffer = new byte[8192];
+            long remaining = end - start;
+            int n;
+            while (remaining > 0 && (n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) > 0)
+            {
+                out.write(buffer, 0, n);
+                remaining -= n;
             }
         }
     }
 
     /**
-     * Send a POST request setting the status of a github commit
-     * @param url           - The url of the commit
-     * @param status        - The status to set for the commit, "success", "failure" or "pending"
-     * @param description   - Description of the status
-     * @param context       - The system setting the status
+     * Parses a {@code Range} header holding a single byte range, e.g.
+     * {@code bytes=0-499}, {@code bytes=500-} or {@code bytes=-500}.
+     *
+     * @param header The header value, or null
+     * @param length The length of the log
+     *
+     * @return The first and last byte of the range, an empty array if
+     *         the range is not satisfiable, or null if the header is
+     *         absent or not a single byte range and is ignored
      */
-    public void setCommitStatus(String url,
-                                String status,
-                                String description,
-                                String context)
+    static long[] parseRange(String header, long length)
     {
-        // only runs if an accessToken was provided
-        if (accessToken.equals("")) return;
-        
-        try {
-            org.eclipse.jetty.client.api.Request request = httpClient.POST(url)
-                .header("Accept", "application/vnd.github+json")
-                .header("Authorization", "Bearer "+accessToken)
-                .header("X-GitHub-Api-Version", "2022-11-28")
-                .content(new StringContentProvider("{\"state\":\""+status+"\",\"description\":\""+description+"\",\"context\":\""+context+"\"}"), "application/json");
-            
-            ContentResponse response = request.send();
+        if (header == null || !header.startsWith("bytes=") || header.contains(","))
+        {
+            return null;
+        }
 
-            if (response.getContentAsString().equals("{\"message\":\"Not Found\",\"documentation_url\":\"https://docs.github.com/rest/commits/statuses#create-a-commit-status\",\"status\":\"404\"}")) {
-                System.out.println("Set Commit Status failed, possibly wrong repository url");
+        String spec = header.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0)
+        {
+            return null;
+        }
+
+        try
+        {
+            String first = spec.substring(0, dash).trim();
+            String last  = spec.substring(dash + 1).trim();
+
+            if (first.isEmpty())
+            {
+                // Suffix range: the last n bytes
+                long suffix = Long.parseLong(last);
+                return suffix <= 0 || length == 0
+                    ? new long[0]
+                    : new long[] { Math.max(0, length - suffix), length - 1 };
             }
-        } catch (InterruptedException | ExecutionException | TimeoutException exception) {
-            // Post request failed
-            System.out.println("Set Commit Status failed, post request exception");
+
+            long start = Long.parseLong(first);
+            long end   = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+            if (end < start)
+            {
+                return null;
+            }
+            if (start >= length)
+            {
+                return new long[0];
+            }
+            return new long[] { start, Math.min(end, length - 1) };
+        }
+        catch (NumberFormatException e)
+        {
+            return null;
         }
-        
     }
 
     /**
-     * Starts the CI-server in command line
+     * Writes the builds whose logs hold every word of the {@code q}
+     * parameter, with links to the matching lines. Builds are listed
+     * newest first, or oldest first with {@code order=oldest} to find
+     * the build where an error first appeared.
      *
-     * @param args - Command-line arguments, 1: a github access token to the repository
+     * @param request  The request carrying {@code q}, {@code order} and {@code limit}
+     * @param response The response to write the results to
      *
-     * @throws Exception If the server fails to start or join the thread.
+     * @throws IOException If the response can not be written
      */
-    public static void main(String[] args) throws Exception
+    private void writeSearchResults(HttpServletRequest request, HttpServletResponse response) throws IOException
     {
-        String accessToken = "";
-        if (args.length>0) {
-            accessToken = args[0];
+        String  query       = request.getParameter("q");
+        boolean oldestFirst = "oldest".equals(request.getParameter("order"));
+        int     limit       = (int) Math.max(1, Math.min(MAX_PAGE_SIZE, longParameter(request, "limit", SEARCH_RESULTS)));
+
+        List<LogSearchIndex.Hit> hits;
+        try
+        {
+            if (query == null || query.isBlank())
+            {
+                throw new IllegalArgumentException("Missing query parameter q");
+            }
+            hits = store.search(query, oldestFirst, limit);
+        }
+        catch (IllegalArgumentException e)
+        {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            response.setContentType("text/plain;charset=utf-8");
+            response.getWriter().println(e.getMessage());
+            return;
         }
 
-        Server server = new Server(8080);
-        server.setHandler(new ContinuousIntegrationServer(accessToken));
+        response.setContentType("text/html;charset=utf-8");
+        response.setStatus(HttpServletResponse.SC_OK);
+
+        StringBuilder html = new StringBuilder();
+        html.append("<html><body><h1>Builds matching ").append(escapeHtml(query)).append("</h1>")
+            .append("<p>").append(hits.size()).append(hits.size() == limit ? "+" : "")
+            .append(" builds, ").append(oldestFirst ? "oldest" : "newest").append(" first</p><ul>");
+
+        for (LogSearchIndex.Hit hit : hits)
+        {
+            Build b = store.getById(hit.buildId);
+            if (b == null)
+            {
+                continue;
+            }
+            html.append("<li><a href=\"/builds/").append(b.id).append("\">").append(b.id).append("</a>")
+                .append(" — commit ").append(b.commitId)
+                .append(" (").append(b.branch).append(") ")
+                .append(b.timestamp)
+                .append(" [").append(b.status).append("] lines");
+            for (int i = 0; i < Math.min(SEARCH_LINE_LINKS, hit.lines.length); i++)
+            {
+                html.append(" <a href=\"/builds/").append(b.id).append("?from=").append(hit.lines[i])
+                    .append("\">").append(hit.lines[i] + 1).append("</a>");
+            }
+            if (hit.lines.length > SEARCH_LINE_LINKS)
+            {
+                html.append(" and ").append(hit.lines.length - SEARCH_LINE_LINKS).append(" more");
+            }
+            html.append("</li>");
+        }
+
+        html.append("</ul></body></html>");
+        response.getWriter().println(html.toString());
+    }
+
+    /**
+     * Reads an optional numeric query parameter.
+     *
+     * @param request      The request
+     * @param name         The parameter name
+     * @param defaultValue The value used when the parameter is missing or invalid
+     *
+     * @return The parameter value
+     */
+    private static long longParameter(HttpServletRequest request, String name, long defaultValue)
+    {
+        try
+        {
+            String value = request.getParameter(name);
+            return value == null ? defaultValue : Long.parseLong(value.trim());
+        }
+        catch (NumberFormatException e)
+        {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Escapes text for inclusion in an HTML page, e.g. the {@code <tags>}
+     * in Maven output.
+     *
+     * @param text The text
+     *
+     * @return The escaped text
+     */
+    private static String escapeHtml(String text)
+    {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    /**
+     * Wraps a handler so that responses are gzip compressed for clients
+     * that accept it. Build logs compress roughly tenfold.
+     *
+     * @param handler The handler producing the responses
+     *
+     * @return The compressing handler
+     */
+    public static Handler withCompression(Handler handler)
+    {
+        GzipHandler gzip = new GzipHandler();
+        gzip.setMinGzipSize(1024);
+        gzip.setIncludedMethods("GET");
+        // Live build output must reach the client line by line
+        gzip.addExcludedMimeTypes("text/event-stream");
+        gzip.setHandler(handler);
+        return gzip;
+    }
+
+    /**
+     * Writes one page of the build history as JSON, newest build first.
+     * The page is selected with the query parameters {@code branch},
+     * {@code status} ("success" or "failure"), {@code since} and
+     * {@code until} (ISO 8601 instants), {@code cursor} and {@code limit}.
+     * The response is generated straight into the output stream, and
+     * holds a {@code nextCursor} when older builds remain.
+     *
+     * @param request  The request carrying the query parameters
+     * @param response The response to write
+     *
+     * @throws IOException If the response can not be written
+     */
+    private void writeBuildsJson(HttpServletRequest request, HttpServletResponse response) throws IOException
+    {
+        BuildQuery query = new BuildQuery();
+        List<Build> page;
+        int limit;
+
+        try
+        {
+            query.branch = request.getParameter("branch");
+            query.status = parseStatus(request.getParameter("status"));
+            query.since  = parseInstant(request.getParameter("since"));
+            query.until  = parseInstant(request.getParameter("until"));
+
+            String limitParam = request.getParameter("limit");
+            limit = limitParam == null ? DEFAULT_PAGE_SIZE : Integer.parseInt(limitParam);
+            if (limit < 1 || limit > MAX_PAGE_SIZE)
+            {
+                throw new IllegalArgumentException("limit must be between 1 and " + MAX_PAGE_SIZE);
+            }
+
+            // One extra build tells whether there is a next page
+            page = store.page(query, request.getParameter("cursor"), limit + 1);
+        }
+        catch (IllegalArgumentException | DateTimeParseException e)
+        {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            response.setContentType("application/json;charset=utf-8");
+            try (JsonGenerator json = jsonFactory.createGenerator(response.getOutputStream()))
+            {
+                json.writeStartObject();
+                json.writeStringField("error", e.getMessage());
+                json.writeEndObject();
+            }
+            return;
+        }
+
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType("application/json;charset=utf-8");
+
+        try (JsonGenerator json = jsonFactory.createGenerator(response.getOutputStream()))
+        {
+            json.writeStartObject();
+            json.writeArrayFieldStart("builds");
+
+            for (Build b : page.subList(0, Math.min(limit, page.size())))
+            {
+                json.writeStartObject();
+                json.writeStringField("id", b.id);
+                json.writeStringField("url", "/builds/" + b.id);
+                json.writeStringField("commitId", b.commitId);
+                json.writeStringField("branch", b.branch);
+                json.writeStringField("timestamp", b.timestamp);
+                writeBooleanField(json, "status", b.status);
+                writeBooleanField(json, "testStatus", b.testStatus);
+                if (b.treeId != null)       json.writeStringField("treeId", b.treeId);
+                if (b.supersededBy != null) json.writeStringField("supersededBy", b.supersededBy);
+                if (b.cachedFrom != null)   json.writeStringField("cachedFrom", b.cachedFrom);
+                if (b.timings != null)
+                {
+                    json.writeObjectFieldStart("timings");
+                    for (Map.Entry<String, Long> phase : b.timings.entrySet())
+                    {
+                        json.writeNumberField(phase.getKey(), phase.getValue());
+                    }
+                    json.writeEndObject();
+                }
+                json.writeEndObject();
+            }
+
+            json.writeEndArray();
+            if (page.size() > limit)
+            {
+                json.writeStringField("nextCursor", page.get(limit - 1).id);
+            }
+            else
+            {
+                json.writeNullField("nextCursor");
+            }
+            json.writeEndObject();
+        }
+    }
+
+    /**
+     * Writes a nullable boolean field.
+     *
+     * @param json  The generator
+     * @param name  The field name
+     * @param value The value, written as null if unset
+     *
+     * @throws IOException If the field can not be written
+     */
+    private static void writeBooleanField(JsonGenerator json, String name, Boolean value) throws IOException
+    {
+        if (value == null)
+        {
+            json.writeNullField(name);
+        }
+        else
+        {
+            json.writeBooleanField(name, value);
+        }
+    }
+
+    /**
+     * Parses the status filter of the build history API.
+     *
+     * @param status "success", "failure" or null
+     *
+     * @return The build status to match, or null for any
+     *
+     * @throws IllegalArgumentException If the status is not recognized
+     */
+    private static Boolean parseStatus(String status)
+    {
+        if (status == null)
+        {
+            return null;
+        }
+        switch (status)
+        {
+            case "success": return true;
+            case "failure": return false;
+            default: throw new IllegalArgumentException("status must be success or failure");
+        }
+    }
+
+    /**
+     * Parses an optional ISO 8601 instant query parameter.
+     *
+     * @param value The parameter value, or null
+     *
+     * @return The instant, or null if the parameter is unset
+     *
+     * @throws DateTimeParseException If the value is not an instant
+     */
+    private static Instant parseInstant(String value)
+    {
+        return value == null ? null : Instant.parse(value);
+    }
+
+    /**
+     * Queues a build and makes its output available for live streaming.
+     *
+     * @param job The build to queue
+     *
+     * @return False if the queue is full and the build was rejected
+     */
+    private boolean submit(BuildJob job)
+    {
+        activeBuilds.put(job.id, job);
+        if (buildQueue.submit(job))
+        {
+            return true;
+        }
+        activeBuilds.remove(job.id);
+        return false;
+    }
+
+    /**
+     * Marks the output of a build as complete once the build is stored,
+     * ending the live streams following it.
+     *
+     * @param job The finished build
+     */
+    private void finishOutput(BuildJob job)
+    {
+        job.output.close();
+        activeBuilds.remove(job.id);
+    }
+
+    /**
+     * Streams the output of a build as Server-Sent Events. The output of
+     * a running build is followed live from its in-memory buffer until
+     * the build finishes; a finished build is replayed page by page from
+     * the stored log. Each line is sent as one event whose id is the line
+     * number, so a reconnecting client resumes after its
+     * {@code Last-Event-ID}. The stream ends with an {@code end} event
+     * carrying the build status.
+     *
+     * <p>The request is made asynchronous and the stream is written by a
+     * dedicated stream thread, so followers of a long build never hold
+     * the request threads of the server. At most {@code ci.maxLogStreams}
+     * streams are served at a time; further requests are answered with
+     * 503.
+     *
+     * @param id       The build id
+     * @param request  The request, possibly carrying {@code Last-Event-ID}
+     * @param response The response to stream the events to
+     *
+     * @throws IOException If the response can not be written
+     */
+    private void streamBuildLog(String id, HttpServletRequest request, HttpServletResponse response)
+        throws IOException
+    {
+        BuildJob job   = activeBuilds.get(id);
+        Build    build = job == null ? store.getById(id) : null;
+
+        if (job == null && build == null)
+        {
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            response.getWriter().println("Build not found: " + id);
+            return;
+        }
+
+        if (!streamSlots.tryAcquire())
+        {
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            response.setHeader("Retry-After", "5");
+            response.getWriter().println("Too many build output streams, retry later");
+            return;
+        }
+
+        long next = 0;
+        try
+        {
+            String lastEventId = request.getHeader("Last-Event-ID");
+            next = lastEventId == null ? 0 : Long.parseLong(lastEventId.trim()) + 1;
+        }
+        catch (NumberFormatException e)
+        {
+            /* start from the beginning */
+        }
+
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType("text/event-stream;charset=utf-8");
+        response.setHeader("Cache-Control", "no-cache");
+
+        AsyncContext async = request.startAsync();
+        async.setTimeout(0);
+
+        long first = next;
+        try
+        {
+            streamExecutor.execute(() ->
+            {
+                try
+                {
+                    writeBuildLogEvents(id, job, build, first, response.getWriter());
+                }
+                catch (IOException e)
+                {
+                    /* the client is gone */
+                }
+                finally
+                {
+                    streamSlots.release();
+                    async.complete();
+                }
+            });
+        }
+        catch (RejectedExecutionException e)
+        {
+            // The server is stopping
+            streamSlots.release();
+            async.complete();
+        }
+    }
+
+    /**
+     * Writes the output events of a build on a stream thread.
+     *
+     * @param id    The build id
+     * @param job   The running build, or null if the build is finished
+     * @param build The finished build, or null if the build is running
+     * @param next  The number of the first line sent
+     * @param out   The event stream
+     *
+     * @throws IOException If the stored log can not be read
+     */
+    private void writeBuildLogEvents(String id, BuildJob job, Build build, long next, PrintWriter out)
+        throws IOException
+    {
+        if (job != null)
+        {
+            try
+            {
+                while (true)
+                {
+                    LogBuffer.Chunk chunk = job.output.await(next, 500, SSE_KEEPALIVE_MILLIS);
+
+                    if (chunk.first > next)
+                    {
+                        out.print(": " + (chunk.first - next) + " lines dropped\n\n");
+                    }
+                    for (int i = 0; i < chunk.lines.size(); i++)
+                    {
+                        writeEvent(out, chunk.first + i, chunk.lines.get(i));
+                    }
+                    if (chunk.lines.isEmpty() && !chunk.complete)
+                    {
+                        // Keeps proxies from closing an idle stream, and detects gone clients
+                        out.print(": keepalive\n\n");
+                    }
+                    out.flush();
+
+                    if (out.checkError())
+                    {
+                        return;
+                    }
+                    next = chunk.next();
+                    if (chunk.complete)
+                    {
+                        break;
+                    }
+                }
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            build = store.getById(id);
+        }
+        else
+        {
+            // Replay the stored log a page at a time instead of loading it whole
+            while (true)
+            {
+                List<String> lines = store.readLogLines(build, next, STREAM_PAGE_LINES);
+                if (lines == null || lines.isEmpty())
+                {
+                    break;
+                }
+                for (String line : lines)
+                {
+                    writeEvent(out, next++, line);
+                }
+                out.flush();
+
+                if (out.checkError())
+                {
+                    return;
+                }
+            }
+        }
+
+        out.print("event: end\ndata: "
+                  + (build == null ? "UNKNOWN" : Boolean.TRUE.equals(build.status) ? "SUCCESS" : "FAILURE")
+                  + "\n\n");
+        out.flush();
+    }
+
+    /**
+     * Writes one output line as a Server-Sent Event.
+     *
+     * @param out  The event stream
+     * @param seq  The line number, used as event id
+     * @param line The output line
+     */
+    private static void writeEvent(PrintWriter out, long seq, String line)
+    {
+        out.print("id: " + seq + "\ndata: " + line + "\n\n");
+    }
+
+    /**
+     * Runs a queued build on a build worker thread: clones and compiles
+     * the pushed commit, reports the commit status and stores the build.
+     * A build that fails unexpectedly is reported with the {@code error}
+     * status and stored as failed with the exception, rather than left
+     * pending.
+     *
+     * @param job The build taken from the queue
+     */
+    private void runBuild(BuildJob job)
+    {
+        boolean stored = false;
+        try
+        {
+            Push push = job.push;
+            job.timings.record(PhaseTimings.QUEUE, job.enqueuedNanos);
+            long waited = System.nanoTime() - job.enqueuedNanos;
+            metrics.recordQueueWait(job.priority(), waited);
+            metrics.recordRepositoryWait(job.repository(), waited);
+
+            // Set commit status to pending
+            String githubCommitUrl = commitStatusUrl(push);
+            statusReporter.report(githubCommitUrl, "pending", "Testing in progress...", "ci_server");
+
+            // P1: Clone the pushed branch and run mvn clean compile
+            System.out.println("\nStarting compilation of build " + job.id + "...");
+            CompilationResult result = compiler.compile(job);
+            result.timings.forEach(metrics::recordPhase);
+
+            if (job.isCancelled())
+            {
+                System.out.println("\nBuild " + job.id + " CANCELLED, superseded by " + job.supersededBy().commitSha);
+                recordSuperseded(job);
+                return;
+            }
+
+            reportResult(githubCommitUrl, result.success, result.testSuccess);
+
+            // Construct the current build into the history list
+            String log = result.output + "\n\n" + result.testOutput;
+            Build build = new Build(job.id, job.commitSha, job.branch,
+                                    Instant.now().toString(), result.success, log);
+            build.testStatus  = result.testSuccess;
+            build.treeId      = treeId(push);
+            build.completed   = result.completed ? Boolean.TRUE : null;
+            build.partial     = result.partial ? Boolean.TRUE : null;
+            build.incremental = result.incremental ? Boolean.TRUE : null;
+            build.timings     = result.timings;
+            store.add(build);
+            stored = true;
+            metrics.recordRepositoryBuild(job.repository(), System.nanoTime() - job.enqueuedNanos);
+
+            latestTestOutput = "<pre>" + log + "</pre>";
+        }
+        catch (RuntimeException e)
+        {
+            System.err.println("Build " + job.id + " failed unexpectedly: " + e);
+            if (!stored)
+            {
+                recordError(job, e);
+            }
+        }
+        finally
+        {
+            finishOutput(job);
+        }
+    }
+
+    /**
+     * Reports a build that failed with an unexpected exception and stores
+     * it as failed, with the stack trace as its log.
+     *
+     * @param job   The failed build
+     * @param error The exception it failed with
+     */
+    private void recordError(BuildJob job, RuntimeException error)
+    {
+        if (job.push != null)
+        {
+            statusReporter.report(commitStatusUrl(job.push), "error",
+                                  "Build failed unexpectedly", "ci_server");
+        }
+
+        StringWriter trace = new StringWriter();
+        error.printStackTrace(new PrintWriter(trace));
+        Build build = new Build(job.id, job.commitSha, job.branch, Instant.now().toString(), false,
+                                "Build failed unexpectedly: " + trace);
+        build.testStatus = false;
+        try
+        {
+            store.add(build);
+        }
+        catch (RuntimeException e)
+        {
+            System.err.println("Build " + job.id + " could not be stored: " + e);
+        }
+    }
+
+    /**
+     * Shows the queue position of a waiting build in the pending commit
+     * status of its commit.
+     *
+     * @param job      The waiting build
+     * @param position The 1-based position of the build in the queue
+     * @param queued   The number of queued builds
+     */
+    private void reportPosition(BuildJob job, int position, int queued)
+    {
+        if (job.push == null)
+        {
+            return;
+        }
+
+        statusReporter.report(commitStatusUrl(job.push), "pending",
+                              "Queued: position " + position + " of " + queued, "ci_server");
+    }
+
+    /**
+     * Completes a push whose tree was already built by reporting and
+     * recording the earlier result instead of building it again. Runs on
+     * the result reuse thread rather than the request thread.
+     *
+     * @param job    The build created for the push
+     * @param cached The earlier build of the same tree
+     */
+    private void reuseResult(BuildJob job, Build cached)
+    {
+        System.out.println("\nTree " + cached.treeId + " already built by build " + cached.id + ", reusing its result");
+        reportResult(commitStatusUrl(job.push), cached.status, cached.testStatus);
+
+        Build build = new Build(job.id, job.commitSha, job.branch,
+                                Instant.now().toString(), cached.status,
+                                "Result reused from build " + cached.id + " of the same tree " + cached.treeId);
+        build.testStatus = cached.testStatus;
+        build.treeId     = cached.treeId;
+        build.cachedFrom = cached.id;
+        store.add(build);
+    }
+
+    /**
+     * Logs the outcome of a build to the server console and sets the
+     * matching final commit status.
+     *
+     * @param githubCommitUrl The commit status URL
+     * @param success         Whether the compilation succeeded
+     * @param testSuccess     Whether the tests succeeded
+     */
+    private void reportResult(String githubCommitUrl, boolean success, boolean testSuccess)
+    {
+        // Log the compilation outcome to the server console
+        if (success)
+        {
+            System.out.println("\nCompilation SUCCEEDED");
+            if (testSuccess) {
+                System.out.println("Tests SUCCEEDED");
+                statusReporter.report(githubCommitUrl, "success", "All tests succeeded", "ci_server");
+            }
+            else {
+                System.out.println("Tests FAILED");
+                statusReporter.report(githubCommitUrl, "failure", "Test failures", "ci_server");
+            }
+        }
+        else
+        {
+            System.out.println("\nCompilation FAILED");
+            statusReporter.report(githubCommitUrl, "failure", "Compilation failed", "ci_server");
+        }
+    }
+
+    /**
+     * Returns the git tree id of the pushed head commit.
+     *
+     * @param push The push
+     *
+     * @return The tree id, or null if the push has no head commit
+     */
+    private static String treeId(Push push)
+    {
+        return push.head_commit == null ? null : push.head_commit.tree_id;
+    }
+
+    /**
+     * Reports a build that was superseded by a newer push on the same
+     * branch and records it in the build history.
+     *
+     * @param job The superseded build
+     */
+    private void recordSuperseded(BuildJob job)
+    {
+        BuildJob newer = job.supersededBy();
+
+        statusReporter.report(commitStatusUrl(job.push), "error",
+                              "Superseded by " + newer.commitSha, "ci_server");
+
+        Build build = new Build(job.id, job.commitSha, job.branch,
+                                Instant.now().toString(), false,
+                                "Build superseded by build " + newer.id + " (" + newer.commitSha + ")");
+        build.supersededBy = newer.id;
+        build.timings      = job.timings.toMillis();
+        store.add(build);
+        finishOutput(job);
+    }
+
+    /**
+     * Returns the GitHub API URL used to set the status of the pushed commit.
+     *
+     * @param push The push whose head commit is reported on
+     *
+     * @return The commit status URL
+     */
+    private String commitStatusUrl(Push push)
+    {
+        return githubApiUrl + "/repos/"+push.repository.owner.name+"/"+push.repository.name+"/statuses/"+push.after;
+    }
+
+    /**
+     * Stops the build workers, warm build JVMs and build output streams
+     * when the Jetty server stops this handler, and gives reused results
+     * still being recorded and commit statuses still being posted a moment
+     * to finish.
+     *
+     * @throws Exception If the parent handler fails to stop
+     */
+    @Override
+    protected void doStop() throws Exception
+    {
+        buildQueue.shutdown();
+        compiler.shutdown();
+        streamExecutor.shutdownNow();
+        reuseExecutor.shutdown();
+        reuseExecutor.awaitTermination(5, TimeUnit.SECONDS);
+        statusReporter.awaitIdle(5, TimeUnit.SECONDS);
+        statusReporter.shutdown();
+        super.doStop();
+    }
+
+    /**
+     * Send a POST request setting the status of a github commit and wait
+     * for the response. Builds report through the non-blocking
+     * {@link StatusReporter} instead.
+     * @param url           - The url of the commit
+     * @param status        - The status to set for the commit, "success", "failure" or "pending"
+     * @param description   - Description of the status
+     * @param context       - The system setting the status
+     */
+    public void setCommitStatus(String url,
+                                String status,
+                                String description,
+                                String context)
+    {
+        // only runs if an accessToken was provided
+        if (accessToken.equals("")) return;
+        
+        try {
+            org.eclipse.jetty.client.api.Request request = httpClient.POST(url)
+                .header("Accept", "application/vnd.github+json")
+                .header("Authorization", "Bearer "+accessToken)
+                .header("X-GitHub-Api-Version", "2022-11-28")
+                .content(new StringContentProvider("{\"state\":\""+status+"\",\"description\":\""+description+"\",\"context\":\""+context+"\"}"), "application/json");
+            
+            ContentResponse response = request.send();
+
+            if (response.getContentAsString().equals("{\"message\":\"Not Found\",\"documentation_url\":\"https://docs.github.com/rest/commits/statuses#create-a-commit-status\",\"status\":\"404\"}")) {
+                System.out.println("Set Commit Status failed, possibly wrong repository url");
+            }
+        } catch (InterruptedException | ExecutionException | TimeoutException exception) {
+            // Post request failed
+            System.out.println("Set Commit Status failed, post request exception");
+        }
+        
+    }
+
+    /**
+     * Creates the admission control of the build workers described by the
+     * server configuration.
+     *
+     * @param config The server configuration
+     *
+     * @return BuildResources sharing this machine between the build workers
+     */
+    public static BuildResources createResources(ServerConfig config)
+    {
+        return BuildResources.forMachine(config.buildWorkers, config.buildThreads, config.buildHeapMb,
+                                         config.forkMemoryMb, config.memoryReserveMb);
+    }
+
+    /**
+     * Creates the Compiler described by the server configuration.
+     *
+     * @param config The server configuration
+     *
+     * @return A Compiler using the configured mirror cache, warm runners
+     *         and workspace pool, if any, and building only changed modules
+     *         if configured
+     *
+     * @throws IOException If the Maven installation for the warm runners can not be read
+     */
+    public static Compiler createCompiler(ServerConfig config) throws IOException
+    {
+        MirrorCache mirrors = config.mirrorDir.isBlank()
+            ? null
+            : new MirrorCache(Paths.get(config.mirrorDir));
+
+        WarmRunnerPool warmRunners = null;
+        if (config.warmRunners > 0)
+        {
+            Path mavenHome = config.mavenHome.isBlank()
+                ? WarmRunnerPool.detectMavenHome()
+                : Paths.get(config.mavenHome);
+
+            if (mavenHome == null)
+            {
+                System.out.println("No Maven installation found, warm runners disabled");
+            }
+            else
+            {
+                warmRunners = WarmRunnerPool.forMavenHome(config.warmRunners, mavenHome,
+                                                           createResources(config).heapMbPerBuild());
+            }
+        }
+
+        WorkspacePool workspaces = null;
+        if (!config.workspaceDir.isBlank())
+        {
+            List<String> excludes = new ArrayList<>();
+            for (String exclude : config.workspaceCleanExcludes.split(","))
+            {
+                if (!exclude.isBlank())
+                {
+                    excludes.add(exclude.trim());
+                }
+            }
+            workspaces = new WorkspacePool(Paths.get(config.workspaceDir), excludes);
+        }
+
+        Compiler compiler = new Compiler(mirrors, warmRunners, workspaces);
+        compiler.setIncrementalModules(config.incrementalModules);
+        return compiler;
+    }
+
+    /**
+     * Starts the CI-server in command line
+     *
+     * @param args - Command-line arguments, 1: a github access token to the repository
+     *
+     * @throws Exception If the server fails to start or join the thread.
+     */
+    public static void main(String[] args) throws Exception
+    {
+        String accessToken = "";
+        if (args.length>0) {
+            accessToken = args[0];
+        }
+
+        Server server = new Server(8080);
+        ServerConfig config = ServerConfig.fromSystemProperties();
+
+        server.setHandler(withCompression(new ContinuousIntegrationServer(accessToken, config,
+                                                                          createCompiler(config))));
         server.start();
         server.join();
     }
@@ -0,0 +1,177 @@
+package se.ciserver;
+
+/**
+ * Holds the tunable settings of the CI-server. Every setting has a
+ * default and can be overridden with a {@code -Dci.<name>=<value>}
+ * system property when starting the server.
+ */
+public class ServerConfig
+{
+    /** Location of the build history file. */
+    public String historyFile = "build-history.json";
+
+    /** Number of worker threads draining the build queue. */
+    public int buildWorkers = 2;
+
+    /** Maven threads ({@code -T}) per build, 0 to split the cores evenly over the build workers. */
+    public int buildThreads = 0;
+
+    /** Maven heap in MB per build, 0 for half of an even split of the memory budget over the build workers. */
+    public int buildHeapMb = 0;
+
+    /** Memory in MB reserved per build for the test JVMs Surefire forks, 0 to reserve as much as the Maven heap. */
+    public int forkMemoryMb = 0;
+
+    /** Memory in MB kept free for the server and the system; builds are only admitted beyond it. */
+    public int memoryReserveMb = 1024;
+
+    /** Maximum number of builds waiting in the queue before pushes are rejected. */
+    public int queueCapacity = 64;
+
+    /** Maximum number of build output streams served at the same time; further streams get 503. */
+    public int maxLogStreams = 32;
+
+    /** Maximum size in bytes of a webhook payload; larger pushes are answered with 413. */
+    public int maxPayloadBytes = 25 * 1024 * 1024;
+
+    /** Number of attempts made to post a pending commit status to GitHub; final states are retried until delivered. */
+    public int statusRetries = 6;
+
+    /** Delay before the first retry of a failed commit status post, doubled for each further retry. */
+    public int statusBackoffMillis = 1000;
+
+    /** Base URL of the GitHub REST API that commit statuses are posted to. */
+    public String githubApiUrl = "https://api.github.com";
+
+    /**
+     * Rules prioritizing builds by repository and branch, see
+     * {@link se.ciserver.build.PriorityRules}; higher priorities are built first.
+     */
+    public String priorityRules = "@default=10,release/*=5";
+
+    /** Seconds a queued build waits before it gains one priority level, 0 to disable aging. */
+    public int priorityAgingSeconds = 60;
+
+    /**
+     * Properties file with the weight and caps of each repository, see
+     * {@link se.ciserver.build.RepositoryQuotas}; empty to treat all
+     * repositories alike.
+     */
+    public String repositoryQuotas = "";
+
+    /** Whether a push supersedes the queued and running builds of the same branch. */
+    public boolean coalesceBranches = false;
+
+    /** Whether a push of an already built git tree reuses the earlier build result. */
+    public boolean resultCache = false;
+
+    /** Directory holding the persistent repository mirrors, empty to clone for every build. */
+    public String mirrorDir = "";
+
+    /** Directory holding the reusable build workspaces, empty to build every commit in a new temporary directory. */
+    public String workspaceDir = "";
+
+    /** Comma separated patterns kept by {@code git clean} when a workspace is reset. */
+    public String workspaceCleanExcludes = "target/";
+
+    /** Whether a push only builds the Maven modules containing the files it changed, and their dependents. */
+    public boolean incrementalModules = false;
+
+    /** Number of warm build JVMs kept for Maven builds, 0 to start {@code mvn} for every build. */
+    public int warmRunners = 0;
+
+    /** Maven installation used by the warm build JVMs, empty to detect it from the environment. */
+    public String mavenHome = "";
+
+    /**
+     * Creates a ServerConfig from the {@code ci.*} system properties,
+     * falling back to the defaults for unset properties.
+     *
+     * @return A ServerConfig reflecting the current system properties
+     */
+    public static ServerConfig fromSystemProperties()
+    {
+        ServerConfig config = new ServerConfig();
+
+        config.historyFile   = System.getProperty("ci.historyFile", config.historyFile);
+        config.buildWorkers  = intProperty("ci.buildWorkers", config.buildWorkers);
+        config.queueCapacity = intProperty("ci.queueCapacity", config.queueCapacity);
+        config.maxLogStreams = intProperty("ci.maxLogStreams", config.maxLogStreams);
+
+        config.buildThreads    = intProperty("ci.buildThreads", config.buildThreads);
+        config.buildHeapMb     = intProperty("ci.buildHeapMb", config.buildHeapMb);
+        config.forkMemoryMb    = intProperty("ci.forkMemoryMb", config.forkMemoryMb);
+        config.memoryReserveMb = intProperty("ci.memoryReserveMb", config.memoryReserveMb);
+
+        config.maxPayloadBytes  = intProperty("ci.maxPayloadBytes", config.maxPayloadBytes);
+        config.statusRetries       = intProperty("ci.statusRetries", config.statusRetries);
+        config.statusBackoffMillis = intProperty("ci.statusBackoffMillis", config.statusBackoffMillis);
+        config.githubApiUrl        = System.getProperty("ci.githubApiUrl", config.githubApiUrl);
+
+        config.priorityRules        = System.getProperty("ci.priorityRules", config.priorityRules);
+        config.priorityAgingSeconds = intProperty("ci.priorityAgingSeconds", config.priorityAgingSeconds);
+        config.repositoryQuotas     = System.getProperty("ci.repositoryQuotas", config.repositoryQuotas);
+
+        config.coalesceBranches = booleanProperty("ci.coalesceBranches", config.coalesceBranches);
+        config.resultCache      = booleanProperty("ci.resultCache", config.resultCache);
+        config.mirrorDir        = System.getProperty("ci.mirrorDir", config.mirrorDir);
+        config.warmRunners      = intProperty("ci.warmRunners", config.warmRunners);
+        config.mavenHome        = System.getProperty("ci.mavenHome", config.mavenHome);
+
+        config.workspaceDir           = System.getProperty("ci.workspaceDir", config.workspaceDir);
+        config.workspaceCleanExcludes = System.getProperty("ci.workspaceCleanExcludes",
+                                                           config.workspaceCleanExcludes);
+        config.incrementalModules     = booleanProperty("ci.incrementalModules", config.incrementalModules);
+
+        return config;
+    }
+
+    /**
+     * Reads a boolean system property.
+     *
+     * @param name         The property name
+     * @param defaultValue The value used when the property is unset
+     *
+     * @return The property value, or the default if it is unset
+     */
+    private static boolean booleanProperty(String name, boolean defaultValue)
+    {
+        String value = System.getProperty(name);
+
+        if (value == null || value.isBlank())
+        {
+            return defaultValue;
+        }
+
+        return Boolean.parseBoolean(value.trim());
+    }
+
+    /**
+     * Reads an integer system property.
+     *
+     * @param name         The property name
+     * @param defaultValue The value used when the property is unset
+     *
+     * @return The property value, or the default if it is unset
+     *
+     * @throws IllegalArgumentException If the property is not a valid integer
+     */
+    private static int intProperty(String name, int defaultValue)
+    {
+        String value = System.getProperty(name);
+
+        if (value == null || value.isBlank())
+        {
+            return defaultValue;
+        }
+
+        try
+        {
+            return Integer.parseInt(value.trim());
+        }
+        catch (NumberFormatException e)
+        {
+            throw new IllegalArgumentException("Invalid value for " + name + ": " + value, e);
+        }
+    }
+}
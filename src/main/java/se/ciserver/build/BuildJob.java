@@ -0,0 +1,283 @@
+package se.ciserver.build;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+import se.ciserver.github.Commit;
+import se.ciserver.github.Push;
+
+/**
+ * Defines a single build waiting in, or taken from, the {@link BuildQueue}.
+ */
+public class BuildJob
+{
+    /** Number of output lines kept for following a running build. */
+    static final int LIVE_OUTPUT_LINES = 5000;
+
+    /** Most commits GitHub lists in a push payload; longer pushes are cut off. */
+    static final int MAX_PAYLOAD_COMMITS = 2048;
+
+    /** The build identifier handed back to the webhook caller. */
+    public final String id;
+    /** The push that triggered the build, or null for builds not started by a webhook. */
+    public final Push push;
+    public final String cloneUrl;
+    public final String branch;
+    public final String commitSha;
+    /** Monotonic time ({@link System#nanoTime()}) at which the job was created. */
+    public final long enqueuedNanos;
+    /** The most recent output of the build, followed live while it runs. */
+    public final LogBuffer output = new LogBuffer(LIVE_OUTPUT_LINES);
+    /** How long each phase of the build took. */
+    public final PhaseTimings timings = new PhaseTimings();
+
+    private Process  process;
+    private BuildJob supersededBy;
+
+    private volatile BuildResources.Allocation allocation;
+    private volatile int                       priority = 0;
+    private volatile Set<String>               changedFiles;
+
+    /**
+     * Constructs a BuildJob for a GitHub push.
+     *
+     * @param id   The build identifier
+     * @param push The push that triggered the build
+     */
+    public BuildJob(String id, Push push)
+    {
+        this(id, push, push.repository.clone_url, push.ref, push.after);
+    }
+
+    /**
+     * Constructs a BuildJob for an explicit repository, branch and commit.
+     *
+     * @param id        The build identifier
+     * @param cloneUrl  The clone URL of the repository
+     * @param branch    The branch name to build
+     * @param commitSha The commit SHA to build
+     */
+    public BuildJob(String id, String cloneUrl, String branch, String commitSha)
+    {
+        this(id, null, cloneUrl, branch, commitSha);
+    }
+
+    private BuildJob(String id, Push push, String cloneUrl, String branch, String commitSha)
+    {
+        this.id            = id;
+        this.push          = push;
+        this.cloneUrl      = cloneUrl;
+        this.branch        = branch;
+        this.commitSha     = commitSha;
+        this.enqueuedNanos = System.nanoTime();
+        this.changedFiles  = push == null ? null : changedFiles(push);
+    }
+
+    /**
+     * Returns the key under which builds of the same repository branch
+     * are coalesced.
+     *
+     * @return The clone URL and branch of this job
+     */
+    public String branchKey()
+    {
+        return cloneUrl + "#" + branch;
+    }
+
+    /**
+     * Returns the repository the job builds, under which it is scheduled
+     * and matched by {@link PriorityRules} and {@link RepositoryQuotas}.
+     *
+     * @return {@code <owner>/<repo>} for a push, the clone URL otherwise
+     */
+    public String repository()
+    {
+        return push == null
+            ? cloneUrl
+            : push.repository.owner.name + "/" + push.repository.name;
+    }
+
+    /**
+     * Marks this job as superseded by a newer push and kills the process
+     * tree of the step currently running, if any. Superseding an already
+     * superseded job only records the newer job.
+     *
+     * @param newer The job that supersedes this one
+     */
+    public void supersede(BuildJob newer)
+    {
+        Process running;
+
+        synchronized (this)
+        {
+            running      = supersededBy == null ? process : null;
+            supersededBy = newer;
+        }
+
+        if (running != null)
+        {
+            destroyTree(running);
+        }
+    }
+
+    /**
+     * Returns whether this job has been superseded by a newer push.
+     *
+     * @return True if the job should no longer be built
+     */
+    public synchronized boolean isCancelled()
+    {
+        return supersededBy != null;
+    }
+
+    /**
+     * Returns the job that superseded this one.
+     *
+     * @return The newer job, or null if this job has not been superseded
+     */
+    public synchronized BuildJob supersededBy()
+    {
+        return supersededBy;
+    }
+
+    /**
+     * Returns the priority the job was queued with.
+     *
+     * @return The priority, higher is built first
+     */
+    public int priority()
+    {
+        return priority;
+    }
+
+    /**
+     * Records the priority the job is queued with.
+     *
+     * @param assigned The priority given by the {@link PriorityRules}
+     */
+    void prioritize(int assigned)
+    {
+        priority = assigned;
+    }
+
+    /**
+     * Returns the files changed since the last build of the branch, from
+     * which {@link ModuleSelector} picks the modules to build.
+     *
+     * @return The paths of the changed files, or null if they are not known
+     */
+    public Set<String> changedFiles()
+    {
+        Set<String> files = changedFiles;
+        return files == null ? null : Collections.unmodifiableSet(files);
+    }
+
+    /**
+     * Adds the changed files of an older job this job supersedes, since
+     * the older job's changes are no longer built on their own.
+     *
+     * @param older The superseded job
+     */
+    synchronized void inheritChanges(BuildJob older)
+    {
+        Set<String> mine   = changedFiles;
+        Set<String> theirs = older.changedFiles;
+        if (mine == null || theirs == null)
+        {
+            changedFiles = null;
+            return;
+        }
+
+        Set<String> merged = new TreeSet<>(mine);
+        merged.addAll(theirs);
+        changedFiles = merged;
+    }
+
+    /**
+     * Returns the share of the machine the job was admitted with.
+     *
+     * @return The Maven threads and heap of the build, or null if the
+     *         job was run without admission control
+     */
+    public BuildResources.Allocation allocation()
+    {
+        return allocation;
+    }
+
+    /**
+     * Records the share of the machine the job was admitted with.
+     *
+     * @param admitted The Maven threads and heap of the build, or null
+     */
+    void allocate(BuildResources.Allocation admitted)
+    {
+        allocation = admitted;
+    }
+
+    /**
+     * Registers the process currently running for this job so that it
+     * can be killed if the job is superseded. A process attached after
+     * the job was superseded is killed immediately.
+     *
+     * @param running The running process, or null once it has exited
+     */
+    void attach(Process running)
+    {
+        boolean cancelled;
+
+        synchronized (this)
+        {
+            process   = running;
+            cancelled = supersededBy != null;
+        }
+
+        if (cancelled && running != null)
+        {
+            destroyTree(running);
+        }
+    }
+
+    /**
+     * Collects the files changed by the commits of a push. They are not
+     * known for a new branch, a force push, a push too long for the
+     * payload to list all commits, or commits listed without their files.
+     *
+     * @param push The push
+     *
+     * @return The paths of the added, modified and removed files, or null
+     */
+    private static Set<String> changedFiles(Push push)
+    {
+        if (push.created || push.forced || push.commits.length == 0
+            || push.commits.length >= MAX_PAYLOAD_COMMITS)
+        {
+            return null;
+        }
+
+        Set<String> files = new TreeSet<>();
+        for (Commit commit : push.commits)
+        {
+            if (commit.added == null || commit.modified == null || commit.removed == null)
+            {
+                return null;
+            }
+            Collections.addAll(files, commit.added);
+            Collections.addAll(files, commit.modified);
+            Collections.addAll(files, commit.removed);
+        }
+        return files;
+    }
+
+    /**
+     * Forcibly kills a process and all of its descendants, e.g. the
+     * forked test JVMs of a Maven build.
+     *
+     * @param root The process to kill
+     */
+    private static void destroyTree(Process root)
+    {
+        root.descendants().forEach(ProcessHandle::destroyForcibly);
+        root.destroyForcibly();
+    }
+}
@@ -0,0 +1,659 @@
+package se.ciserver.build;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+/**
+ * A bounded queue of {@link BuildJob}s drained by a fixed pool of
+ * build worker threads. Submitting never blocks: when the queue is
+ * full the job is rejected so the caller can answer immediately.
+ *
+ * <p>In coalescing mode a new job for a repository branch supersedes
+ * every queued and running job of that branch, so that only the newest
+ * pushed commit is built.
+ *
+ * <p>With {@link BuildResources} a worker only takes a job once the
+ * machine has room for it, and the job carries the Maven threads and
+ * heap it was given.
+ *
+ * <p>Every repository has its own queue. The workers are shared
+ * between the repositories by weighted fair queuing: each started job
+ * advances its repository's virtual time by a stride inversely
+ * proportional to the repository's weight, and the next job is taken
+ * from the repository furthest behind. A repository may cap the number
+ * of its running and waiting jobs, see {@link RepositoryQuotas}.
+ *
+ * <p>Within a repository, jobs are taken by priority, see
+ * {@link PriorityRules}, and in order of arrival within a priority.
+ * With aging, a waiting job gains one priority level per aging
+ * interval, so that low priority jobs still run under a steady stream
+ * of high priority ones. The jobs at the front of each repository's
+ * queue are told when their position in it changes, never after a
+ * worker has taken them.
+ */
+public class BuildQueue
+{
+    /** Number of jobs at the front of the queue told when their position changes. */
+    static final int POSITION_UPDATES = 10;
+
+    /** Virtual time a repository of weight 1 advances by for each started job. */
+    static final long STRIDE = 1 << 20;
+
+    private final List<BuildJob>     pending = new ArrayList<>();
+    private final List<BuildJob>     running = new ArrayList<>();
+    private final List<Thread>       workers = new ArrayList<>();
+    private final int                capacity;
+    private final boolean            coalesce;
+    private final Consumer<BuildJob> runner;
+    private final Consumer<BuildJob> superseded;
+    private final BuildResources     resources;
+
+    /** Queued jobs to the last position they were told. */
+    private final Map<BuildJob, Integer> reported = new HashMap<>();
+
+    /** Repositories to the virtual time at which their next job may start. */
+    private final Map<String, Long> passes = new HashMap<>();
+
+    /** Virtual start time of the job taken last. */
+    private long virtualTime = 0;
+
+    private volatile PriorityRules    rules            = PriorityRules.parse("");
+    private volatile long             agingNanos       = 0;
+    private volatile PositionListener positionListener = (job, position, queued) -> {};
+    private volatile RepositoryQuotas quotas           = RepositoryQuotas.NONE;
+
+    private boolean shutdown = false;
+
+    /**
+     * Constructs a non-coalescing BuildQueue and starts its worker threads.
+     *
+     * @param workerCount The number of builds that may run at the same time
+     * @param capacity    The maximum number of jobs waiting to be run
+     * @param runner      Runs a single job on a worker thread
+     */
+    public BuildQueue(int workerCount, int capacity, Consumer<BuildJob> runner)
+    {
+        this(workerCount, capacity, false, runner, job -> {});
+    }
+
+    /**
+     * Constructs a BuildQueue and starts its worker threads.
+     *
+     * @param workerCount The number of builds that may run at the same time
+     * @param capacity    The maximum number of jobs waiting to be run
+     * @param coalesce    Whether a new job supersedes older jobs of the same branch
+     * @param runner      Runs a single job on a worker thread
+     * @param superseded  Notified of queued jobs dropped in favour of a newer
+     *                    job; running jobs are cancelled and finish through
+     *                    the runner instead
+     */
+    public BuildQueue(int workerCount, int capacity, boolean coalesce,
+                      Consumer<BuildJob> runner, Consumer<BuildJob> superseded)
+    {
+        this(workerCount, capacity, coalesce, runner, superseded, null);
+    }
+
+    /**
+     * Constructs a BuildQueue that admits jobs by the free resources of
+     * the machine and starts its worker threads.
+     *
+     * @param workerCount The number of builds that may run at the same time
+     * @param capacity    The maximum number of jobs waiting to be run
+     * @param coalesce    Whether a new job supersedes older jobs of the same branch
+     * @param runner      Runs a single job on a worker thread
+     * @param superseded  Notified of queued jobs dropped in favour of a newer
+     *                    job; running jobs are cancelled and finish through
+     *                    the runner instead
+     * @param resources   Admits jobs when the machine has room for them, or
+     *                    null to run a job whenever a worker is idle
+     */
+    public BuildQueue(int workerCount, int capacity, boolean coalesce,
+                      Consumer<BuildJob> runner, Consumer<BuildJob> superseded,
+                      BuildResources resources)
+    {
+        if (workerCount < 1 || capacity < 1)
+        {
+            throw new IllegalArgumentException("Worker count and capacity must be positive");
+        }
+
+        this.capacity   = capacity;
+        this.coalesce   = coalesce;
+        this.runner     = runner;
+        this.superseded = superseded;
+        this.resources  = resources;
+
+        for (int i = 0; i < workerCount; i++)
+        {
+            Thread worker = new Thread(this::workLoop, "ci-build-worker-" + (i + 1));
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * Adds a job to the queue without blocking.
+     *
+     * @param job The job to run
+     *
+     * @return True if the job was queued, false if the queue or the queue
+     *         of the job's repository is full, or the queue is shut down
+     */
+    public boolean submit(BuildJob job)
+    {
+        List<BuildJob> dropped = new ArrayList<>();
+        List<BuildJob> cancel  = new ArrayList<>();
+        List<Runnable> moves;
+
+        String repository   = job.repository();
+        int    repoCapacity = quotas.quotaFor(repository).queueCapacity;
+
+        job.prioritize(rules.priorityOf(job));
+
+        synchronized (this)
+        {
+            if (shutdown)
+            {
+                return false;
+            }
+
+            if (coalesce)
+            {
+                for (BuildJob queued : pending)
+                {
+                    if (queued.branchKey().equals(job.branchKey()))
+                    {
+                        dropped.add(queued);
+                    }
+                }
+                for (BuildJob active : running)
+                {
+                    if (active.branchKey().equals(job.branchKey()))
+                    {
+                        cancel.add(active);
+                    }
+                }
+            }
+
+            // Dropped jobs are of the same branch, so of the same repository
+            if (pending.size() - dropped.size() >= capacity
+                || (repoCapacity > 0 && count(pending, repository) - dropped.size() >= repoCapacity))
+            {
+                return false;
+            }
+
+            pending.removeAll(dropped);
+            dropped.forEach(reported::remove);
+            // The new job builds the changes of the jobs it supersedes too
+            dropped.forEach(job::inheritChanges);
+            cancel.forEach(job::inheritChanges);
+            pending.add(job);
+            moves = positionChanges(job);
+            notifyAll();
+        }
+
+        moves.forEach(Runnable::run);
+
+        // Kill superseded builds and notify outside the lock, both may be slow
+        for (BuildJob active : cancel)
+        {
+            active.supersede(job);
+        }
+        for (BuildJob queued : dropped)
+        {
+            queued.supersede(job);
+            superseded.accept(queued);
+        }
+        return true;
+    }
+
+    /**
+     * Sets the rules prioritizing jobs submitted from now on.
+     *
+     * @param priorityRules The rules
+     * @param agingMillis   The waiting time after which a job gains one
+     *                      priority level, or 0 to disable aging
+     */
+    public void setPriorityRules(PriorityRules priorityRules, long agingMillis)
+    {
+        rules      = priorityRules;
+        agingNanos = agingMillis * 1_000_000L;
+    }
+
+    /**
+     * Sets the per-repository weights and caps.
+     *
+     * @param repositoryQuotas The quotas
+     */
+    public void setQuotas(RepositoryQuotas repositoryQuotas)
+    {
+        synchronized (this)
+        {
+            quotas = repositoryQuotas;
+            // A raised cap may let a waiting job start
+            notifyAll();
+        }
+    }
+
+    /**
+     * Sets the listener told when the position of a job at the front of
+     * its repository's queue changes, and when a job is queued.
+     *
+     * @param listener The listener, called outside the queue's lock
+     */
+    public void setPositionListener(PositionListener listener)
+    {
+        positionListener = listener;
+    }
+
+    /**
+     * Returns the position of a job in its repository's queue.
+     *
+     * @param job The job
+     *
+     * @return The 1-based position, or 0 if the job is not queued
+     */
+    public synchronized int position(BuildJob job)
+    {
+        return repositoryQueues().getOrDefault(job.repository(), Collections.emptyList()).indexOf(job) + 1;
+    }
+
+    /**
+     * Returns the number of waiting jobs of each repository.
+     *
+     * @return The repositories with waiting jobs to their queue depth
+     */
+    public synchronized Map<String, Integer> queuedByRepository()
+    {
+        return countByRepository(pending);
+    }
+
+    /**
+     * Returns the number of running jobs of each repository.
+     *
+     * @return The repositories with running jobs to their number
+     */
+    public synchronized Map<String, Integer> activeByRepository()
+    {
+        return countByRepository(running);
+    }
+
+    /**
+     * Returns the number of jobs waiting for a worker.
+     *
+     * @return The queue depth
+     */
+    public synchronized int size()
+    {
+        return pending.size();
+    }
+
+    /**
+     * Returns the number of jobs currently being run by a worker.
+     *
+     * @return The number of active builds
+     */
+    public synchronized int activeCount()
+    {
+        return running.size();
+    }
+
+    /**
+     * Stops accepting jobs, drops the jobs still waiting and interrupts
+     * the workers so that running builds are aborted.
+     */
+    public void shutdown()
+    {
+        synchronized (this)
+        {
+            shutdown = true;
+            pending.clear();
+            reported.clear();
+            notifyAll();
+        }
+
+        for (Thread worker : workers)
+        {
+            worker.interrupt();
+        }
+    }
+
+    /**
+     * Takes jobs from the queue and runs them until the queue is shut down.
+     * A job stays queued, and can still be superseded, while its worker
+     * waits for the machine to have room for it.
+     */
+    private void workLoop()
+    {
+        while (true)
+        {
+            synchronized (this)
+            {
+                while (!shutdown && !hasStartable())
+                {
+                    try
+                    {
+                        wait();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        /* re-check the shutdown flag */
+                    }
+                }
+
+                if (shutdown)
+                {
+                    return;
+                }
+            }
+
+            BuildResources.Allocation allocation = null;
+            if (resources != null)
+            {
+                try
+                {
+                    allocation = resources.acquire();
+                }
+                catch (InterruptedException e)
+                {
+                    continue; // re-check the shutdown flag
+                }
+            }
+
+            BuildJob       job;
+            List<Runnable> moves = new ArrayList<>();
+
+            synchronized (this)
+            {
+                job = shutdown ? null : takeNext();
+                if (job != null)
+                {
+                    running.add(job);
+                    moves = positionChanges(null);
+                }
+            }
+
+            if (job == null)
+            {
+                // Another worker took the job, it was superseded or its
+                // repository reached its cap meanwhile
+                if (allocation != null)
+                {
+                    resources.release(allocation);
+                }
+                continue;
+            }
+
+            moves.forEach(Runnable::run);
+
+            // Wait out a position report of this job still in progress,
+            // so that it can not follow anything the runner reports
+            synchronized (job)
+            {
+                job.allocate(allocation);
+            }
+
+            try
+            {
+                runner.accept(job);
+            }
+            catch (RuntimeException e)
+            {
+                System.err.println("Build " + job.id + " failed unexpectedly: " + e);
+            }
+            finally
+            {
+                synchronized (this)
+                {
+                    running.remove(job);
+                    // Its repository may be below its cap again
+                    notifyAll();
+                }
+                if (allocation != null)
+                {
+                    resources.release(allocation);
+                }
+                // Clear an interrupt aimed at the finished build
+                Thread.interrupted();
+            }
+        }
+    }
+
+    /**
+     * Removes the job to run next from the queue: the first job, by
+     * priority after aging, of the repository with the earliest virtual
+     * start time among those below their cap.
+     *
+     * @return The job, or null if no queued job may start
+     */
+    private BuildJob takeNext()
+    {
+        Map<String, Integer> active = countByRepository(running);
+        BuildJob             next   = null;
+        long                 start  = 0;
+
+        // The first job of each repository in the order comes first
+        for (BuildJob job : ordered())
+        {
+            String repository = job.repository();
+            if (!mayStart(repository, active))
+            {
+                continue;
+            }
+
+            long jobStart = Math.max(passes.getOrDefault(repository, 0L), virtualTime);
+            if (next == null || jobStart < start)
+            {
+                next  = job;
+                start = jobStart;
+            }
+        }
+
+        if (next == null)
+        {
+            return null;
+        }
+
+        String repository = next.repository();
+        virtualTime = start;
+        passes.put(repository, start + STRIDE / quotas.quotaFor(repository).weight);
+
+        pending.remove(next);
+        reported.remove(next);
+        return next;
+    }
+
+    /**
+     * Returns whether a queued job may be started now.
+     *
+     * @return True if a repository with queued jobs is below its cap
+     */
+    private boolean hasStartable()
+    {
+        Map<String, Integer> active = countByRepository(running);
+
+        for (BuildJob job : pending)
+        {
+            if (mayStart(job.repository(), active))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns whether a repository is below its cap of running jobs.
+     *
+     * @param repository The repository
+     * @param active     The number of running jobs of each repository
+     *
+     * @return True if another job of the repository may start
+     */
+    private boolean mayStart(String repository, Map<String, Integer> active)
+    {
+        int cap = quotas.quotaFor(repository).maxConcurrent;
+        return cap <= 0 || active.getOrDefault(repository, 0) < cap;
+    }
+
+    /**
+     * Counts the jobs of a repository.
+     *
+     * @param jobs       The jobs
+     * @param repository The repository
+     *
+     * @return The number of jobs of the repository
+     */
+    private static int count(List<BuildJob> jobs, String repository)
+    {
+        int count = 0;
+        for (BuildJob job : jobs)
+        {
+            if (job.repository().equals(repository))
+            {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Counts the jobs of each repository.
+     *
+     * @param jobs The jobs
+     *
+     * @return The repositories, sorted, to their number of jobs
+     */
+    private static Map<String, Integer> countByRepository(List<BuildJob> jobs)
+    {
+        Map<String, Integer> counts = new TreeMap<>();
+        for (BuildJob job : jobs)
+        {
+            counts.merge(job.repository(), 1, Integer::sum);
+        }
+        return counts;
+    }
+
+    /**
+     * Returns the queue of each repository, in the order its jobs will
+     * be run as of now.
+     *
+     * @return The repositories to their queued jobs, next first
+     */
+    private Map<String, List<BuildJob>> repositoryQueues()
+    {
+        Map<String, List<BuildJob>> queues = new LinkedHashMap<>();
+        for (BuildJob job : ordered())
+        {
+            queues.computeIfAbsent(job.repository(), k -> new ArrayList<>()).add(job);
+        }
+        return queues;
+    }
+
+    /**
+     * Returns whether a job is waiting in the queue.
+     *
+     * @param job The job
+     *
+     * @return True if no worker has taken the job yet
+     */
+    private synchronized boolean isQueued(BuildJob job)
+    {
+        return pending.contains(job);
+    }
+
+    /**
+     * Returns the queued jobs in the order they will be run, as of now.
+     *
+     * @return The jobs, next first
+     */
+    private List<BuildJob> ordered()
+    {
+        long           now   = System.nanoTime();
+        List<BuildJob> order = new ArrayList<>(pending);
+
+        order.sort(Comparator.comparingLong((BuildJob job) -> -effectivePriority(job, now))
+                             .thenComparingLong(job -> job.enqueuedNanos));
+        return order;
+    }
+
+    /**
+     * Returns the priority of a job raised by the time it has waited.
+     *
+     * @param job The queued job
+     * @param now The current {@link System#nanoTime()}
+     *
+     * @return The priority used for ordering the queue
+     */
+    private long effectivePriority(BuildJob job, long now)
+    {
+        long aging = agingNanos;
+        return job.priority() + (aging > 0 ? (now - job.enqueuedNanos) / aging : 0);
+    }
+
+    /**
+     * Finds the jobs at the front of their repository's queue whose
+     * position changed since they were last told, and the newly queued
+     * job.
+     *
+     * @param queued The job just queued, or null
+     *
+     * @return The notifications, to be run outside the lock
+     */
+    private List<Runnable> positionChanges(BuildJob queued)
+    {
+        List<Runnable>   moves    = new ArrayList<>();
+        PositionListener listener = positionListener;
+
+        for (List<BuildJob> queue : repositoryQueues().values())
+        {
+            for (int i = 0; i < queue.size(); i++)
+            {
+                BuildJob job      = queue.get(i);
+                int      position = i + 1;
+
+                if ((i < POSITION_UPDATES || job == queued)
+                    && !Integer.valueOf(position).equals(reported.get(job)))
+                {
+                    reported.put(job, position);
+                    int total = queue.size();
+                    moves.add(() ->
+                    {
+                        synchronized (job)
+                        {
+                            // Never report a position once a worker took the job
+                            if (isQueued(job))
+                            {
+                                listener.moved(job, position, total);
+                            }
+                        }
+                    });
+                }
+            }
+        }
+        return moves;
+    }
+
+    /**
+     * Receives the queue positions of waiting jobs.
+     */
+    @FunctionalInterface
+    public interface PositionListener
+    {
+        /**
+         * Called when a job is queued or its position changes.
+         *
+         * @param job      The waiting job
+         * @param position The 1-based position of the job in its repository's queue
+         * @param queued   The number of queued jobs of the repository
+         */
+        void moved(BuildJob job, int position, int queued);
+    }
+}
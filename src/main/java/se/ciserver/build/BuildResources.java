@@ -0,0 +1,332 @@
+package se.ciserver.build;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.LongSupplier;
+
+/**
+ * Decides when the machine has room for another build. Every build is
+ * given a fixed share of the machine, a number of Maven threads
+ * ({@code -T}) and a Maven heap ({@code -Xmx}), and is only admitted
+ * while the threads of all admitted builds fit in the available cores,
+ * their memory fits in the memory budget and the memory currently free
+ * can hold one more build. A single build is always admitted, so that
+ * an oversized share can not stall the queue.
+ *
+ * <p>The heap only limits the Maven JVM. The test JVMs Surefire forks
+ * are sized by the project's own {@code argLine}, which is left alone,
+ * so the memory of a build is its heap plus a fixed reservation for its
+ * forks.
+ */
+public class BuildResources
+{
+    /** Interval at which a waiting build re-checks the free memory. */
+    static final long POLL_MILLIS = 1000;
+
+    /** Smallest heap given to a build when the share is derived from the machine. */
+    static final long MIN_HEAP_MB = 256;
+
+    private final int          cores;
+    private final long         memoryBudgetMb;
+    private final int          threadsPerBuild;
+    private final long         heapMbPerBuild;
+    private final long         forkMbPerBuild;
+    private final LongSupplier availableMemoryMb;
+
+    private int  admitted     = 0;
+    private int  threadsUsed  = 0;
+    private long memoryUsedMb = 0;
+
+    /**
+     * Constructs BuildResources without a reservation for test JVMs.
+     *
+     * @param cores             The number of cores builds may use
+     * @param memoryBudgetMb    The memory in MB all builds may use
+     * @param threadsPerBuild   The Maven threads given to each build
+     * @param heapMbPerBuild    The Maven heap in MB given to each build
+     * @param availableMemoryMb Reports the memory in MB currently free on the machine
+     */
+    public BuildResources(int cores, long memoryBudgetMb, int threadsPerBuild,
+                          long heapMbPerBuild, LongSupplier availableMemoryMb)
+    {
+        this(cores, memoryBudgetMb, threadsPerBuild, heapMbPerBuild, 0, availableMemoryMb);
+    }
+
+    /**
+     * Constructs BuildResources reserving memory for forked test JVMs.
+     *
+     * @param cores             The number of cores builds may use
+     * @param memoryBudgetMb    The memory in MB all builds may use
+     * @param threadsPerBuild   The Maven threads given to each build
+     * @param heapMbPerBuild    The Maven heap in MB given to each build
+     * @param forkMbPerBuild    The memory in MB reserved for the forked test JVMs of each build
+     * @param availableMemoryMb Reports the memory in MB currently free on the machine
+     */
+    public BuildResources(int cores, long memoryBudgetMb, int threadsPerBuild,
+                          long heapMbPerBuild, long forkMbPerBuild, LongSupplier availableMemoryMb)
+    {
+        if (cores < 1 || threadsPerBuild < 1 || heapMbPerBuild < 1 || forkMbPerBuild < 0)
+        {
+            throw new IllegalArgumentException("Cores, threads and heap per build must be positive");
+        }
+
+        this.cores             = cores;
+        this.memoryBudgetMb    = memoryBudgetMb;
+        this.threadsPerBuild   = threadsPerBuild;
+        this.heapMbPerBuild    = heapMbPerBuild;
+        this.forkMbPerBuild    = forkMbPerBuild;
+        this.availableMemoryMb = availableMemoryMb;
+    }
+
+    /**
+     * Creates BuildResources for this machine. A share left at 0 is
+     * derived from the machine by splitting its cores and its memory,
+     * less the reserve, evenly over the build workers; half of a derived
+     * memory share is the Maven heap and half is kept for the forked
+     * test JVMs. A fork reservation left at 0 equals the heap.
+     *
+     * @param workers         The number of build workers
+     * @param threadsPerBuild The Maven threads per build, or 0 to derive them
+     * @param heapMbPerBuild  The Maven heap in MB per build, or 0 to derive it
+     * @param forkMbPerBuild  The memory in MB reserved for the test JVMs of a build, or 0 to derive it
+     * @param reserveMb       The memory in MB kept free for the server and the system
+     *
+     * @return BuildResources measuring the free memory of this machine
+     */
+    public static BuildResources forMachine(int workers, int threadsPerBuild, long heapMbPerBuild,
+                                            long forkMbPerBuild, long reserveMb)
+    {
+        int  cores  = Runtime.getRuntime().availableProcessors();
+        long budget = Math.max(0, totalMemoryMb() - reserveMb);
+
+        int  threads = threadsPerBuild > 0 ? threadsPerBuild : Math.max(1, cores / Math.max(1, workers));
+        long heap    = heapMbPerBuild > 0
+            ? heapMbPerBuild
+            : Math.max(MIN_HEAP_MB, budget / Math.max(1, workers) / 2);
+        long fork    = forkMbPerBuild > 0 ? forkMbPerBuild : heap;
+
+        return new BuildResources(cores, budget, threads, heap, fork,
+                                  () -> availableMemoryMb() - reserveMb);
+    }
+
+    /**
+     * Waits until another build fits on the machine and reserves its share.
+     *
+     * @return The share reserved for the build, to be passed to {@link #release}
+     *
+     * @throws InterruptedException If waiting is interrupted
+     */
+    public synchronized Allocation acquire() throws InterruptedException
+    {
+        while (admitted > 0 && !fits())
+        {
+            // Free memory changes without notice, so re-check it periodically
+            wait(POLL_MILLIS);
+        }
+
+        admitted++;
+        threadsUsed  += threadsPerBuild;
+        memoryUsedMb += heapMbPerBuild + forkMbPerBuild;
+        return new Allocation(threadsPerBuild, heapMbPerBuild, forkMbPerBuild);
+    }
+
+    /**
+     * Returns the share of a finished build.
+     *
+     * @param allocation The share returned by {@link #acquire}
+     */
+    public synchronized void release(Allocation allocation)
+    {
+        admitted--;
+        threadsUsed  -= allocation.threads;
+        memoryUsedMb -= allocation.heapMb + allocation.forkMb;
+        notifyAll();
+    }
+
+    /**
+     * Returns the number of builds currently admitted.
+     *
+     * @return The number of running builds holding a share
+     */
+    public synchronized int admittedCount()
+    {
+        return admitted;
+    }
+
+    /**
+     * Returns the Maven threads given to each build.
+     *
+     * @return The {@code -T} value
+     */
+    public int threadsPerBuild()
+    {
+        return threadsPerBuild;
+    }
+
+    /**
+     * Returns the Maven heap given to each build.
+     *
+     * @return The {@code -Xmx} value in MB
+     */
+    public long heapMbPerBuild()
+    {
+        return heapMbPerBuild;
+    }
+
+    /**
+     * Returns the memory reserved for the forked test JVMs of each build.
+     *
+     * @return The reservation in MB
+     */
+    public long forkMbPerBuild()
+    {
+        return forkMbPerBuild;
+    }
+
+    /**
+     * Returns whether one more build fits next to the admitted ones.
+     *
+     * @return True if its threads, its heap and forks and the free memory suffice
+     */
+    private boolean fits()
+    {
+        long memory = heapMbPerBuild + forkMbPerBuild;
+        return threadsUsed + threadsPerBuild <= cores
+            && memoryUsedMb + memory <= memoryBudgetMb
+            && availableMemoryMb.getAsLong() >= memory;
+    }
+
+    /**
+     * Returns the physical memory of this machine.
+     *
+     * @return The total memory in MB
+     */
+    static long totalMemoryMb()
+    {
+        long fromProc = meminfoMb("MemTotal:");
+        return fromProc >= 0 ? fromProc : osBean().getTotalMemorySize() / (1024 * 1024);
+    }
+
+    /**
+     * Returns the memory currently available for new processes. On Linux
+     * this is {@code MemAvailable}, which unlike the free memory counts
+     * the page cache that the kernel can reclaim.
+     *
+     * @return The available memory in MB
+     */
+    static long availableMemoryMb()
+    {
+        long fromProc = meminfoMb("MemAvailable:");
+        return fromProc >= 0 ? fromProc : osBean().getFreeMemorySize() / (1024 * 1024);
+    }
+
+    /**
+     * Reads a field of {@code /proc/meminfo}.
+     *
+     * @param field The field name including the colon, e.g. {@code MemTotal:}
+     *
+     * @return The value in MB, or -1 if it can not be read
+     */
+    private static long meminfoMb(String field)
+    {
+        Path meminfo = Paths.get("/proc/meminfo");
+        if (!Files.isReadable(meminfo))
+        {
+            return -1;
+        }
+
+        try
+        {
+            for (String line : Files.readAllLines(meminfo))
+            {
+                if (line.startsWith(field))
+                {
+                    // e.g. "MemAvailable:    5628400 kB"
+                    String[] parts = line.substring(field.length()).trim().split("\\s+");
+                    return Long.parseLong(parts[0]) / 1024;
+                }
+            }
+        }
+        catch (IOException | NumberFormatException e)
+        {
+            /* fall back to the platform MXBean */
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the platform bean reporting the machine's memory.
+     *
+     * @return The operating system MXBean
+     */
+    private static com.sun.management.OperatingSystemMXBean osBean()
+    {
+        return (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+    }
+
+    /**
+     * The share of the machine reserved for one admitted build.
+     */
+    public static final class Allocation
+    {
+        /** The Maven threads of the build. */
+        public final int threads;
+        /** The Maven heap of the build in MB. */
+        public final long heapMb;
+        /** The memory reserved for the forked test JVMs of the build in MB. */
+        public final long forkMb;
+
+        /**
+         * Constructs an Allocation without a reservation for test JVMs.
+         *
+         * @param threads The Maven threads of the build
+         * @param heapMb  The Maven heap of the build in MB
+         */
+        public Allocation(int threads, long heapMb)
+        {
+            this(threads, heapMb, 0);
+        }
+
+        /**
+         * Constructs an Allocation.
+         *
+         * @param threads The Maven threads of the build
+         * @param heapMb  The Maven heap of the build in MB
+         * @param forkMb  The memory reserved for the forked test JVMs in MB
+         */
+        public Allocation(int threads, long heapMb, long forkMb)
+        {
+            this.threads = threads;
+            this.heapMb  = heapMb;
+            this.forkMb  = forkMb;
+        }
+
+        /**
+         * Returns the Maven arguments running the build with its threads.
+         *
+         * @return The {@code -T} option
+         */
+        public List<String> mavenArgs()
+        {
+            return Arrays.asList("-T", String.valueOf(threads));
+        }
+
+        /**
+         * Returns the {@code MAVEN_OPTS} limiting Maven to the build's heap.
+         *
+         * @param existing The {@code MAVEN_OPTS} of the environment, or null
+         *
+         * @return The options, with the heap limit last so that it wins
+         */
+        public String mavenOpts(String existing)
+        {
+            String heap = "-Xmx" + heapMb + "m";
+            return existing == null || existing.isBlank() ? heap : existing.trim() + " " + heap;
+        }
+    }
+}
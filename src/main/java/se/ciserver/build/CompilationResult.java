@@ -1,5 +1,8 @@
 package se.ciserver.build;
 
+import java.util.Collections;
+import java.util.Map;
+
 /**
  * Holds the result of a compilation attempt.
  */
@@ -13,6 +16,18 @@ public class CompilationResult
     public final String output;
     /** The combined stdout/stderr output from the tests. */
     public final String testOutput;
+    /** Milliseconds spent in each build phase, see {@link PhaseTimings}. */
+    public final Map<String, Long> timings;
+    /**
+     * Whether Maven ran to completion, so that the result describes the
+     * code; false if the build failed before or while running Maven, e.g.
+     * on a failed clone or an interrupt.
+     */
+    public final boolean completed;
+    /** Whether Maven built only the modules changed by the push ({@code -pl}), not the whole reactor. */
+    public final boolean partial;
+    /** Whether Maven ran without {@code clean} on the output kept by an earlier build in its workspace. */
+    public final boolean incremental;
 
     /**
      * Constructs a CompilationResult.
@@ -28,5 +43,65 @@ public class CompilationResult
         this.output  = output;
         this.testSuccess = testSuccess;
         this.testOutput = testOutput;
+        this.timings = Collections.emptyMap();
+        this.completed = false;
+        this.partial = false;
+        this.incremental = false;
+    }
+
+    /**
+     * Constructs a CompilationResult with phase timings.
+     *
+     * @param success Whether the compilation succeeded
+     * @param testSuccess Whether all the tests succeeded
+     * @param output  The combined stdout/stderr output from the build
+     * @param testOutput  The combined stdout/stderr output from the tests
+     * @param timings Milliseconds spent in each build phase
+     */
+    public CompilationResult(boolean success, boolean testSuccess, String output, String testOutput,
+                             Map<String, Long> timings)
+    {
+        this(success, testSuccess, output, testOutput, timings, false, false, false);
+    }
+
+    /**
+     * Constructs a CompilationResult with phase timings, recording
+     * whether Maven ran to completion, whether it built only some
+     * modules and whether it reused the output of an earlier build.
+     *
+     * @param success Whether the compilation succeeded
+     * @param testSuccess Whether all the tests succeeded
+     * @param output  The combined stdout/stderr output from the build
+     * @param testOutput  The combined stdout/stderr output from the tests
+     * @param timings Milliseconds spent in each build phase
+     * @param completed Whether Maven ran to completion
+     * @param partial Whether Maven built only the changed modules
+     * @param incremental Whether Maven reused the output of an earlier build
+     */
+    public CompilationResult(boolean success, boolean testSuccess, String output, String testOutput,
+                             Map<String, Long> timings, boolean completed, boolean partial,
+                             boolean incremental)
+    {
+        this.success = success;
+        this.output  = output;
+        this.testSuccess = testSuccess;
+        this.testOutput = testOutput;
+        this.timings = timings;
+        this.completed = completed;
+        this.partial = partial;
+        this.incremental = incremental;
+    }
+
+    /**
+     * Returns a copy of this result carrying the given phase timings.
+     *
+     * @param timings The timings of the build
+     *
+     * @return The result with the timings
+     */
+    public CompilationResult withTimings(PhaseTimings timings)
+    {
+        return new CompilationResult(success, testSuccess, output, testOutput, timings.toMillis(), completed, partial,
+                                     incremental);
     }
 }
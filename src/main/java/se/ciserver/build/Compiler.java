@@ -3,10 +3,19 @@ package se.ciserver.build;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * Handles cloning a repository, checking out a specific commit,
@@ -14,9 +23,93 @@ import java.util.stream.Collectors;
  */
 public class Compiler
 {
+    private final MirrorCache    mirrors;
+    private final WarmRunnerPool warmRunners;
+    private final WorkspacePool  workspaces;
+
+    private volatile boolean incrementalModules = false;
+
+    /**
+     * Constructs a Compiler that clones the pushed branch from the
+     * remote repository for every build.
+     */
+    public Compiler()
+    {
+        this(null, null);
+    }
+
+    /**
+     * Constructs a Compiler that checks builds out of persistent
+     * repository mirrors.
+     *
+     * @param mirrors The mirror cache to use, or null to clone from the
+     *                remote repository for every build
+     */
+    public Compiler(MirrorCache mirrors)
+    {
+        this(mirrors, null);
+    }
+
+    /**
+     * Constructs a Compiler that checks builds out of persistent
+     * repository mirrors and runs Maven on warm build JVMs.
+     *
+     * @param mirrors     The mirror cache to use, or null to clone from the
+     *                    remote repository for every build
+     * @param warmRunners The warm runner pool to use, or null to start a
+     *                    new {@code mvn} process for every build
+     */
+    public Compiler(MirrorCache mirrors, WarmRunnerPool warmRunners)
+    {
+        this(mirrors, warmRunners, null);
+    }
+
+    /**
+     * Constructs a Compiler that checks builds out of persistent
+     * repository mirrors, runs Maven on warm build JVMs and builds in
+     * reusable workspaces.
+     *
+     * @param mirrors     The mirror cache to use, or null to clone from the
+     *                    remote repository for every build
+     * @param warmRunners The warm runner pool to use, or null to start a
+     *                    new {@code mvn} process for every build
+     * @param workspaces  The workspace pool to use, or null to build every
+     *                    commit from scratch in a temporary directory
+     */
+    public Compiler(MirrorCache mirrors, WarmRunnerPool warmRunners, WorkspacePool workspaces)
+    {
+        this.mirrors     = mirrors;
+        this.warmRunners = warmRunners;
+        this.workspaces  = workspaces;
+    }
+
+    /**
+     * Stops the warm build JVMs of the Compiler, if it has any. Runners
+     * still building are stopped when their build finishes.
+     */
+    public void shutdown()
+    {
+        if (warmRunners != null)
+        {
+            warmRunners.shutdown();
+        }
+    }
+
+    /**
+     * Sets whether a push only builds the Maven modules containing the
+     * files it changed, see {@link ModuleSelector}.
+     *
+     * @param enabled True to build the changed modules and the modules
+     *                depending on them, false to always build the whole reactor
+     */
+    public void setIncrementalModules(boolean enabled)
+    {
+        incrementalModules = enabled;
+    }
+
     /**
      * Clones the repository, checks out the specified commit, and
-     * runs {@code mvn clean compile}.
+     * runs {@code mvn clean test}.
      *
      * @param cloneUrl  The clone URL of the repository
      * @param branch    The branch name to clone
@@ -26,57 +119,404 @@ public class Compiler
      */
     public CompilationResult compile(String cloneUrl, String branch, String commitSha)
     {
-        Path tempDir = null;
+        return compile(new BuildJob(null, cloneUrl, branch, commitSha));
+    }
+
+    /**
+     * Clones the repository, checks out the commit of the given job and
+     * runs the Maven build. The processes started are attached to the
+     * job so that superseding the job kills them. The time spent in each
+     * phase is recorded in the job's {@link PhaseTimings} and returned
+     * with the result.
+     *
+     * With a {@link WorkspacePool} the build runs in a leased workspace
+     * instead, see {@link #compileInWorkspace}.
+     *
+     * @param job The build to run
+     *
+     * @return A {@link CompilationResult} indicating success/failure and build output
+     */
+    public CompilationResult compile(BuildJob job)
+    {
+        if (workspaces != null)
+        {
+            return compileInWorkspace(job).withTimings(job.timings);
+        }
+
+        Path              tempDir = null;
+        CompilationResult result;
 
         try
         {
             // Create an isolated temporary directory for this build
             tempDir = Files.createTempDirectory("ci-build-");
+            result  = runSteps(job, tempDir, true);
+        }
+        catch (IOException | InterruptedException e)
+        {
+            result = job.isCancelled()
+                ? cancelled(job)
+                : new CompilationResult(false, false, "Compilation error: " + e.getMessage(), "");
+        }
+        finally
+        {
+            // Always clean up the temporary directory to avoid disk bloat
+            if (tempDir != null)
+            {
+                long start = System.nanoTime();
+                cleanup(tempDir);
+                job.timings.record(PhaseTimings.CLEANUP, start);
+            }
+        }
 
-            // Step 1: Clone only the target branch (--single-branch avoids
+        return result.withTimings(job.timings);
+    }
+
+    /**
+     * Builds the commit of a job in a workspace leased from the pool. A
+     * workspace holding a checkout is reset to the commit with
+     * {@code git fetch}, {@code git checkout --force} and
+     * {@code git clean} keeping the configured exclusions, e.g. the
+     * {@code target/} directories, and Maven runs without {@code clean}
+     * so that only what changed is rebuilt. A new workspace, or one
+     * that can not be reset, is cloned from scratch. The workspace is
+     * kept for the next build unless the build failed before it had a
+     * checkout.
+     *
+     * @param job The build to run
+     *
+     * @return A {@link CompilationResult} indicating success/failure and build output
+     */
+    private CompilationResult compileInWorkspace(BuildJob job)
+    {
+        WorkspacePool.Lease lease     = workspaces.lease(job.cloneUrl);
+        Path                workspace = lease.directory;
+        CompilationResult   result    = null;
+
+        try
+        {
+            if (!lease.fresh)
+            {
+                result = resetSteps(job, workspace);
+            }
+            if (result == null)
+            {
+                if (Files.exists(workspace))
+                {
+                    cleanup(workspace);
+                }
+                Files.createDirectories(workspace.getParent());
+                result = runSteps(job, workspace, false);
+            }
+        }
+        catch (IOException | InterruptedException e)
+        {
+            result = job.isCancelled()
+                ? cancelled(job)
+                : new CompilationResult(false, false, "Compilation error: " + e.getMessage(), "");
+        }
+        finally
+        {
+            long start = System.nanoTime();
+            if (!Files.isDirectory(workspace.resolve(".git")) && Files.exists(workspace))
+            {
+                // Never keep a half-cloned workspace
+                cleanup(workspace);
+            }
+            workspaces.release(lease);
+            job.timings.record(PhaseTimings.CLEANUP, start);
+        }
+
+        return result;
+    }
+
+    /**
+     * Resets a workspace holding an earlier checkout to the commit of the
+     * job and runs the Maven build without {@code clean}, timing each step.
+     *
+     * @param job       The build to run
+     * @param workspace The workspace holding an earlier checkout
+     *
+     * @return A {@link CompilationResult}, or null if the workspace could
+     *         not be reset and has to be cloned again
+     *
+     * @throws IOException          If an I/O error occurs
+     * @throws InterruptedException If a process is interrupted
+     */
+    private CompilationResult resetSteps(BuildJob job, Path workspace)
+            throws IOException, InterruptedException
+    {
+        CompilationResult mirrorFailure = updateMirrorStep(job);
+        if (mirrorFailure != null)
+        {
+            return mirrorFailure;
+        }
+
+        // Step 1: Fetch the pushed branch into the workspace, from the mirror if there is one
+        long start = System.nanoTime();
+        int fetchExit = runProcess(job, workspace,
+            "git", "fetch", "--no-tags", "origin", job.branch);
+        job.timings.record(PhaseTimings.FETCH, start);
+
+        if (job.isCancelled())
+        {
+            return cancelled(job);
+        }
+
+        if (fetchExit != 0)
+        {
+            job.output.append("Workspace fetch failed with exit code " + fetchExit + ", cloning it again");
+            return null;
+        }
+
+        // Step 2: Force the checkout to the commit and drop files from earlier builds
+        List<String> clean = new ArrayList<>(Arrays.asList("git", "clean", "-ffdx"));
+        for (String exclude : workspaces.cleanExcludes())
+        {
+            clean.add("-e");
+            clean.add(exclude);
+        }
+
+        start = System.nanoTime();
+        int checkoutExit = runProcess(job, workspace,
+            "git", "checkout", "--force", "--detach", job.commitSha);
+        if (checkoutExit == 0)
+        {
+            checkoutExit = runProcess(job, workspace, clean.toArray(new String[0]));
+        }
+        job.timings.record(PhaseTimings.CHECKOUT, start);
+
+        if (job.isCancelled())
+        {
+            return cancelled(job);
+        }
+
+        if (checkoutExit != 0)
+        {
+            job.output.append("Workspace reset failed with exit code " + checkoutExit + ", cloning it again");
+            return null;
+        }
+
+        // Step 3: Rebuild what changed
+        CompilationResult result = runCompilation(job, workspace, false, true);
+        return job.isCancelled() ? cancelled(job) : result;
+    }
+
+    /**
+     * Brings the mirror of the job's repository up to date, if the
+     * Compiler uses mirrors, and times it.
+     *
+     * @param job The build whose repository is mirrored
+     *
+     * @return A failed {@link CompilationResult} if the update failed or the
+     *         job was cancelled meanwhile, null otherwise
+     *
+     * @throws IOException          If an I/O error occurs
+     * @throws InterruptedException If the process is interrupted
+     */
+    private CompilationResult updateMirrorStep(BuildJob job)
+            throws IOException, InterruptedException
+    {
+        if (mirrors == null)
+        {
+            return null;
+        }
+
+        long start = System.nanoTime();
+        int fetchExit = updateMirror(job);
+        job.timings.record(PhaseTimings.FETCH, start);
+
+        if (job.isCancelled())
+        {
+            return cancelled(job);
+        }
+
+        if (fetchExit != 0)
+        {
+            return new CompilationResult(false, false,
+                "Git mirror update failed with exit code " + fetchExit, "");
+        }
+        return null;
+    }
+
+    /**
+     * Clones the repository into the build directory, checks out the
+     * commit of the job and runs the Maven build, timing each step.
+     *
+     * @param job     The build to run
+     * @param tempDir The empty build directory
+     * @param clean   Whether Maven runs {@code clean} before building
+     *
+     * @return A {@link CompilationResult} indicating success/failure and build output
+     *
+     * @throws IOException          If an I/O error occurs
+     * @throws InterruptedException If a process is interrupted
+     */
+    private CompilationResult runSteps(BuildJob job, Path tempDir, boolean clean)
+            throws IOException, InterruptedException
+    {
+        String cloneUrl  = job.cloneUrl;
+        String branch    = job.branch;
+        String commitSha = job.commitSha;
+        long   start;
+
+        // Step 1: Clone the repository into the build directory
+        CompilationResult mirrorFailure = updateMirrorStep(job);
+        if (mirrorFailure != null)
+        {
+            return mirrorFailure;
+        }
+
+        start = System.nanoTime();
+        int cloneExit = mirrors != null
+            // Local clone sharing the mirror's objects, no network access
+            ? runProcess(job, tempDir.getParent(),
+                "git", "clone", "--shared", "--no-checkout",
+                mirrors.mirrorPath(cloneUrl).toString(), tempDir.toString())
+            // Clone only the target branch (--single-branch avoids
             // downloading the full repo history)
-            int cloneExit = runProcess(tempDir.getParent(),
+            : runProcess(job, tempDir.getParent(),
                 "git", "clone", "--branch", branch, "--single-branch",
                 cloneUrl, tempDir.toString());
+        job.timings.record(PhaseTimings.CLONE, start);
 
-            if (cloneExit != 0)
-            {
-                return new CompilationResult(false, false,
-                    "Git clone failed with exit code " + cloneExit, "");
-            }
+        if (job.isCancelled())
+        {
+            return cancelled(job);
+        }
 
-            // Step 2: Checkout the exact commit SHA that triggered the webhook
-            int checkoutExit = runProcess(tempDir,
-                "git", "checkout", commitSha);
+        if (cloneExit != 0)
+        {
+            return new CompilationResult(false, false,
+                "Git clone failed with exit code " + cloneExit, "");
+        }
 
-            if (checkoutExit != 0)
-            {
-                return new CompilationResult(false, false,
-                    "Git checkout failed with exit code " + checkoutExit, "");
-            }
+        // Step 2: Checkout the exact commit SHA that triggered the webhook
+        start = System.nanoTime();
+        int checkoutExit = runProcess(job, tempDir,
+            "git", "checkout", commitSha);
+        job.timings.record(PhaseTimings.CHECKOUT, start);
 
-            // Step 3: Run Maven compilation and return the result
-            return runCompilation(tempDir);
+        if (job.isCancelled())
+        {
+            return cancelled(job);
         }
-        catch (IOException | InterruptedException e)
+
+        if (checkoutExit != 0)
         {
             return new CompilationResult(false, false,
-                "Compilation error: " + e.getMessage(), "");
+                "Git checkout failed with exit code " + checkoutExit, "");
         }
-        finally
+
+        // Step 3: Run Maven compilation and return the result
+        CompilationResult result = runCompilation(job, tempDir, clean, false);
+        return job.isCancelled() ? cancelled(job) : result;
+    }
+
+    /**
+     * Brings the mirror of the job's repository up to date, cloning it
+     * with {@code git clone --mirror} on first use and fetching only the
+     * new objects afterwards. Other builds of the repository wait for
+     * the update, so it is not killed when the job is superseded. A
+     * mirror that can not be fetched into is deleted and cloned again.
+     *
+     * @param job The build whose repository is mirrored
+     *
+     * @return The exit code of the clone or fetch
+     *
+     * @throws IOException          If an I/O error occurs
+     * @throws InterruptedException If the process is interrupted
+     */
+    private int updateMirror(BuildJob job)
+            throws IOException, InterruptedException
+    {
+        Path mirror = mirrors.mirrorPath(job.cloneUrl);
+
+        synchronized (mirrors.lockFor(job.cloneUrl))
         {
-            // Always clean up the temporary directory to avoid disk bloat
-            if (tempDir != null)
+            if (mirrors.exists(job.cloneUrl))
             {
-                cleanup(tempDir);
+                clearStaleLocks(mirror);
+                int fetchExit = runSharedProcess(job, mirror,
+                    "git", "fetch", "--prune", "origin");
+                if (fetchExit == 0)
+                {
+                    return 0;
+                }
+
+                job.output.append("Git mirror fetch failed with exit code " + fetchExit + ", cloning the mirror again");
+                cleanup(mirror);
             }
+
+            Files.createDirectories(mirrors.root());
+            int exit = runSharedProcess(job, mirrors.root(),
+                "git", "clone", "--mirror", job.cloneUrl, mirror.toString());
+
+            if (exit != 0 && Files.exists(mirror))
+            {
+                // Never leave a half-cloned mirror behind
+                cleanup(mirror);
+            }
+            return exit;
+        }
+    }
+
+    /**
+     * Deletes the lock files git left in a mirror when it was killed or
+     * the server stopped during an update. No git process uses the mirror
+     * while its lock is held, so any lock file found is stale.
+     *
+     * @param mirror The mirror directory
+     *
+     * @throws IOException If the mirror can not be read
+     */
+    private static void clearStaleLocks(Path mirror) throws IOException
+    {
+        List<Path> stale;
+        try (Stream<Path> files = Files.walk(mirror))
+        {
+            stale = files.filter(path -> path.getFileName().toString().endsWith(".lock"))
+                         .filter(Files::isRegularFile)
+                         .collect(Collectors.toList());
+        }
+
+        for (Path lock : stale)
+        {
+            System.out.println("Removing stale git lock " + lock);
+            Files.deleteIfExists(lock);
         }
     }
 
+    /**
+     * Runs a process that other builds depend on, such as a mirror
+     * update, without registering it with the job, so that superseding
+     * the job does not kill it half way.
+     *
+     * @param job     The build the process runs for
+     * @param workDir The working directory for the process
+     * @param command The command and its arguments
+     *
+     * @return The process exit code
+     *
+     * @throws IOException          If an I/O error occurs
+     * @throws InterruptedException If the process is interrupted
+     */
+    private int runSharedProcess(BuildJob job, Path workDir, String... command)
+            throws IOException, InterruptedException
+    {
+        return runProcess(job, false, workDir, line ->
+        {
+            System.out.println(line);
+            job.output.append(line);
+        }, Collections.emptyMap(), command);
+    }
+
     /**
      * Runs a process and returns its exit code.
-     * Output is printed to System.out for server console visibility.
+     * Output is printed to System.out for server console visibility
+     * and added to the live output of the job.
      *
+     * @param job     The build the process belongs to
      * @param workDir The working directory for the process
      * @param command The command and its arguments
      *
@@ -85,79 +525,324 @@ public class Compiler
      * @throws IOException          If an I/O error occurs
      * @throws InterruptedException If the process is interrupted
      */
-    private int runProcess(Path workDir, String... command)
+    private int runProcess(BuildJob job, Path workDir, String... command)
+            throws IOException, InterruptedException
+    {
+        return runProcess(job, workDir, line ->
+        {
+            System.out.println(line);
+            job.output.append(line);
+        }, command);
+    }
+
+    /**
+     * Runs a process, passing each line of its combined stdout/stderr
+     * output to the given consumer, and returns its exit code.
+     *
+     * @param job     The build the process belongs to
+     * @param workDir The working directory for the process
+     * @param output  Receives the output of the process line by line
+     * @param command The command and its arguments
+     *
+     * @return The process exit code
+     *
+     * @throws IOException          If an I/O error occurs
+     * @throws InterruptedException If the process is interrupted
+     */
+    private int runProcess(BuildJob job, Path workDir,
+                           Consumer<String> output, String... command)
+            throws IOException, InterruptedException
+    {
+        return runProcess(job, workDir, output, Collections.emptyMap(), command);
+    }
+
+    /**
+     * Runs a process with additional environment variables, passing each
+     * line of its combined stdout/stderr output to the given consumer,
+     * and returns its exit code.
+     *
+     * @param job         The build the process belongs to
+     * @param workDir     The working directory for the process
+     * @param output      Receives the output of the process line by line
+     * @param environment Variables set for the process on top of the server's environment
+     * @param command     The command and its arguments
+     *
+     * @return The process exit code
+     *
+     * @throws IOException          If an I/O error occurs
+     * @throws InterruptedException If the process is interrupted
+     */
+    private int runProcess(BuildJob job, Path workDir, Consumer<String> output,
+                           Map<String, String> environment, String... command)
+            throws IOException, InterruptedException
+    {
+        return runProcess(job, true, workDir, output, environment, command);
+    }
+
+    /**
+     * Runs a process, passing each line of its combined stdout/stderr
+     * output to the given consumer, and returns its exit code.
+     *
+     * @param job         The build the process belongs to
+     * @param cancellable Whether superseding the job kills the process
+     * @param workDir     The working directory for the process
+     * @param output      Receives the output of the process line by line
+     * @param environment Variables set for the process on top of the server's environment
+     * @param command     The command and its arguments
+     *
+     * @return The process exit code
+     *
+     * @throws IOException          If an I/O error occurs
+     * @throws InterruptedException If the process is interrupted
+     */
+    private int runProcess(BuildJob job, boolean cancellable, Path workDir, Consumer<String> output,
+                           Map<String, String> environment, String... command)
             throws IOException, InterruptedException
     {
         ProcessBuilder pb = createProcessBuilder(command);
         pb.directory(workDir.toFile());
+        pb.environment().putAll(environment);
         pb.redirectErrorStream(true); // Merge stderr into stdout
 
         Process process = pb.start();
+        if (cancellable)
+        {
+            job.attach(process);
+        }
 
-        // Consume output line-by-line and print to the server console
-        try (BufferedReader reader = new BufferedReader(
-                new InputStreamReader(process.getInputStream())))
+        try
         {
-            String line;
-            while ((line = reader.readLine()) != null)
+            // Consume output line-by-line
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(process.getInputStream())))
             {
-                System.out.println(line);
+                String line;
+                while ((line = reader.readLine()) != null)
+                {
+                    output.accept(line);
+                }
             }
-        }
 
-        // Block until the process finishes and return its exit code
-        return process.waitFor();
+            // Block until the process finishes and return its exit code
+            return process.waitFor();
+        }
+        finally
+        {
+            if (cancellable)
+            {
+                job.attach(null);
+            }
+        }
     }
 
     /**
-     * Runs {@code mvn clean compile} in the given directory and captures output.
+     * Runs {@code mvn clean test}, or {@code mvn test} in a reused
+     * workspace, in the given directory, on a warm runner if the Compiler
+     * has a pool, and captures output.
+     * Compilation and tests share one Maven invocation. The output of
+     * every module's test lifecycle steps goes to the test output and
+     * the output of all its other steps to the compile output. A failing
+     * build only counts as compiled if every failed goal was a test step;
+     * a failure in any other step, a failure without a failed goal, e.g.
+     * of the warm runner, and a Maven killed by a signal count as
+     * compilation failures. The Maven time is recorded as compile and
+     * test phases at the first test step. A job admitted by
+     * {@link BuildResources} runs Maven with its share of threads ({@code -T}) and heap ({@code -Xmx} in
+     * {@code MAVEN_OPTS}); warm runners have their heap set at startup.
+     * With incremental modules enabled, a push whose changed files all
+     * lie in modules of a multi-module project only builds those modules
+     * with {@code -pl}, together with the modules they depend on
+     * ({@code -am}) and the modules depending on them ({@code -amd}).
      *
+     * @param job     The build the Maven process belongs to
      * @param workDir The directory containing the Maven project
+     * @param clean   Whether Maven runs {@code clean} before building
+     * @param reused  Whether the directory holds the output of an earlier build
      *
      * @return A {@link CompilationResult} with the build outcome
      *
      * @throws IOException          If an I/O error occurs
      * @throws InterruptedException If the process is interrupted
      */
-    private CompilationResult runCompilation(Path workDir)
+    private CompilationResult runCompilation(BuildJob job, Path workDir, boolean clean, boolean reused)
             throws IOException, InterruptedException
     {
-        ProcessBuilder pb = createProcessBuilder("mvn", "clean", "compile");
-        pb.directory(workDir.toFile());
-        pb.redirectErrorStream(true); // Merge stderr into stdout
+        StringJoiner output     = new StringJoiner(System.lineSeparator());
+        StringJoiner testOutput = new StringJoiner(System.lineSeparator());
+        boolean[] testPhase     = { false };
+        boolean[] testStep      = { false };
+        boolean[] testFailed    = { false };
+        boolean[] compileFailed = { false };
+        boolean[] runnerFailed  = { false };
+        long[]    phaseStart    = { System.nanoTime() };
 
-        Process process = pb.start();
+        Consumer<String> splitter = line ->
+        {
+            if (isStepStart(line))
+            {
+                testStep[0] = isTestPhaseStart(line);
+                if (testStep[0] && !testPhase[0])
+                {
+                    testPhase[0] = true;
+                    long now = System.nanoTime();
+                    job.timings.record(PhaseTimings.COMPILE, phaseStart[0], now);
+                    phaseStart[0] = now;
+                }
+            }
+            if (isTestFailure(line))
+            {
+                testFailed[0] = true;
+            }
+            else if (isCompileFailure(line))
+            {
+                compileFailed[0] = true;
+            }
+            if (line.startsWith(WarmMavenRunner.FAILURE_PREFIX))
+            {
+                runnerFailed[0] = true;
+            }
+            (testStep[0] ? testOutput : output).add(line);
+            job.output.append(line);
+        };
+
+        BuildResources.Allocation allocation = job.allocation();
+        List<String> args = new ArrayList<>();
+        if (allocation != null)
+        {
+            args.addAll(allocation.mavenArgs());
+        }
+        List<String> modules = incrementalModules
+            ? ModuleSelector.select(workDir, job.changedFiles())
+            : null;
+        if (modules != null)
+        {
+            String selection = "Building changed modules " + String.join(", ", modules)
+                + " with their dependencies and dependents";
+            output.add(selection);
+            job.output.append(selection);
+            args.addAll(Arrays.asList("-pl", String.join(",", modules), "-am", "-amd"));
+        }
+        if (clean)
+        {
+            args.add("clean");
+        }
+        args.add("test");
 
-        // Capture all build output into a single string
-        String output;
-        try (BufferedReader reader = new BufferedReader(
-                new InputStreamReader(process.getInputStream())))
+        int exitCode;
+        if (warmRunners != null)
+        {
+            exitCode = warmRunners.run(job, workDir, splitter, args.toArray(new String[0]));
+        }
+        else
         {
-            output = reader.lines()
-                .collect(Collectors.joining(System.lineSeparator()));
+            args.add(0, "mvn");
+            Map<String, String> environment = allocation == null
+                ? Collections.emptyMap()
+                : Collections.singletonMap("MAVEN_OPTS", allocation.mavenOpts(System.getenv("MAVEN_OPTS")));
+            exitCode = runProcess(job, workDir, splitter, environment, args.toArray(new String[0]));
         }
 
-        int exitCode = process.waitFor();
+        // Maven time after the first test step is test time, all of it otherwise
+        job.timings.record(testPhase[0] ? PhaseTimings.TEST : PhaseTimings.COMPILE, phaseStart[0]);
 
-        // Run tests
-        ProcessBuilder tb = createProcessBuilder("mvn", "test");
-        tb.directory(workDir.toFile());
+        // Exit codes from 128 up mean Maven was killed by a signal, e.g. by the OOM killer
+        boolean completed = exitCode >= 0 && exitCode < 128 && !runnerFailed[0];
 
-        Process testProcess = tb.start();
+        // A failed build compiled if only test steps failed
+        boolean success = exitCode == 0 || (completed && testFailed[0] && !compileFailed[0]);
 
-        // Capture all test output into a single string
-        String testOutput;
-        try (BufferedReader reader = new BufferedReader(
-                new InputStreamReader(testProcess.getInputStream())))
-        {
-            testOutput = reader.lines()
-                .collect(Collectors.joining(System.lineSeparator()));
-        }
+        // Exit code 0 means both compilation and tests succeeded
+        return new CompilationResult(success, exitCode == 0,
+                                     output.toString(), testOutput.toString(),
+                                     Collections.emptyMap(), completed, modules != null,
+                                     reused && !clean);
+    }
 
-        int testExitCode = testProcess.waitFor();
+    /**
+     * Returns whether a Maven output line starts the test part of the
+     * lifecycle, i.e. test resources, test compilation or test execution
+     * of a module.
+     *
+     * @param line A line of Maven output
+     *
+     * @return True if the line is the header of a test lifecycle step
+     */
+    static boolean isTestPhaseStart(String line)
+    {
+        return line.contains("(default-testResources)")
+            || line.contains("(default-testCompile)")
+            || line.contains("(default-test)");
+    }
 
-        // Exit code 0 means compilation succeeded
-        return new CompilationResult(exitCode == 0, testExitCode == 0, output, testOutput);
+    /**
+     * Returns whether a Maven output line is the header of a lifecycle
+     * step of a module, e.g.
+     * {@code --- maven-compiler-plugin:3.11.0:compile (default-compile) @ app ---}.
+     *
+     * @param line A line of Maven output
+     *
+     * @return True if the line starts a plugin execution
+     */
+    static boolean isStepStart(String line)
+    {
+        return line.contains("--- ") && line.contains(" (") && line.contains(" @ ");
+    }
+
+    /**
+     * Returns whether a Maven output line reports a failed goal of a test
+     * lifecycle step.
+     *
+     * @param line A line of Maven output
+     *
+     * @return True if the line reports a failed test step
+     */
+    static boolean isTestFailure(String line)
+    {
+        return line.contains("Failed to execute goal") && isTestPhaseStart(failedGoal(line));
+    }
+
+    /**
+     * Returns whether a Maven output line reports a failure of anything
+     * but a test step of any module: the main compilation, another plugin
+     * or the resolution of the dependencies.
+     *
+     * @param line A line of Maven output
+     *
+     * @return True if the line reports a failed goal outside the test steps
+     */
+    static boolean isCompileFailure(String line)
+    {
+        return line.contains("Failed to execute goal") && !isTestPhaseStart(failedGoal(line));
+    }
+
+    /**
+     * Returns the failed goal of a {@code Failed to execute goal} line,
+     * up to the project it failed on.
+     *
+     * @param line A line reporting a failed goal
+     *
+     * @return The goal and its execution id, e.g.
+     *         {@code maven-surefire-plugin:3.2.5:test (default-test)},
+     *         or an empty string if no goal is named
+     */
+    private static String failedGoal(String line)
+    {
+        int start = line.indexOf("Failed to execute goal") + "Failed to execute goal".length();
+        int end   = line.indexOf(" on project", start);
+        return end < 0 ? line.substring(start) : line.substring(start, end);
+    }
+
+    /**
+     * Creates the result of a build that was superseded by a newer push.
+     *
+     * @param job The superseded build
+     *
+     * @return A failed {@link CompilationResult} explaining the cancellation
+     */
+    private CompilationResult cancelled(BuildJob job)
+    {
+        return new CompilationResult(false, false,
+            "Build cancelled: superseded by " + job.supersededBy().commitSha, "");
     }
 
     /**
@@ -180,10 +865,9 @@ public class Compiler
      */
     private void cleanup(Path directory)
     {
-        try
+        try (Stream<Path> paths = Files.walk(directory))
         {
-            Files.walk(directory)
-                 .sorted(Comparator.reverseOrder())
+            paths.sorted(Comparator.reverseOrder())
                  .forEach(path ->
                  {
                      try
@@ -196,8 +880,9 @@ public class Compiler
                      }
                  });
         }
-        catch (IOException e)
+        catch (IOException | UncheckedIOException e)
         {
+            // A file removed during the walk, e.g. by a process still exiting
             System.err.println("Warning: Failed to clean up " + directory);
         }
     }
@@ -0,0 +1,138 @@
+package se.ciserver.build;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Holds the most recent output lines of a running build in a fixed size
+ * ring, so that the output can be followed live while the build runs.
+ * Every line gets a sequence number; readers ask for the lines from a
+ * sequence number on and learn if older lines were already overwritten.
+ */
+public class LogBuffer
+{
+    private final String[] ring;
+
+    private long    appended = 0;
+    private boolean closed   = false;
+
+    /**
+     * Constructs a LogBuffer.
+     *
+     * @param capacity The number of most recent lines kept
+     */
+    public LogBuffer(int capacity)
+    {
+        if (capacity < 1)
+        {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.ring = new String[capacity];
+    }
+
+    /**
+     * Adds a line of output, overwriting the oldest line if the buffer is
+     * full, and wakes up waiting readers.
+     *
+     * @param line The output line
+     */
+    public synchronized void append(String line)
+    {
+        if (closed)
+        {
+            return;
+        }
+        ring[(int) (appended % ring.length)] = line;
+        appended++;
+        notifyAll();
+    }
+
+    /**
+     * Marks the output as complete and wakes up waiting readers.
+     */
+    public synchronized void close()
+    {
+        closed = true;
+        notifyAll();
+    }
+
+    /**
+     * Returns the lines from a sequence number on without waiting.
+     *
+     * @param from The sequence number of the first wanted line
+     * @param max  The maximum number of lines returned
+     *
+     * @return The available lines
+     */
+    public synchronized Chunk read(long from, int max)
+    {
+        long first = Math.max(from, appended - ring.length);
+        long end   = Math.min(appended, first + max);
+
+        List<String> lines = new ArrayList<>((int) Math.max(0, end - first));
+        for (long seq = first; seq < end; seq++)
+        {
+            lines.add(ring[(int) (seq % ring.length)]);
+        }
+        return new Chunk(first, lines, closed && end == appended);
+    }
+
+    /**
+     * Returns the lines from a sequence number on, waiting for new lines
+     * if there are none yet.
+     *
+     * @param from          The sequence number of the first wanted line
+     * @param max           The maximum number of lines returned
+     * @param timeoutMillis The maximum time to wait for a line
+     *
+     * @return The available lines, empty if the timeout elapsed or the output is complete
+     *
+     * @throws InterruptedException If the wait is interrupted
+     */
+    public synchronized Chunk await(long from, int max, long timeoutMillis) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+
+        while (from >= appended && !closed)
+        {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0)
+            {
+                break;
+            }
+            wait(remaining);
+        }
+        return read(from, max);
+    }
+
+    /**
+     * A run of consecutive lines read from a LogBuffer.
+     */
+    public static final class Chunk
+    {
+        /** Sequence number of the first line; larger than requested if lines were overwritten. */
+        public final long         first;
+        /** The lines, oldest first. */
+        public final List<String> lines;
+        /** Whether the output is complete and no line follows this chunk. */
+        public final boolean      complete;
+
+        Chunk(long first, List<String> lines, boolean complete)
+        {
+            this.first    = first;
+            this.lines    = Collections.unmodifiableList(lines);
+            this.complete = complete;
+        }
+
+        /**
+         * Returns the sequence number of the line following this chunk.
+         *
+         * @return The sequence number to read from next
+         */
+        public long next()
+        {
+            return first + lines.size();
+        }
+    }
+}
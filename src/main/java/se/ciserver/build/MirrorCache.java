@@ -0,0 +1,123 @@
+package se.ciserver.build;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Locates the persistent bare mirrors of the built repositories. Each
+ * clone URL gets its own {@code git clone --mirror} directory below the
+ * cache root, which builds update with an incremental fetch instead of
+ * cloning the repository again.
+ */
+public class MirrorCache
+{
+    private final Path root;
+    private final ConcurrentMap<String, Object> locks = new ConcurrentHashMap<>();
+
+    /**
+     * Constructs a MirrorCache storing its mirrors below the given directory.
+     *
+     * @param root The directory holding the mirrors, created on first use
+     */
+    public MirrorCache(Path root)
+    {
+        this.root = root;
+    }
+
+    /**
+     * Returns the mirror directory of a repository, named after the
+     * repository and a hash of its clone URL.
+     *
+     * @param cloneUrl The clone URL of the repository
+     *
+     * @return The path of the bare mirror for the repository
+     */
+    public Path mirrorPath(String cloneUrl)
+    {
+        return root.resolve(directoryName(cloneUrl) + ".git");
+    }
+
+    /**
+     * Returns whether a mirror has already been cloned for the repository.
+     *
+     * @param cloneUrl The clone URL of the repository
+     *
+     * @return True if the mirror exists
+     */
+    public boolean exists(String cloneUrl)
+    {
+        return Files.isRegularFile(mirrorPath(cloneUrl).resolve("HEAD"));
+    }
+
+    /**
+     * Returns the lock guarding clones and fetches of a repository's
+     * mirror, so that concurrent builds of one repository never update
+     * the same mirror at the same time.
+     *
+     * @param cloneUrl The clone URL of the repository
+     *
+     * @return The lock object for the mirror
+     */
+    public Object lockFor(String cloneUrl)
+    {
+        return locks.computeIfAbsent(cloneUrl, url -> new Object());
+    }
+
+    /**
+     * Returns the directory holding the mirrors.
+     *
+     * @return The cache root
+     */
+    public Path root()
+    {
+        return root;
+    }
+
+    /**
+     * Derives a file system safe directory name for a repository from the
+     * repository name and a hash of the clone URL, so that different URLs
+     * never share a directory.
+     *
+     * @param cloneUrl The clone URL of the repository
+     *
+     * @return The directory name, e.g. {@code Continuous_Integration-0123456789abcdef}
+     */
+    static String directoryName(String cloneUrl)
+    {
+        String name = cloneUrl.replaceAll("/+$", "").replaceAll("\\.git$", "");
+        name = name.substring(name.lastIndexOf('/') + 1).replaceAll("[^A-Za-z0-9._-]", "_");
+
+        return name + "-" + hash(cloneUrl);
+    }
+
+    /**
+     * Hashes a clone URL into a short, file system safe string.
+     *
+     * @param cloneUrl The clone URL
+     *
+     * @return The first 16 hex digits of the SHA-1 of the URL
+     */
+    private static String hash(String cloneUrl)
+    {
+        try
+        {
+            byte[] digest = MessageDigest.getInstance("SHA-1")
+                                         .digest(cloneUrl.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (int i = 0; i < 8; i++)
+            {
+                hex.append(String.format("%02x", digest[i]));
+            }
+            return hex.toString();
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        }
+    }
+}
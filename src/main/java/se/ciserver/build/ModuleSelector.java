@@ -0,0 +1,197 @@
+package se.ciserver.build;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Maps the files changed by a push to the Maven modules that contain
+ * them, so that a build of a multi-module project only has to build and
+ * test those modules, the modules they depend on ({@code -am}) and the
+ * modules depending on them ({@code -amd}).
+ *
+ * <p>The modules are read from the {@code <modules>} of the checked out
+ * root {@code pom.xml} and of its modules in turn. A changed file
+ * belongs to the innermost module whose directory contains it. The whole
+ * reactor is built instead when a {@code pom.xml} changed, when a file
+ * outside every module changed, e.g. under {@code .mvn/}, or when the
+ * changed files are not known.
+ */
+public final class ModuleSelector
+{
+    private static final String POM = "pom.xml";
+
+    private ModuleSelector()
+    {
+    }
+
+    /**
+     * Returns the modules containing the changed files.
+     *
+     * @param project      The checked out root of the Maven project
+     * @param changedFiles The paths of the changed files relative to the
+     *                     repository root, or null if they are not known
+     *
+     * @return The module directories relative to the project root with
+     *         {@code /} as separator, sorted, or null if the whole reactor
+     *         has to be built
+     */
+    public static List<String> select(Path project, Collection<String> changedFiles)
+    {
+        if (changedFiles == null || changedFiles.isEmpty())
+        {
+            return null;
+        }
+        for (String file : changedFiles)
+        {
+            if (file.equals(POM) || file.endsWith("/" + POM))
+            {
+                return null;
+            }
+        }
+
+        List<String> modules;
+        try
+        {
+            modules = new ArrayList<>();
+            readModules(project, project, modules);
+        }
+        catch (Exception e)
+        {
+            // A project Maven can not read the modules of is built whole
+            return null;
+        }
+
+        TreeSet<String> selected = new TreeSet<>();
+        for (String file : changedFiles)
+        {
+            String module = moduleOf(file, modules);
+            if (module == null)
+            {
+                return null;
+            }
+            selected.add(module);
+        }
+        return new ArrayList<>(selected);
+    }
+
+    /**
+     * Returns the innermost module containing a file.
+     *
+     * @param file    The path of the file relative to the project root
+     * @param modules The module directories relative to the project root
+     *
+     * @return The module, or null if the file belongs to the root project
+     */
+    private static String moduleOf(String file, List<String> modules)
+    {
+        String innermost = null;
+        for (String module : modules)
+        {
+            if (file.startsWith(module + "/")
+                && (innermost == null || module.length() > innermost.length()))
+            {
+                innermost = module;
+            }
+        }
+        return innermost;
+    }
+
+    /**
+     * Adds the modules of a project and of its modules, recursively.
+     * Modules declared only in profiles are left out, as they may not be
+     * part of the reactor.
+     *
+     * @param root    The root of the Maven project
+     * @param project The directory of the project whose modules are read
+     * @param modules Receives the module directories relative to the root
+     *
+     * @throws Exception If a {@code pom.xml} can not be read
+     */
+    private static void readModules(Path root, Path project, List<String> modules) throws Exception
+    {
+        Element modulesElement = child(parse(project.resolve(POM)).getDocumentElement(), "modules");
+        if (modulesElement == null)
+        {
+            return;
+        }
+
+        for (Node node = modulesElement.getFirstChild(); node != null; node = node.getNextSibling())
+        {
+            if (!(node instanceof Element) || !"module".equals(node.getNodeName()))
+            {
+                continue;
+            }
+
+            // A module is a directory or the pom file inside it
+            Path module = project.resolve(node.getTextContent().trim()).normalize();
+            if (!Files.isDirectory(module))
+            {
+                module = module.getParent();
+            }
+            if (module == null || !module.startsWith(root) || module.equals(root)
+                || !Files.isRegularFile(module.resolve(POM)))
+            {
+                continue;
+            }
+
+            String relative = root.relativize(module).toString().replace('\\', '/');
+            if (!modules.contains(relative))
+            {
+                modules.add(relative);
+                readModules(root, module, modules);
+            }
+        }
+    }
+
+    /**
+     * Parses a {@code pom.xml} without resolving DTDs or external entities.
+     *
+     * @param pom The file
+     *
+     * @return The document
+     *
+     * @throws Exception If the file can not be read or parsed
+     */
+    private static Document parse(Path pom) throws Exception
+    {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+        factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+        factory.setExpandEntityReferences(false);
+
+        DocumentBuilder builder = factory.newDocumentBuilder();
+        return builder.parse(pom.toFile());
+    }
+
+    /**
+     * Returns the first child element with a name.
+     *
+     * @param parent The parent element
+     * @param name   The element name
+     *
+     * @return The child, or null if there is none
+     */
+    private static Element child(Element parent, String name)
+    {
+        for (Node node = parent.getFirstChild(); node != null; node = node.getNextSibling())
+        {
+            if (node instanceof Element && name.equals(node.getNodeName()))
+            {
+                return (Element) node;
+            }
+        }
+        return null;
+    }
+}
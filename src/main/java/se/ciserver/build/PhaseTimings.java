@@ -0,0 +1,67 @@
+package se.ciserver.build;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Records how long each phase of a build took, measured with the
+ * monotonic clock ({@link System#nanoTime()}) so that wall clock
+ * adjustments during a build do not distort the timings. Phases are
+ * kept in the order they were first recorded; recording a phase again
+ * adds to its time, e.g. when a step is retried.
+ */
+public class PhaseTimings
+{
+    /** Time from the push being queued until a worker started the build. */
+    public static final String QUEUE    = "queue";
+    /** Updating the persistent mirror of the repository. */
+    public static final String FETCH    = "fetch";
+    /** Cloning the repository into the build directory. */
+    public static final String CLONE    = "clone";
+    /** Checking out the pushed commit. */
+    public static final String CHECKOUT = "checkout";
+    /** Maven up to the first test lifecycle step, including dependency resolution. */
+    public static final String COMPILE  = "compile";
+    /** Maven from the first test lifecycle step on. */
+    public static final String TEST     = "test";
+    /** Deleting the build directory. */
+    public static final String CLEANUP  = "cleanup";
+
+    private final Map<String, Long> nanos = new LinkedHashMap<>();
+
+    /**
+     * Records a phase that started at the given time and ends now.
+     *
+     * @param phase      The name of the phase
+     * @param startNanos The {@link System#nanoTime()} at which the phase started
+     */
+    public void record(String phase, long startNanos)
+    {
+        record(phase, startNanos, System.nanoTime());
+    }
+
+    /**
+     * Records a phase between two times.
+     *
+     * @param phase      The name of the phase
+     * @param startNanos The {@link System#nanoTime()} at which the phase started
+     * @param endNanos   The {@link System#nanoTime()} at which the phase ended
+     */
+    public synchronized void record(String phase, long startNanos, long endNanos)
+    {
+        nanos.merge(phase, Math.max(0, endNanos - startNanos), Long::sum);
+    }
+
+    /**
+     * Returns the recorded phases in milliseconds.
+     *
+     * @return An unmodifiable map from phase name to milliseconds, in recording order
+     */
+    public synchronized Map<String, Long> toMillis()
+    {
+        Map<String, Long> millis = new LinkedHashMap<>();
+        nanos.forEach((phase, time) -> millis.put(phase, time / 1_000_000));
+        return Collections.unmodifiableMap(millis);
+    }
+}
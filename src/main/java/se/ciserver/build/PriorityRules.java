@@ -0,0 +1,187 @@
+package se.ciserver.build;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Assigns a priority to each build from a list of rules matching the
+ * repository and branch of the build. The first matching rule wins and
+ * builds matching no rule get priority 0; higher priorities are built
+ * first.
+ *
+ * <p>Rules are written as a comma separated list of
+ * {@code [<owner>/<repo>:]<branch>=<priority>}, where the repository
+ * and branch are glob patterns ({@code *} matches any text, {@code ?}
+ * one character), the branch is given without {@code refs/heads/} and
+ * {@code @default} stands for the default branch of the repository,
+ * e.g. {@code @default=10,release/*=5,joss2/Continuous_Integration:docs/*=-5}.
+ */
+public class PriorityRules
+{
+    /** Branch pattern standing for the repository's default branch. */
+    public static final String DEFAULT_BRANCH = "@default";
+
+    private static final String HEADS = "refs/heads/";
+
+    private final List<Rule> rules;
+
+    /**
+     * Constructs PriorityRules.
+     *
+     * @param rules The rules in the order they are tried
+     */
+    private PriorityRules(List<Rule> rules)
+    {
+        this.rules = Collections.unmodifiableList(rules);
+    }
+
+    /**
+     * Parses a list of rules.
+     *
+     * @param spec The comma separated rules, may be empty
+     *
+     * @return The rules
+     *
+     * @throws IllegalArgumentException If a rule has no valid priority
+     */
+    public static PriorityRules parse(String spec)
+    {
+        List<Rule> rules = new ArrayList<>();
+
+        for (String entry : spec.split(","))
+        {
+            entry = entry.trim();
+            if (entry.isEmpty())
+            {
+                continue;
+            }
+
+            int equals = entry.lastIndexOf('=');
+            if (equals <= 0)
+            {
+                throw new IllegalArgumentException("Priority rule without priority: " + entry);
+            }
+
+            int priority;
+            try
+            {
+                priority = Integer.parseInt(entry.substring(equals + 1).trim());
+            }
+            catch (NumberFormatException e)
+            {
+                throw new IllegalArgumentException("Invalid priority in rule: " + entry, e);
+            }
+
+            String pattern = entry.substring(0, equals).trim();
+            int    colon   = pattern.indexOf(':');
+            String repo    = colon < 0 ? null : pattern.substring(0, colon).trim();
+            String branch  = colon < 0 ? pattern : pattern.substring(colon + 1).trim();
+
+            rules.add(new Rule(repo == null ? null : glob(repo), branch, priority));
+        }
+
+        return new PriorityRules(rules);
+    }
+
+    /**
+     * Returns the priority of a build.
+     *
+     * @param job The build
+     *
+     * @return The priority of the first rule matching the build, or 0
+     */
+    public int priorityOf(BuildJob job)
+    {
+        String repository    = job.repository();
+        String defaultBranch = job.push == null ? null : job.push.repository.default_branch;
+        String branch        = job.branch.startsWith(HEADS)
+            ? job.branch.substring(HEADS.length())
+            : job.branch;
+
+        for (Rule rule : rules)
+        {
+            if (rule.matches(repository, branch, defaultBranch))
+            {
+                return rule.priority;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the number of rules.
+     *
+     * @return The number of rules
+     */
+    public int size()
+    {
+        return rules.size();
+    }
+
+    /**
+     * Compiles a glob pattern into a regular expression.
+     *
+     * @param glob The pattern, where {@code *} matches any text and {@code ?} one character
+     *
+     * @return The compiled pattern
+     */
+    static Pattern glob(String glob)
+    {
+        StringBuilder regex = new StringBuilder();
+        StringBuilder text  = new StringBuilder();
+
+        for (char c : glob.toCharArray())
+        {
+            if (c == '*' || c == '?')
+            {
+                if (text.length() > 0)
+                {
+                    regex.append(Pattern.quote(text.toString()));
+                    text.setLength(0);
+                }
+                regex.append(c == '*' ? ".*" : ".");
+            }
+            else
+            {
+                text.append(c);
+            }
+        }
+        if (text.length() > 0)
+        {
+            regex.append(Pattern.quote(text.toString()));
+        }
+
+        return Pattern.compile(regex.toString());
+    }
+
+    /**
+     * A single rule: a repository and branch pattern and the priority of
+     * the builds matching both.
+     */
+    private static class Rule
+    {
+        final Pattern repository;
+        final Pattern branch;
+        final int     priority;
+
+        Rule(Pattern repository, String branchGlob, int priority)
+        {
+            this.repository = repository;
+            this.branch     = DEFAULT_BRANCH.equals(branchGlob) ? null : glob(branchGlob);
+            this.priority   = priority;
+        }
+
+        boolean matches(String repositoryName, String branchName, String defaultBranch)
+        {
+            if (repository != null && !repository.matcher(repositoryName).matches())
+            {
+                return false;
+            }
+            return branch == null
+                ? branchName.equals(defaultBranch)
+                : branch.matcher(branchName).matches();
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package se.ciserver.build;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * The scheduling quotas of each repository: its weight in the fair
+ * sharing of the build workers, the number of its builds that may run
+ * at the same time and the number that may wait in the queue.
+ *
+ * <p>Quotas are read from a properties file with one
+ * {@code <repository>.<setting>=<value>} line per setting, where the
+ * repository is {@code <owner>/<repo>} and {@code *} sets the defaults
+ * of repositories not listed:
+ *
+ * <pre>
+ * *.weight=1
+ * *.maxConcurrent=2
+ * joss2/Continuous_Integration.weight=4
+ * joss2/Continuous_Integration.queueCapacity=20
+ * </pre>
+ */
+public class RepositoryQuotas
+{
+    /** Key of the defaults applying to repositories not listed. */
+    public static final String DEFAULTS = "*";
+
+    /** Quotas giving every repository the same weight and no caps. */
+    public static final RepositoryQuotas NONE = new RepositoryQuotas(new Quota(1, 0, 0), Collections.emptyMap());
+
+    private final Quota              defaults;
+    private final Map<String, Quota> repositories;
+
+    /**
+     * Constructs RepositoryQuotas.
+     *
+     * @param defaults     The quota of repositories not listed
+     * @param repositories The quotas of the listed repositories
+     */
+    private RepositoryQuotas(Quota defaults, Map<String, Quota> repositories)
+    {
+        this.defaults     = defaults;
+        this.repositories = repositories;
+    }
+
+    /**
+     * Reads the quotas from a properties file.
+     *
+     * @param file The file
+     *
+     * @return The quotas
+     *
+     * @throws IOException              If the file can not be read
+     * @throws IllegalArgumentException If a line has an unknown setting or an invalid value
+     */
+    public static RepositoryQuotas load(Path file) throws IOException
+    {
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8))
+        {
+            properties.load(reader);
+        }
+        return parse(properties);
+    }
+
+    /**
+     * Builds the quotas from properties.
+     *
+     * @param properties The {@code <repository>.<setting>} properties
+     *
+     * @return The quotas
+     *
+     * @throws IllegalArgumentException If a property has an unknown setting or an invalid value
+     */
+    public static RepositoryQuotas parse(Properties properties)
+    {
+        Map<String, int[]> settings = new HashMap<>();
+
+        for (String key : properties.stringPropertyNames())
+        {
+            int dot = key.lastIndexOf('.');
+            if (dot <= 0)
+            {
+                throw new IllegalArgumentException("Quota without repository: " + key);
+            }
+
+            String repository = key.substring(0, dot);
+            int[]  values     = settings.computeIfAbsent(repository, k -> new int[] { -1, -1, -1 });
+            int    value      = parseValue(key, properties.getProperty(key));
+
+            switch (key.substring(dot + 1))
+            {
+                case "weight":        values[0] = value; break;
+                case "maxConcurrent": values[1] = value; break;
+                case "queueCapacity": values[2] = value; break;
+                default:
+                    throw new IllegalArgumentException("Unknown quota setting: " + key);
+            }
+        }
+
+        Quota              defaults = merge(settings.remove(DEFAULTS), NONE.defaults);
+        Map<String, Quota> quotas   = new HashMap<>();
+        settings.forEach((repository, values) -> quotas.put(repository, merge(values, defaults)));
+
+        return new RepositoryQuotas(defaults, quotas);
+    }
+
+    /**
+     * Returns the quota of a repository.
+     *
+     * @param repository The repository, see {@link BuildJob#repository()}
+     *
+     * @return Its quota, or the defaults if it is not listed
+     */
+    public Quota quotaFor(String repository)
+    {
+        return repositories.getOrDefault(repository, defaults);
+    }
+
+    /**
+     * Returns the number of repositories with their own quota.
+     *
+     * @return The number of listed repositories
+     */
+    public int size()
+    {
+        return repositories.size();
+    }
+
+    /**
+     * Fills the settings missing for a repository from the defaults.
+     *
+     * @param values   The weight, cap and capacity, -1 where unset, or null
+     * @param defaults The defaults
+     *
+     * @return The quota
+     */
+    private static Quota merge(int[] values, Quota defaults)
+    {
+        if (values == null)
+        {
+            return defaults;
+        }
+        if (values[0] == 0)
+        {
+            throw new IllegalArgumentException("Repository weight must be positive");
+        }
+
+        return new Quota(values[0] < 0 ? defaults.weight        : values[0],
+                         values[1] < 0 ? defaults.maxConcurrent : values[1],
+                         values[2] < 0 ? defaults.queueCapacity : values[2]);
+    }
+
+    /**
+     * Parses a non-negative quota value.
+     *
+     * @param key   The property name
+     * @param value The property value
+     *
+     * @return The value
+     *
+     * @throws IllegalArgumentException If the value is not a non-negative integer
+     */
+    private static int parseValue(String key, String value)
+    {
+        try
+        {
+            int parsed = Integer.parseInt(value.trim());
+            if (parsed >= 0)
+            {
+                return parsed;
+            }
+        }
+        catch (NumberFormatException e)
+        {
+            /* reported below */
+        }
+        throw new IllegalArgumentException("Invalid value for " + key + ": " + value);
+    }
+
+    /**
+     * The quota of one repository.
+     */
+    public static final class Quota
+    {
+        /** Share of the build workers relative to the other repositories. */
+        public final int weight;
+        /** Maximum number of builds running at the same time, 0 for no cap. */
+        public final int maxConcurrent;
+        /** Maximum number of builds waiting in the queue, 0 for only the server-wide cap. */
+        public final int queueCapacity;
+
+        /**
+         * Constructs a Quota.
+         *
+         * @param weight        Share of the build workers relative to the other repositories
+         * @param maxConcurrent Maximum number of builds running at the same time, 0 for no cap
+         * @param queueCapacity Maximum number of builds waiting, 0 for only the server-wide cap
+         */
+        public Quota(int weight, int maxConcurrent, int queueCapacity)
+        {
+            this.weight        = weight;
+            this.maxConcurrent = maxConcurrent;
+            this.queueCapacity = queueCapacity;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package se.ciserver.build;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+
+/**
+ * Entry point of a long-lived build JVM started by {@link WarmRunnerPool}.
+ * The JVM keeps Maven's classes loaded and JIT-compiled between builds
+ * and runs each build in-process through Maven's {@code MavenCli}.
+ *
+ * <p>Requests are read from stdin, one per line: the working directory
+ * followed by the Maven arguments, separated by tabs. The build output
+ * is written to stdout and terminated by a line starting with
+ * {@link #EXIT_MARKER} followed by the exit code.
+ */
+public final class WarmMavenRunner
+{
+    /** Prefix of the line that ends the output of a build. */
+    public static final String EXIT_MARKER = "\u0001ci-exit ";
+    /** Prefix of the line reporting that Maven could not be run at all. */
+    public static final String FAILURE_PREFIX = "Warm runner failed: ";
+
+    /**
+     * Constructor to prevent instantiation.
+     */
+    private WarmMavenRunner() {}
+
+    /**
+     * Serves build requests until stdin is closed.
+     *
+     * @param args Unused
+     *
+     * @throws Exception If stdin can not be read
+     */
+    public static void main(String[] args) throws Exception
+    {
+        PrintStream    out = System.out;
+        BufferedReader in  = new BufferedReader(new InputStreamReader(System.in));
+
+        String request;
+        while ((request = in.readLine()) != null)
+        {
+            if (request.isEmpty())
+            {
+                continue;
+            }
+
+            String[] parts   = request.split("\t");
+            String   workDir = parts[0];
+            String[] mvnArgs = Arrays.copyOfRange(parts, 1, parts.length);
+
+            int exitCode;
+            try
+            {
+                exitCode = runMaven(workDir, mvnArgs, out);
+            }
+            catch (Exception e)
+            {
+                out.println(FAILURE_PREFIX + e);
+                exitCode = 1;
+            }
+
+            out.flush();
+            out.println(EXIT_MARKER + exitCode);
+            out.flush();
+        }
+    }
+
+    /**
+     * Runs one Maven build in this JVM.
+     *
+     * @param workDir The directory containing the Maven project
+     * @param args    The Maven command line arguments
+     * @param out     Receives the build output
+     *
+     * @return The Maven exit code
+     *
+     * @throws ReflectiveOperationException If Maven is not on the class path
+     */
+    private static int runMaven(String workDir, String[] args, PrintStream out)
+            throws ReflectiveOperationException
+    {
+        // Maven 3.x refuses to start without this property, normally set by the mvn script
+        System.setProperty("maven.multiModuleProjectDirectory", workDir);
+
+        Class<?> cliClass = Class.forName("org.apache.maven.cli.MavenCli");
+        Object   cli      = cliClass.getDeclaredConstructor().newInstance();
+        Method   doMain   = cliClass.getMethod("doMain", String[].class, String.class,
+                                               PrintStream.class, PrintStream.class);
+        try
+        {
+            return (Integer) doMain.invoke(cli, args, workDir, out, out);
+        }
+        catch (InvocationTargetException e)
+        {
+            out.println("Maven failed: " + e.getCause());
+            return 1;
+        }
+    }
+}
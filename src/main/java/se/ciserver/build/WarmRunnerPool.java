@@ -0,0 +1,369 @@
+package se.ciserver.build;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A small pool of long-lived build JVMs running {@link WarmMavenRunner}.
+ * Builds are sent to an idle runner instead of starting a cold
+ * {@code mvn} process, which saves JVM startup, Maven class loading and
+ * JIT warm-up on every build. Runners are started lazily, replaced when
+ * they die or are killed, and recycled after a fixed number of builds.
+ */
+public class WarmRunnerPool
+{
+    /** Number of builds after which a runner is replaced to bound leaks. */
+    static final int MAX_BUILDS_PER_RUNNER = 50;
+
+    private final int          size;
+    private final List<String> runnerCommand;
+    private final Deque<Runner> idle = new ArrayDeque<>();
+
+    private int     started  = 0;
+    private int     live     = 0;
+    private boolean shutdown = false;
+
+    /**
+     * Constructs a WarmRunnerPool.
+     *
+     * @param size          The maximum number of runner JVMs
+     * @param runnerCommand The command starting one runner JVM
+     */
+    public WarmRunnerPool(int size, List<String> runnerCommand)
+    {
+        if (size < 1)
+        {
+            throw new IllegalArgumentException("Pool size must be positive");
+        }
+
+        this.size          = size;
+        this.runnerCommand = new ArrayList<>(runnerCommand);
+    }
+
+    /**
+     * Creates a pool whose runners load Maven from the given installation.
+     *
+     * @param size      The maximum number of runner JVMs
+     * @param mavenHome The Maven installation directory
+     *
+     * @return The pool
+     *
+     * @throws IOException If the Maven installation can not be read
+     */
+    public static WarmRunnerPool forMavenHome(int size, Path mavenHome) throws IOException
+    {
+        return forMavenHome(size, mavenHome, 0);
+    }
+
+    /**
+     * Creates a pool whose runners load Maven from the given installation
+     * and run with a fixed heap. The heap of a runner JVM can not change
+     * between builds, so it is set once for all builds it serves.
+     *
+     * @param size      The maximum number of runner JVMs
+     * @param mavenHome The Maven installation directory
+     * @param heapMb    The maximum heap of each runner in MB, or 0 for the JVM default
+     *
+     * @return The pool
+     *
+     * @throws IOException If the Maven installation can not be read
+     */
+    public static WarmRunnerPool forMavenHome(int size, Path mavenHome, long heapMb) throws IOException
+    {
+        List<String> classPath = new ArrayList<>();
+        classPath.add(ownClassPath());
+        // Maven's logger configuration, so output looks like a normal mvn run
+        classPath.add(mavenHome.resolve("conf").resolve("logging").toString());
+
+        for (String dir : new String[] { "boot", "lib" })
+        {
+            try (Stream<Path> jars = Files.list(mavenHome.resolve(dir)))
+            {
+                classPath.addAll(jars.filter(jar -> jar.toString().endsWith(".jar"))
+                                     .map(Path::toString)
+                                     .sorted()
+                                     .collect(Collectors.toList()));
+            }
+        }
+
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        if (heapMb > 0)
+        {
+            command.add("-Xmx" + heapMb + "m");
+        }
+        command.add("-Dmaven.home=" + mavenHome);
+        command.add("-Dmaven.conf=" + mavenHome.resolve("conf"));
+        command.add("-Dfile.encoding=UTF-8");
+        command.add("-cp");
+        command.add(String.join(File.pathSeparator, classPath));
+        command.add(WarmMavenRunner.class.getName());
+
+        return new WarmRunnerPool(size, command);
+    }
+
+    /**
+     * Finds the Maven installation from {@code MAVEN_HOME}, {@code M2_HOME}
+     * or the location of {@code mvn} on the {@code PATH}.
+     *
+     * @return The Maven installation directory, or null if none is found
+     */
+    public static Path detectMavenHome()
+    {
+        for (String variable : new String[] { "MAVEN_HOME", "M2_HOME" })
+        {
+            String value = System.getenv(variable);
+            if (value != null && !value.isBlank())
+            {
+                return Paths.get(value);
+            }
+        }
+
+        String path = System.getenv("PATH");
+        if (path == null)
+        {
+            return null;
+        }
+
+        for (String dir : path.split(File.pathSeparator))
+        {
+            Path mvn = Paths.get(dir, "mvn");
+            if (Files.isExecutable(mvn))
+            {
+                try
+                {
+                    // <home>/bin/mvn, following symlinks from e.g. /usr/bin
+                    return mvn.toRealPath().getParent().getParent();
+                }
+                catch (IOException e)
+                {
+                    /* try the next PATH entry */
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Runs one build on a warm runner, waiting for a runner to become
+     * available if all of them are busy. The runner process is attached
+     * to the job, so superseding the job kills the runner.
+     *
+     * @param job     The build the Maven run belongs to
+     * @param workDir The directory containing the Maven project
+     * @param output  Receives the build output line by line
+     * @param args    The Maven arguments
+     *
+     * @return The Maven exit code
+     *
+     * @throws IOException          If the runner can not be started or dies
+     * @throws InterruptedException If waiting for a runner is interrupted
+     */
+    public int run(BuildJob job, Path workDir, Consumer<String> output, String... args)
+            throws IOException, InterruptedException
+    {
+        Runner runner = acquire();
+        boolean reusable = false;
+
+        try
+        {
+            job.attach(runner.process);
+
+            StringBuilder request = new StringBuilder(workDir.toAbsolutePath().toString());
+            for (String arg : args)
+            {
+                request.append('\t').append(arg);
+            }
+            runner.input.write(request.append('\n').toString());
+            runner.input.flush();
+
+            String line;
+            while ((line = runner.output.readLine()) != null)
+            {
+                if (line.startsWith(WarmMavenRunner.EXIT_MARKER))
+                {
+                    runner.builds++;
+                    reusable = runner.builds < MAX_BUILDS_PER_RUNNER;
+                    return Integer.parseInt(line.substring(WarmMavenRunner.EXIT_MARKER.length()).trim());
+                }
+                output.accept(line);
+            }
+
+            throw new IOException("Warm runner exited unexpectedly");
+        }
+        finally
+        {
+            job.attach(null);
+            release(runner, reusable);
+        }
+    }
+
+    /**
+     * Returns the number of runner JVMs started so far.
+     *
+     * @return The number of runners started since the pool was created
+     */
+    public synchronized int startedCount()
+    {
+        return started;
+    }
+
+    /**
+     * Stops all idle runners and prevents new ones from starting.
+     * Busy runners are stopped when their build finishes.
+     */
+    public void shutdown()
+    {
+        List<Runner> stopping;
+
+        synchronized (this)
+        {
+            shutdown = true;
+            stopping = new ArrayList<>(idle);
+            idle.clear();
+            notifyAll();
+        }
+
+        for (Runner runner : stopping)
+        {
+            runner.destroy();
+        }
+    }
+
+    /**
+     * Takes an idle runner, starting a new one if the pool is not full.
+     *
+     * @return A runner reserved for the caller
+     *
+     * @throws IOException          If a runner can not be started
+     * @throws InterruptedException If waiting for a runner is interrupted
+     */
+    private Runner acquire() throws IOException, InterruptedException
+    {
+        synchronized (this)
+        {
+            while (true)
+            {
+                if (shutdown)
+                {
+                    throw new IOException("Warm runner pool is shut down");
+                }
+
+                Runner runner = idle.pollFirst();
+                if (runner != null && runner.process.isAlive())
+                {
+                    return runner;
+                }
+                if (runner != null)
+                {
+                    live--;
+                    continue;
+                }
+                if (live < size)
+                {
+                    live++;
+                    started++;
+                    break;
+                }
+                wait();
+            }
+        }
+
+        // Start the JVM outside the lock
+        try
+        {
+            return new Runner(new ProcessBuilder(runnerCommand).redirectErrorStream(true).start());
+        }
+        catch (IOException e)
+        {
+            synchronized (this)
+            {
+                live--;
+                notifyAll();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Returns a runner to the pool, or stops it if it can not be reused.
+     *
+     * @param runner   The runner
+     * @param reusable Whether the runner finished its build cleanly
+     */
+    private void release(Runner runner, boolean reusable)
+    {
+        synchronized (this)
+        {
+            if (reusable && !shutdown && runner.process.isAlive())
+            {
+                idle.addFirst(runner);
+                notifyAll();
+                return;
+            }
+            live--;
+            notifyAll();
+        }
+        runner.destroy();
+    }
+
+    /**
+     * Returns the class path entry containing this class, so that the
+     * runner JVMs can load {@link WarmMavenRunner}.
+     *
+     * @return The directory or jar this class was loaded from
+     */
+    private static String ownClassPath()
+    {
+        try
+        {
+            return Paths.get(WarmMavenRunner.class.getProtectionDomain()
+                                                  .getCodeSource().getLocation().toURI()).toString();
+        }
+        catch (URISyntaxException e)
+        {
+            throw new IllegalStateException("Can not locate the server classes", e);
+        }
+    }
+
+    /**
+     * A running runner JVM and the pipes connected to it.
+     */
+    private static class Runner
+    {
+        final Process        process;
+        final Writer         input;
+        final BufferedReader output;
+        int                  builds = 0;
+
+        Runner(Process process)
+        {
+            this.process = process;
+            this.input   = new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8);
+            this.output  = new BufferedReader(
+                new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+        }
+
+        void destroy()
+        {
+            process.descendants().forEach(ProcessHandle::destroyForcibly);
+            process.destroyForcibly();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package se.ciserver.build;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Leases persistent per-repository workspaces to builds. A workspace
+ * keeps its checkout and build output between builds, so that the next
+ * build of the repository only has to fetch the new commits, reset the
+ * checkout and recompile what changed. Each workspace is leased to one
+ * build at a time, so a repository has as many workspaces as it ever
+ * had builds running at the same time.
+ *
+ * <p>Workspaces live in {@code <root>/<repository>/<n>} and survive
+ * restarts of the server.
+ */
+public class WorkspacePool
+{
+    private final Path         root;
+    private final List<String> cleanExcludes;
+    private final Set<Path>    leased = new HashSet<>();
+
+    /**
+     * Constructs a WorkspacePool.
+     *
+     * @param root          The directory holding the workspaces, created on first use
+     * @param cleanExcludes The patterns {@code git clean} keeps when a
+     *                      workspace is reset, e.g. {@code target/}
+     */
+    public WorkspacePool(Path root, List<String> cleanExcludes)
+    {
+        this.root          = root;
+        this.cleanExcludes = new ArrayList<>(cleanExcludes);
+    }
+
+    /**
+     * Leases a workspace of a repository, preferring one that already
+     * holds a checkout. Workspaces are numbered from 1 and the scan stops
+     * at the first number without a directory, which is used if no
+     * checked out workspace is free.
+     *
+     * @param cloneUrl The clone URL of the repository
+     *
+     * @return The leased workspace, to be returned with {@link #release}
+     */
+    public synchronized Lease lease(String cloneUrl)
+    {
+        Path repository = root.resolve(MirrorCache.directoryName(cloneUrl));
+        Path empty      = null;
+
+        for (int n = 1; ; n++)
+        {
+            Path workspace = repository.resolve(String.valueOf(n));
+            if (leased.contains(workspace))
+            {
+                continue;
+            }
+
+            if (Files.isDirectory(workspace.resolve(".git")))
+            {
+                leased.add(workspace);
+                return new Lease(workspace, false);
+            }
+
+            // Remember the first free workspace without a usable checkout
+            if (empty == null)
+            {
+                empty = workspace;
+            }
+            if (!Files.exists(workspace))
+            {
+                break;
+            }
+        }
+
+        leased.add(empty);
+        return new Lease(empty, true);
+    }
+
+    /**
+     * Returns a leased workspace to the pool.
+     *
+     * @param lease The lease returned by {@link #lease}
+     */
+    public synchronized void release(Lease lease)
+    {
+        leased.remove(lease.directory);
+    }
+
+    /**
+     * Returns the number of workspaces currently leased.
+     *
+     * @return The number of builds using a workspace
+     */
+    public synchronized int leasedCount()
+    {
+        return leased.size();
+    }
+
+    /**
+     * Returns the patterns kept when a workspace is reset.
+     *
+     * @return The {@code git clean} exclusions
+     */
+    public List<String> cleanExcludes()
+    {
+        return cleanExcludes;
+    }
+
+    /**
+     * A workspace leased to a build.
+     */
+    public static final class Lease
+    {
+        /** The workspace directory. */
+        public final Path directory;
+        /** Whether the workspace holds no checkout yet and has to be cloned. */
+        public final boolean fresh;
+
+        /**
+         * Constructs a Lease.
+         *
+         * @param directory The workspace directory
+         * @param fresh     Whether the workspace has to be cloned
+         */
+        Lease(Path directory, boolean fresh)
+        {
+            this.directory = directory;
+            this.fresh     = fresh;
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package se.ciserver.buildlist;
 
 import java.time.Instant;
+import java.util.Map;
 import java.util.UUID;
 
 /**
@@ -13,7 +14,29 @@ public class Build {
     public String branch;
     public String timestamp;
     public Boolean status;
+    /** Build output, only held until the build is stored; see {@link BuildStore#readLog(Build)}. */
     public String log;
+    /** Name of the compressed log file in the log store, or null if the log is inline. */
+    public String logFile;
+    /** Whether the tests passed, or null for builds recorded before this was tracked. */
+    public Boolean testStatus;
+    /** Git tree id of the built commit, or null if unknown. */
+    public String treeId;
+    /**
+     * Whether Maven ran to completion, so the result describes the tree;
+     * null if the build failed on its infrastructure, e.g. a failed clone.
+     */
+    public Boolean completed;
+    /** Whether only the modules changed by the push were built, or null if the whole tree was. */
+    public Boolean partial;
+    /** Whether the build reused the compiled output of an earlier build, or null if it built clean. */
+    public Boolean incremental;
+    /** Id of the newer build that superseded this one, or null if it ran to completion. */
+    public String supersededBy;
+    /** Id of the build whose result was reused for this one, or null if it was built. */
+    public String cachedFrom;
+    /** Milliseconds spent in each phase of the build, in order, or null if not recorded. */
+    public Map<String, Long> timings;
 
     /**
      * Default constructor for Build, required for JSON deserialization.
@@ -0,0 +1,78 @@
+package se.ciserver.buildlist;
+
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Filters applied when paging through the build history with
+ * {@link BuildStore#page(BuildQuery, String, int)}. Unset filters match
+ * every build.
+ */
+public class BuildQuery {
+
+    /** Only builds of this branch, or null for all branches. */
+    public String branch;
+    /** Only successful (true) or failed (false) builds, or null for both. */
+    public Boolean status;
+    /** Only builds at or after this instant, or null. */
+    public Instant since;
+    /** Only builds before this instant, or null. */
+    public Instant until;
+
+    /**
+     * Returns whether a build passes all filters of this query.
+     *
+     * @param build The build to test
+     *
+     * @return True if the build matches
+     */
+    public boolean matches(Build build) {
+        if (branch != null && !branch.equals(build.branch)) {
+            return false;
+        }
+        if (status != null && !status.equals(build.status)) {
+            return false;
+        }
+        if (since != null || until != null) {
+            Instant time = parseTimestamp(build.timestamp);
+            if (time == null
+                    || (since != null && time.isBefore(since))
+                    || (until != null && !time.isBefore(until))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether a build is older than {@link #since}. Builds are
+     * recorded in time order, so no older build of the history can
+     * match either.
+     *
+     * @param build The build to test
+     *
+     * @return True if {@code since} is set and the build is before it
+     */
+    public boolean isBeforeSince(Build build) {
+        if (since == null) {
+            return false;
+        }
+        Instant time = parseTimestamp(build.timestamp);
+        return time != null && time.isBefore(since);
+    }
+
+    /**
+     * Parses the ISO 8601 timestamp of a build.
+     *
+     * @param timestamp The timestamp
+     *
+     * @return The instant, or null if the timestamp is missing or invalid
+     */
+    private static Instant parseTimestamp(String timestamp) {
+        try {
+            return timestamp == null ? null : Instant.parse(timestamp);
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+}
@@ -1,24 +1,63 @@
 package se.ciserver.buildlist;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongConsumer;
 
 import se.ciserver.buildlist.Build;  
 
 /**
  * Handles persistent storage of Build history.
+ *
+ * The history file is an append-only journal with one JSON build per
+ * line, so adding a build costs a single small write regardless of the
+ * size of the history. Builds are indexed in memory by id, commit,
+ * branch and tree id; lookups only take a shared read lock. The words of
+ * every build log are kept in a {@link LogSearchIndex} next to the
+ * history, e.g. in {@code build-history-search.idx}.
  */
 public class BuildStore {
 
+    /** Number of replaced journal records tolerated before compacting on load. */
+    private static final int COMPACT_SLACK = 100;
+
     private final File storeFile;
-    private final ObjectMapper mapper = new ObjectMapper();
+    private final LogStore logStore;
+    private final LogSearchIndex searchIndex;
+    private final ObjectMapper mapper = new ObjectMapper()
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL);
     private final List<Build> builds = new ArrayList<>();
+    private final Map<String, Build> byId = new HashMap<>();
+    private final Map<String, Integer> positions = new HashMap<>();
+    private final Map<String, List<Build>> byCommit = new HashMap<>();
+    private final Map<String, List<Build>> byBranch = new HashMap<>();
+    private final Map<String, Build> byTreeId = new HashMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Object journalLock = new Object();
+    private int journalRecords = 0;
+    private volatile LongConsumer saveListener = nanos -> {};
 
     /**
      * Creates a BuildStore pointing at the given file path and loads existing history.
@@ -27,6 +66,13 @@ public class BuildStore {
      */
     public BuildStore(String filePath) {
         this.storeFile = new File(filePath);
+
+        // build-history.json keeps its logs in build-history-logs/
+        Path absolute = storeFile.toPath().toAbsolutePath();
+        String name = absolute.getFileName().toString().replaceFirst("\\.[^.]*$", "");
+        this.logStore = new LogStore(absolute.resolveSibling(name + "-logs"));
+        this.searchIndex = new LogSearchIndex(absolute.resolveSibling(name + "-search.idx"));
+
         load();
     }
 
@@ -35,8 +81,81 @@ public class BuildStore {
      *
      * @return An unmodifiable list of all builds
      */
-    public synchronized List<Build> getAll() {
-        return Collections.unmodifiableList(new ArrayList<>(builds));
+    public List<Build> getAll() {
+        lock.readLock().lock();
+        try {
+            return Collections.unmodifiableList(new ArrayList<>(builds));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns one page of the builds matching a query, newest first.
+     * Only the builds of the page are copied, so the cost does not grow
+     * with the size of the history. The builds of a branch are kept in
+     * history order, so the cursor is found in them by binary search, and
+     * the walk stops at the first build older than {@code since}, since
+     * the history is recorded in time order.
+     *
+     * @param query  The filters the builds must match
+     * @param cursor The id of the last build of the previous page, or null for the first page
+     * @param limit  The maximum number of builds returned
+     *
+     * @return An unmodifiable list of at most {@code limit} builds older than the cursor
+     *
+     * @throws IllegalArgumentException If the cursor is not the id of a stored build
+     */
+    public List<Build> page(BuildQuery query, String cursor, int limit) {
+        lock.readLock().lock();
+        try {
+            int end = builds.size();
+            if (cursor != null) {
+                Integer position = positions.get(cursor);
+                if (position == null) {
+                    throw new IllegalArgumentException("Unknown cursor: " + cursor);
+                }
+                end = position;
+            }
+
+            // Walk only the branch when filtering by branch
+            List<Build> source = builds;
+            if (query.branch != null) {
+                source = byBranch.getOrDefault(query.branch, Collections.emptyList());
+            }
+
+            List<Build> page = new ArrayList<>(Math.min(limit, 64));
+            int start = (source == builds ? end : firstAtOrAfter(source, end)) - 1;
+            for (int i = start; i >= 0 && page.size() < limit; i--) {
+                Build build = source.get(i);
+                if (query.isBeforeSince(build)) {
+                    break;
+                }
+                if (query.matches(build)) {
+                    page.add(build);
+                }
+            }
+            return Collections.unmodifiableList(page);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Searches the logs of all builds for lines holding every word of a
+     * query. The search uses the log index and reads no logs.
+     *
+     * @param query       The words to search for
+     * @param oldestFirst True to return the earliest matching builds first
+     * @param limit       The maximum number of builds returned
+     *
+     * @return The matching builds and lines, newest first unless {@code oldestFirst} is set
+     *
+     * @throws IllegalArgumentException If the query holds no searchable word
+     * @throws IOException              If the search index can not be read
+     */
+    public List<LogSearchIndex.Hit> search(String query, boolean oldestFirst, int limit) throws IOException {
+        return searchIndex.search(query, oldestFirst, limit);
     }
 
     /**
@@ -46,25 +165,379 @@ public class BuildStore {
      *
      * @return The matching Build, or null if no build has the given id
      */
-    public synchronized Build getById(String id) {
-        return builds.stream()
-                .filter(b -> b.id.equals(id))
-                .findFirst()
-                .orElse(null);
+    public Build getById(String id) {
+        lock.readLock().lock();
+        try {
+            return byId.get(id);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the builds of the given commit, oldest first.
+     *
+     * @param commitId The git commit SHA
+     *
+     * @return An unmodifiable list of the matching builds, empty if there are none
+     */
+    public List<Build> getByCommit(String commitId) {
+        return lookup(byCommit, commitId);
     }
 
     /**
-     * Adds a build to history and immediately persists it.
+     * Returns the builds of the given branch, oldest first.
+     *
+     * @param branch The branch name
+     *
+     * @return An unmodifiable list of the matching builds, empty if there are none
+     */
+    public List<Build> getByBranch(String branch) {
+        return lookup(byBranch, branch);
+    }
+
+    /**
+     * Returns the latest build of the given branch.
+     *
+     * @param branch The branch name
+     *
+     * @return The latest Build of the branch, or null if it was never built
+     */
+    public Build getLatestByBranch(String branch) {
+        lock.readLock().lock();
+        try {
+            List<Build> matches = byBranch.get(branch);
+            return matches == null ? null : matches.get(matches.size() - 1);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the latest build of the given git tree whose result can be
+     * reused, i.e. one where Maven ran to completion on the whole tree
+     * from a clean state, rather than one that failed on a clone or an
+     * interrupt, built only the changed modules, reused the compiled
+     * output of an earlier build, was superseded or itself reused the
+     * result of another build.
+     *
+     * @param treeId The git tree id
+     *
+     * @return The matching Build, or null if the tree was never built
+     */
+    public Build getByTreeId(String treeId) {
+        lock.readLock().lock();
+        try {
+            return treeId == null ? null : byTreeId.get(treeId);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the log of a build, reading it from the log store if it is
+     * not held by the build itself.
+     *
+     * @param build The build
+     *
+     * @return The build log, or null if the build has no log
+     */
+    public String readLog(Build build) {
+        if (build.log != null || build.logFile == null) {
+            return build.log;
+        }
+        try {
+            return logStore.read(build.logFile);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Returns the index of a build's stored log, which gives its length
+     * in bytes and lines.
+     *
+     * @param build The build
+     *
+     * @return The index, or null if the build has no log file
+     */
+    public LogIndex logIndex(Build build) {
+        if (build.logFile == null) {
+            return null;
+        }
+        try {
+            return logStore.index(build.logFile);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Opens the stored log of a build for streaming from a byte offset,
+     * decompressing only the part of the log file from that offset on.
+     *
+     * @param build  The build
+     * @param offset The offset of the first byte read
+     *
+     * @return The decompressed log, or null if the build has no log file
+     *
+     * @throws IOException If the log can not be read
+     */
+    public InputStream openLog(Build build, long offset) throws IOException {
+        return build.logFile == null ? null : logStore.open(build.logFile, offset);
+    }
+
+    /**
+     * Reads a page of lines of a build's stored log, decompressing only
+     * the part of the log file that holds it.
+     *
+     * @param build The build
+     * @param from  The number of the first line, starting at 0
+     * @param count The maximum number of lines
+     *
+     * @return The lines, or null if the build has no log file
+     *
+     * @throws IOException If the log can not be read
+     */
+    public List<String> readLogLines(Build build, long from, int count) throws IOException {
+        return build.logFile == null ? null : logStore.readLines(build.logFile, from, count);
+    }
+
+    /**
+     * Adds a build to history and immediately appends it to the journal.
+     * Adding a build with the id of a stored build replaces that build.
+     * The log of the build is moved to the log store, after which the
+     * build only references it and {@link #readLog(Build)} loads it.
+     * The log is added to the search index once the build is stored.
+     * A build that can not be appended to the journal is not added.
      *
      * @param build the Build to store
+     *
+     * @throws UncheckedIOException If the build can not be written to the journal
+     */
+    public void add(Build build) {
+        long start = System.nanoTime();
+        String log = build.log;
+        externalizeLog(build);
+
+        // Journal first, so readers never see a build that is not persisted
+        int position;
+        synchronized (journalLock) {
+            try {
+                append(build);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not store build " + build.id, e);
+            }
+
+            lock.writeLock().lock();
+            try {
+                put(build);
+                position = positions.get(build.id);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        if (!searchIndex.contains(build.id)) {
+            searchIndex.add(build.id, position, log != null ? log : readLog(build));
+        }
+        saveListener.accept(System.nanoTime() - start);
+    }
+
+    /**
+     * Sets a listener told how long every {@link #add(Build)} took,
+     * including writing the log and indexing it.
+     *
+     * @param listener Receives the duration of each save in nanoseconds
+     */
+    public void setSaveListener(LongConsumer listener) {
+        this.saveListener = listener;
+    }
+
+    /**
+     * Moves the log held by a build into the log store.
+     *
+     * @param build The build
+     *
+     * @return True if the build held a log that was moved
+     */
+    private boolean externalizeLog(Build build) {
+        if (build.log == null) {
+            return false;
+        }
+        try {
+            build.logFile = logStore.write(build.id, build.log);
+            build.log = null;
+            return true;
+        } catch (IOException e) {
+            // Keep the log inline rather than losing it
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Returns a copy of the builds listed under a key of an index.
+     *
+     * @param index The index to look in
+     * @param key   The key to look up
+     *
+     * @return An unmodifiable list of the matching builds
+     */
+    private List<Build> lookup(Map<String, List<Build>> index, String key) {
+        lock.readLock().lock();
+        try {
+            List<Build> matches = index.get(key);
+            return matches == null
+                    ? Collections.emptyList()
+                    : Collections.unmodifiableList(new ArrayList<>(matches));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Adds a build to the history list and all indexes, replacing a
+     * stored build with the same id. Must hold the write lock.
+     *
+     * @param build the Build to add
+     */
+    private void put(Build build) {
+        Build previous = byId.put(build.id, build);
+
+        if (previous == null) {
+            positions.put(build.id, builds.size());
+            builds.add(build);
+        } else {
+            // Rare: a build is re-recorded, e.g. after its log was moved
+            builds.set(positions.get(build.id), build);
+            unindex(byCommit, previous.commitId, previous);
+            unindex(byBranch, previous.branch, previous);
+            byTreeId.remove(previous.treeId, previous);
+        }
+
+        if (build.commitId != null) {
+            index(byCommit, build.commitId, build);
+        }
+        if (build.branch != null) {
+            index(byBranch, build.branch, build);
+        }
+        if (build.treeId != null && Boolean.TRUE.equals(build.completed)
+                && !Boolean.TRUE.equals(build.partial)
+                && !Boolean.TRUE.equals(build.incremental)
+                && build.supersededBy == null && build.cachedFrom == null) {
+            byTreeId.put(build.treeId, build);
+        }
+    }
+
+    /**
+     * Adds a build to a multi-valued index, keeping the builds of each
+     * key in history order. Must hold the write lock.
+     *
+     * @param index The index
+     * @param key   The key to list the build under
+     * @param build The build, already at its position in the history
+     */
+    private void index(Map<String, List<Build>> index, String key, Build build) {
+        List<Build> matches = index.computeIfAbsent(key, k -> new ArrayList<>());
+        // A new build is the newest; a re-recorded one goes back to its place
+        matches.add(firstAtOrAfter(matches, positions.get(build.id)), build);
+    }
+
+    /**
+     * Finds the first build of a list in history order that is at or
+     * after a history position. Must hold the lock.
+     *
+     * @param list     Builds in history order
+     * @param position The history position
+     *
+     * @return The index of the first such build, or the size of the list if there is none
      */
-    public synchronized void add(Build build) {
-        builds.add(build);
-        save();
+    private int firstAtOrAfter(List<Build> list, int position) {
+        int low = 0;
+        int high = list.size();
+        if (high > 0 && positions.get(list.get(high - 1).id) < position) {
+            return high;
+        }
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (positions.get(list.get(mid).id) < position) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Removes a build from a multi-valued index.
+     *
+     * @param index The index
+     * @param key   The key the build is listed under
+     * @param build The build to remove
+     */
+    private static void unindex(Map<String, List<Build>> index, String key, Build build) {
+        List<Build> matches = index.get(key);
+        if (matches != null) {
+            matches.remove(build);
+            if (matches.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Rewrites the journal so that it holds exactly one line per build,
+     * dropping torn or superseded records. The new journal is written to
+     * a temporary file and atomically moved over the old one, so a crash
+     * during compaction leaves either the old or the new journal intact.
+     */
+    public void compact() {
+        synchronized (journalLock) {
+            lock.readLock().lock();
+            try {
+                writeCompacted();
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Writes the compacted journal. Must hold the journal lock and the read lock.
+     */
+    private void writeCompacted() {
+        try {
+            Path journal = storeFile.toPath().toAbsolutePath();
+            Path tmp = journal.resolveSibling(journal.getFileName() + ".tmp");
+
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+                for (Build build : builds) {
+                    out.write(journalLine(build));
+                }
+            }
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+            Files.move(tmp, journal, StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+            journalRecords = builds.size();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
     }
 
     /**
      * Loads build history from the backing file if it exists.
+     * The file is a journal with one JSON build per line; a later record
+     * of the same build id replaces an earlier one. A history file in the
+     * old single JSON array format is loaded as well. The journal is
+     * compacted if it was in the old format, held logs inline, had a torn
+     * last line from a crash during an append, or holds many replaced
+     * records.
      * Any exception is printed to the server console.
      */
     private void load() {
@@ -76,26 +549,151 @@ public class BuildStore {
             if (bytes.length == 0) {
                 return;
             }
-            List<Build> loaded = mapper.readValue(
-                    bytes,
-                    new TypeReference<List<Build>>() {}
-            );
-            builds.clear();
-            builds.addAll(loaded);
+
+            boolean needsCompaction;
+            Map<String, Build> loaded = new LinkedHashMap<>();
+
+            if (isLegacyArray(bytes)) {
+                List<Build> legacy = mapper.readValue(
+                        bytes,
+                        new TypeReference<List<Build>>() {}
+                );
+                legacy.forEach(b -> loaded.put(b.id, b));
+                journalRecords = legacy.size();
+                needsCompaction = true;
+            } else {
+                needsCompaction = readJournal(bytes, loaded);
+            }
+
+            for (Build build : loaded.values()) {
+                // Builds recorded before logs were stored separately
+                needsCompaction |= externalizeLog(build);
+                put(build);
+            }
+
+            if (needsCompaction || journalRecords > builds.size() * 2 + COMPACT_SLACK) {
+                writeCompacted();
+            }
+
+            // The index keeps builds at their history positions, so it is
+            // rebuilt if the history no longer matches it
+            List<String> history = new ArrayList<>(builds.size());
+            builds.forEach(b -> history.add(b.id));
+            if (!searchIndex.isConsistentWith(history)) {
+                searchIndex.clear();
+            }
+
+            // Builds stored before the search index existed, or lost from its torn tail
+            for (int position = 0; position < builds.size(); position++) {
+                Build build = builds.get(position);
+                if (!searchIndex.contains(build.id)) {
+                    searchIndex.add(build.id, position, readLog(build));
+                }
+            }
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
     /**
-     * Persists the current build history to the backing file.
+     * Parses the journal lines into the given map.
+     *
+     * @param bytes  The journal contents
+     * @param loaded Receives the builds by id, in journal order
+     *
+     * @return True if a line could not be parsed or the last line was
+     *         not terminated, i.e. the journal needs to be rewritten
      */
-    private void save() {
-        try {
-            byte[] bytes = mapper.writerWithDefaultPrettyPrinter().writeValueAsBytes(builds);
-            Files.write(storeFile.toPath(), bytes);
-        } catch (Exception e) {
-            e.printStackTrace();
+    private boolean readJournal(byte[] bytes, Map<String, Build> loaded) {
+        boolean damaged = false;
+        int start = 0;
+
+        while (start < bytes.length) {
+            int end = start;
+            while (end < bytes.length && bytes[end] != '\n') {
+                end++;
+            }
+
+            if (end > start) {
+                try {
+                    Build build = mapper.readValue(bytes, start, end - start, Build.class);
+                    loaded.remove(build.id);
+                    loaded.put(build.id, build);
+                    journalRecords++;
+                } catch (Exception e) {
+                    // Torn tail of an interrupted append, or a corrupted record
+                    System.err.println("Skipping unreadable build history record at byte " + start);
+                    damaged = true;
+                }
+            }
+            if (end == bytes.length) {
+                damaged |= end > start;
+            }
+            start = end + 1;
+        }
+        return damaged;
+    }
+
+    /**
+     * Returns whether the history file uses the old format, a single
+     * pretty printed JSON array of builds.
+     *
+     * @param bytes The history file contents
+     *
+     * @return True if the first non-whitespace character is '['
+     */
+    private static boolean isLegacyArray(byte[] bytes) {
+        for (byte b : bytes) {
+            if (!Character.isWhitespace(b)) {
+                return b == '[';
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Appends one build to the journal. Only the new record is written,
+     * so the cost does not grow with the size of the history. A record
+     * that can not be written completely is cut off again, so the next
+     * append does not continue it and make both records unreadable.
+     *
+     * @param build The build to persist
+     *
+     * @throws IOException If the record can not be written and forced to disk
+     */
+    private void append(Build build) throws IOException {
+        ByteBuffer line = ByteBuffer.wrap(journalLine(build));
+        try (FileChannel channel = FileChannel.open(storeFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND)) {
+            long size = channel.size();
+            try {
+                while (line.hasRemaining()) {
+                    channel.write(line);
+                }
+                channel.force(false);
+            } catch (IOException e) {
+                try {
+                    channel.truncate(size);
+                } catch (IOException truncateFailure) {
+                    e.addSuppressed(truncateFailure);
+                }
+                throw e;
+            }
+            journalRecords++;
         }
     }
+
+    /**
+     * Serializes a build as one newline terminated journal record.
+     *
+     * @param build The build to serialize
+     *
+     * @return The UTF-8 bytes of the record
+     *
+     * @throws IOException If the build can not be serialized
+     */
+    private byte[] journalLine(Build build) throws IOException {
+        return (mapper.writeValueAsString(build) + "\n").getBytes(StandardCharsets.UTF_8);
+    }
 }
@@ -0,0 +1,200 @@
+package se.ciserver.buildlist;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Describes the layout of a log file written by {@link LogStore}. A log
+ * is compressed as a series of independent gzip members, each holding
+ * whole lines. The index records where every member starts in the log
+ * and in the compressed file, and the number of its first line, so that
+ * a byte range or a page of lines is read by decompressing only the
+ * members that hold it.
+ */
+public class LogIndex {
+
+    private static final int VERSION = 1;
+
+    /** Length of the uncompressed log in bytes. */
+    public final long length;
+    /** Number of lines of the log; a last line without a newline counts. */
+    public final long lines;
+    /** Length of the compressed log file in bytes. */
+    public final long compressedLength;
+
+    private final long[] rawOffsets;
+    private final long[] compressedOffsets;
+    private final long[] firstLines;
+
+    /**
+     * Creates a LogIndex.
+     *
+     * @param length            Length of the uncompressed log
+     * @param lines             Number of lines of the log
+     * @param compressedLength  Length of the compressed file
+     * @param rawOffsets        Offset of each member in the uncompressed log
+     * @param compressedOffsets Offset of each member in the compressed file
+     * @param firstLines        Number of the first line of each member
+     */
+    LogIndex(long length, long lines, long compressedLength,
+             long[] rawOffsets, long[] compressedOffsets, long[] firstLines) {
+        this.length = length;
+        this.lines = lines;
+        this.compressedLength = compressedLength;
+        this.rawOffsets = rawOffsets;
+        this.compressedOffsets = compressedOffsets;
+        this.firstLines = firstLines;
+    }
+
+    /**
+     * Returns the number of gzip members of the log.
+     *
+     * @return The number of members
+     */
+    int members() {
+        return rawOffsets.length;
+    }
+
+    /**
+     * Returns the member holding a byte of the uncompressed log.
+     *
+     * @param offset The byte offset
+     *
+     * @return The index of the member
+     */
+    int memberAtOffset(long offset) {
+        return floor(rawOffsets, offset);
+    }
+
+    /**
+     * Returns the member holding a line of the log.
+     *
+     * @param line The line number, starting at 0
+     *
+     * @return The index of the member
+     */
+    int memberAtLine(long line) {
+        return floor(firstLines, line);
+    }
+
+    /**
+     * Returns the offset of a member in the uncompressed log.
+     *
+     * @param member The index of the member
+     *
+     * @return The byte offset
+     */
+    long rawOffset(int member) {
+        return rawOffsets[member];
+    }
+
+    /**
+     * Returns the number of the first line of a member.
+     *
+     * @param member The index of the member
+     *
+     * @return The line number
+     */
+    long firstLine(int member) {
+        return firstLines[member];
+    }
+
+    /**
+     * Returns the offset of a member in the compressed file.
+     *
+     * @param member The index of the member
+     *
+     * @return The byte offset
+     */
+    long compressedStart(int member) {
+        return compressedOffsets[member];
+    }
+
+    /**
+     * Returns the offset just past a member in the compressed file.
+     *
+     * @param member The index of the member
+     *
+     * @return The byte offset
+     */
+    long compressedEnd(int member) {
+        return member + 1 < compressedOffsets.length ? compressedOffsets[member + 1] : compressedLength;
+    }
+
+    /**
+     * Writes the index in its binary form.
+     *
+     * @param out The stream to write to
+     *
+     * @throws IOException If the index can not be written
+     */
+    void writeTo(OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(VERSION);
+        data.writeLong(length);
+        data.writeLong(lines);
+        data.writeLong(compressedLength);
+        data.writeInt(rawOffsets.length);
+        for (int i = 0; i < rawOffsets.length; i++) {
+            data.writeLong(rawOffsets[i]);
+            data.writeLong(compressedOffsets[i]);
+            data.writeLong(firstLines[i]);
+        }
+        data.flush();
+    }
+
+    /**
+     * Reads an index written by {@link #writeTo(OutputStream)}.
+     *
+     * @param in The stream to read from
+     *
+     * @return The index
+     *
+     * @throws IOException If the index can not be read or has an unknown version
+     */
+    static LogIndex readFrom(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        if (data.readInt() != VERSION) {
+            throw new IOException("Unknown log index version");
+        }
+        long length = data.readLong();
+        long lines = data.readLong();
+        long compressedLength = data.readLong();
+        int members = data.readInt();
+
+        long[] rawOffsets = new long[members];
+        long[] compressedOffsets = new long[members];
+        long[] firstLines = new long[members];
+        for (int i = 0; i < members; i++) {
+            rawOffsets[i] = data.readLong();
+            compressedOffsets[i] = data.readLong();
+            firstLines[i] = data.readLong();
+        }
+        return new LogIndex(length, lines, compressedLength, rawOffsets, compressedOffsets, firstLines);
+    }
+
+    /**
+     * Returns the last position whose value is at most the key.
+     *
+     * @param values Ascending values
+     * @param key    The key
+     *
+     * @return The position, 0 if the key is below all values
+     */
+    private static int floor(long[] values, long key) {
+        int low = 0;
+        int high = values.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (values[mid] <= key) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,659 @@
+package se.ciserver.buildlist;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An inverted index over build logs. Every word of a log is mapped to
+ * the builds holding it, so a search only visits the builds that contain
+ * the rarest word of the query instead of reading every log of the
+ * history.
+ *
+ * Words are runs of letters, digits and underscores compared in lower
+ * case; numbers and words shorter than {@link #MIN_WORD} or longer than
+ * {@link #MAX_WORD} characters are not indexed. Every line holding a
+ * word is kept, so a query of common words still finds all its lines.
+ *
+ * Builds are indexed under their position in the history, and the
+ * builds of a word are kept in that order, so a search walks them from
+ * the newest or the oldest end and stops at its limit. Only the builds
+ * of each word are held in memory; the lines holding the words are read
+ * from the index file for the builds a search visits.
+ *
+ * The index is persisted as an append-only file with one record per
+ * build. A torn last record is dropped on load; the build is then
+ * missing from the index and reindexed by the {@link BuildStore}.
+ */
+public class LogSearchIndex {
+
+    /** Version 1 and 2 files did not record history positions and are rebuilt. */
+    private static final int VERSION = 3;
+
+    /** Length of the shortest indexed word. */
+    static final int MIN_WORD = 2;
+    /** Length of the longest indexed word. */
+    static final int MAX_WORD = 64;
+
+    private final Path file;
+    private final Map<String, Integer> positions = new HashMap<>();
+    private String[] ids = new String[16];
+    private long[] offsets = new long[16];
+    private int[] lengths = new int[16];
+    private final Map<String, Postings> postings = new HashMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Object fileLock = new Object();
+
+    /**
+     * Creates a LogSearchIndex backed by the given file and loads it.
+     *
+     * @param file The index file, created on the first add
+     */
+    public LogSearchIndex(Path file) {
+        this.file = file;
+        load();
+    }
+
+    /**
+     * Returns whether the log of a build is indexed.
+     *
+     * @param buildId The build id
+     *
+     * @return True if the build was added
+     */
+    public boolean contains(String buildId) {
+        lock.readLock().lock();
+        try {
+            return positions.containsKey(buildId);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns whether every indexed build is at its position in a history.
+     *
+     * @param history The build ids of the history, in order
+     *
+     * @return True if no indexed build has moved or is unknown
+     */
+    public boolean isConsistentWith(List<String> history) {
+        lock.readLock().lock();
+        try {
+            for (Map.Entry<String, Integer> entry : positions.entrySet()) {
+                int position = entry.getValue();
+                if (position >= history.size() || !history.get(position).equals(entry.getKey())) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Drops every indexed build and deletes the index file.
+     */
+    public void clear() {
+        synchronized (fileLock) {
+            lock.writeLock().lock();
+            try {
+                positions.clear();
+                postings.clear();
+                Arrays.fill(ids, null);
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Tokenizes the log of a build, appends it to the index file and
+     * makes it searchable. A build that is already indexed is skipped,
+     * since the log of a build never changes. A build whose record can
+     * not be written stays unindexed until the store is next loaded.
+     *
+     * @param buildId  The build id
+     * @param position The position of the build in the history
+     * @param log      The build log
+     */
+    public void add(String buildId, int position, String log) {
+        if (contains(buildId)) {
+            return;
+        }
+        Map<String, int[]> words = tokenize(log == null ? "" : log);
+
+        synchronized (fileLock) {
+            if (contains(buildId)) {
+                return;
+            }
+            long offset;
+            byte[] record;
+            try {
+                record = record(buildId, position, words);
+                offset = append(record);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+
+            lock.writeLock().lock();
+            try {
+                put(buildId, position, offset, record.length, words.keySet());
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Finds the builds with at least one log line holding every word of
+     * a query. The builds of the rarest word are walked in history order,
+     * skipping those missing another word, and the lines of a build are
+     * only read once it holds every word, so the cost depends on how far
+     * the walk goes to fill the limit rather than on the size of the
+     * history.
+     *
+     * @param query       The words to search for
+     * @param oldestFirst True to return the earliest matching builds first
+     * @param limit       The maximum number of builds returned
+     *
+     * @return The matching builds, newest first unless {@code oldestFirst} is set
+     *
+     * @throws IllegalArgumentException If the query holds no indexed word
+     * @throws IOException              If the index file can not be read
+     */
+    public List<Hit> search(String query, boolean oldestFirst, int limit) throws IOException {
+        Set<String> words = new LinkedHashSet<>(words(query));
+        if (words.isEmpty()) {
+            throw new IllegalArgumentException("The query has no searchable words");
+        }
+
+        lock.readLock().lock();
+        try (FileChannel channel = positions.isEmpty() ? null : FileChannel.open(file, StandardOpenOption.READ)) {
+            List<Postings> lists = new ArrayList<>();
+            for (String word : words) {
+                Postings list = postings.get(word);
+                if (list == null) {
+                    return Collections.emptyList();
+                }
+                lists.add(list);
+            }
+            lists.sort((a, b) -> Integer.compare(a.size, b.size));
+
+            Postings rarest = lists.get(0);
+            List<Hit> hits = new ArrayList<>();
+            for (int n = 0; n < rarest.size && hits.size() < limit; n++) {
+                int position = rarest.positions[oldestFirst ? n : rarest.size - 1 - n];
+
+                boolean all = true;
+                for (int w = 1; w < lists.size() && all; w++) {
+                    all = lists.get(w).contains(position);
+                }
+                if (!all) {
+                    continue;
+                }
+
+                int[] lines = matchingLines(channel, position, words);
+                if (lines.length > 0) {
+                    hits.add(new Hit(ids[position], lines));
+                }
+            }
+            return Collections.unmodifiableList(hits);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Reads the record of a build and returns the lines holding every
+     * query word. Must hold the read lock.
+     *
+     * @param channel  The open index file
+     * @param position The position of the build
+     * @param words    The query words, each held by the build
+     *
+     * @return The common lines, ascending
+     *
+     * @throws IOException If the record can not be read
+     */
+    private int[] matchingLines(FileChannel channel, int position, Set<String> words) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(lengths[position]);
+        while (record.hasRemaining()) {
+            if (channel.read(record, offsets[position] + record.position()) < 0) {
+                throw new EOFException("Truncated search index record of " + ids[position]);
+            }
+        }
+        record.flip();
+
+        // Skip the build id and the position
+        int idLength = record.getShort() & 0xffff;
+        record.position(record.position() + idLength + 4);
+        int[] lines = null;
+        int found = 0;
+        for (int count = record.getInt(), w = 0; w < count && found < words.size(); w++) {
+            byte[] word = new byte[record.getShort() & 0xffff];
+            record.get(word);
+            int size = record.getInt();
+            if (!words.contains(new String(word, StandardCharsets.UTF_8))) {
+                record.position(record.position() + size * 4);
+                continue;
+            }
+            int[] wordLines = new int[size];
+            record.asIntBuffer().get(wordLines);
+            record.position(record.position() + size * 4);
+            lines = lines == null ? wordLines : intersect(lines, wordLines);
+            found++;
+        }
+        return found == words.size() ? lines : new int[0];
+    }
+
+    /**
+     * Splits a text into its indexed words, in lower case and in order.
+     *
+     * @param text The text
+     *
+     * @return The words, possibly repeated
+     */
+    static List<String> words(String text) {
+        List<String> words = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && isWordChar(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                String word = indexedWord(text, start, i);
+                if (word != null) {
+                    words.add(word);
+                }
+                start = -1;
+            }
+        }
+        return words;
+    }
+
+    /**
+     * Maps every indexed word of a log to the lines holding it.
+     *
+     * @param log The build log
+     *
+     * @return The line numbers of each word, ascending and starting at 0
+     */
+    private static Map<String, int[]> tokenize(String log) {
+        Map<String, int[]> lines = new LinkedHashMap<>();
+        Map<String, Integer> counts = new HashMap<>();
+        int line = 0;
+        int start = -1;
+
+        for (int i = 0; i <= log.length(); i++) {
+            char c = i < log.length() ? log.charAt(i) : '\n';
+            boolean wordChar = isWordChar(c);
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                String word = indexedWord(log, start, i);
+                start = -1;
+                if (word != null) {
+                    int[] found = lines.computeIfAbsent(word, k -> new int[4]);
+                    int count = counts.getOrDefault(word, 0);
+                    if (count == 0 || found[count - 1] != line) {
+                        if (count == found.length) {
+                            found = Arrays.copyOf(found, count * 2);
+                            lines.put(word, found);
+                        }
+                        found[count] = line;
+                        counts.put(word, count + 1);
+                    }
+                }
+            }
+            if (c == '\n') {
+                line++;
+            }
+        }
+
+        lines.replaceAll((word, found) -> Arrays.copyOf(found, counts.get(word)));
+        return lines;
+    }
+
+    /**
+     * Returns a word of a text in lower case if it is indexed.
+     *
+     * @param text  The text
+     * @param start The start of the word
+     * @param end   The end of the word, exclusive
+     *
+     * @return The word, or null if it is too short, too long or a number
+     */
+    private static String indexedWord(String text, int start, int end) {
+        if (end - start < MIN_WORD || end - start > MAX_WORD) {
+            return null;
+        }
+        for (int i = start; i < end; i++) {
+            if (!Character.isDigit(text.charAt(i))) {
+                return text.substring(start, end).toLowerCase();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns whether a character is part of a word.
+     *
+     * @param c The character
+     *
+     * @return True for letters, digits and underscores
+     */
+    private static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+
+    /**
+     * Returns the line numbers found in both of two ascending arrays.
+     *
+     * @param a Ascending line numbers
+     * @param b Ascending line numbers
+     *
+     * @return The common line numbers, ascending
+     */
+    private static int[] intersect(int[] a, int[] b) {
+        int[] common = new int[Math.min(a.length, b.length)];
+        int n = 0;
+        for (int i = 0, j = 0; i < a.length && j < b.length; ) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                common[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(common, n);
+    }
+
+    /**
+     * Adds a build to the postings of its words. Must hold the write lock.
+     *
+     * @param buildId  The build id
+     * @param position The position of the build in the history
+     * @param offset   The offset of its record in the index file
+     * @param length   The length of its record
+     * @param words    The words of its log
+     */
+    private void put(String buildId, int position, long offset, int length, Set<String> words) {
+        if (position >= ids.length) {
+            int size = Math.max(position + 1, ids.length * 2);
+            ids = Arrays.copyOf(ids, size);
+            offsets = Arrays.copyOf(offsets, size);
+            lengths = Arrays.copyOf(lengths, size);
+        }
+        ids[position] = buildId;
+        offsets[position] = offset;
+        lengths[position] = length;
+        positions.put(buildId, position);
+        for (String word : words) {
+            postings.computeIfAbsent(word, k -> new Postings()).add(position);
+        }
+    }
+
+    /**
+     * Serializes the index record of one build. Word lengths are limited
+     * to {@link #MAX_WORD} characters, so every word fits a short length.
+     *
+     * @param buildId  The build id
+     * @param position The position of the build in the history
+     * @param words    The line numbers of each word
+     *
+     * @return The record
+     *
+     * @throws IOException If the record can not be written
+     */
+    private static byte[] record(String buildId, int position, Map<String, int[]> words) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream record = new DataOutputStream(bytes);
+        writeString(record, buildId);
+        record.writeInt(position);
+        record.writeInt(words.size());
+        for (Map.Entry<String, int[]> entry : words.entrySet()) {
+            writeString(record, entry.getKey());
+            record.writeInt(entry.getValue().length);
+            for (int line : entry.getValue()) {
+                record.writeInt(line);
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Writes a string as its UTF-8 length and bytes.
+     *
+     * @param out   The output
+     * @param value The string
+     *
+     * @throws IOException If the string can not be written
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a string written by {@link #writeString(DataOutputStream, String)}.
+     *
+     * @param in The input
+     *
+     * @return The string
+     *
+     * @throws IOException If the string can not be read
+     */
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readUnsignedShort()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Appends a record to the index file. The index can always be
+     * rebuilt from the logs, so the write is not forced to disk.
+     *
+     * @param record The record of one build
+     *
+     * @return The offset the record was written at
+     *
+     * @throws IOException If the record can not be written
+     */
+    private long append(byte[] record) throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            if (channel.size() == 0) {
+                channel.write(ByteBuffer.allocate(4).putInt(0, VERSION));
+            }
+            long offset = channel.size();
+            ByteBuffer buffer = ByteBuffer.wrap(record);
+            try {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            } catch (IOException e) {
+                // Leave no partial record for the next one to follow
+                channel.truncate(offset);
+                throw e;
+            }
+            return offset;
+        }
+    }
+
+    /**
+     * Loads the index file if it exists, keeping only the words of each
+     * build in memory. A torn last record is cut off, and a file of an
+     * unknown version is discarded.
+     * Any exception is printed to the server console.
+     */
+    private void load() {
+        long valid = 0;
+        long size;
+        try (CountingInputStream counted = new CountingInputStream(
+                new BufferedInputStream(Files.newInputStream(file)))) {
+            size = Files.size(file);
+            DataInputStream in = new DataInputStream(counted);
+            try {
+                if (size >= 4 && in.readInt() == VERSION) {
+                    valid = 4;
+                    while (counted.count < size) {
+                        long offset = counted.count;
+                        String buildId = readString(in);
+                        int position = in.readInt();
+                        int count = in.readInt();
+                        Set<String> words = new LinkedHashSet<>();
+                        for (int w = 0; w < count; w++) {
+                            words.add(readString(in));
+                            in.skipNBytes(in.readInt() * 4L);
+                        }
+                        if (position < 0) {
+                            throw new IOException("Negative history position");
+                        }
+                        if (!positions.containsKey(buildId)) {
+                            put(buildId, position, offset, (int) (counted.count - offset), words);
+                        }
+                        valid = counted.count;
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Skipping unreadable search index record at byte " + valid);
+            }
+        } catch (NoSuchFileException e) {
+            return;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        if (valid < size) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(valid);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * An input stream counting the bytes read through it.
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+        private long count = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int n = super.read(buffer, offset, length);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+
+    /**
+     * The history positions of the builds holding one word, ascending.
+     */
+    private static final class Postings {
+        private int[] positions = new int[4];
+        private int size = 0;
+
+        /**
+         * Adds a build. Builds are usually added in history order, so
+         * the position is almost always appended.
+         *
+         * @param position The history position of the build
+         */
+        void add(int position) {
+            if (size == positions.length) {
+                positions = Arrays.copyOf(positions, size * 2);
+            }
+            int at = size;
+            while (at > 0 && positions[at - 1] > position) {
+                at--;
+            }
+            System.arraycopy(positions, at, positions, at + 1, size - at);
+            positions[at] = position;
+            size++;
+        }
+
+        /**
+         * Returns whether a build holds the word.
+         *
+         * @param position The history position of the build
+         *
+         * @return True if the build was added
+         */
+        boolean contains(int position) {
+            return Arrays.binarySearch(positions, 0, size, position) >= 0;
+        }
+    }
+
+    /**
+     * A build whose log matches a search.
+     */
+    public static final class Hit {
+        /** The id of the build. */
+        public final String buildId;
+        /** The matching lines, ascending and starting at 0. */
+        public final int[] lines;
+
+        Hit(String buildId, int[] lines) {
+            this.buildId = buildId;
+            this.lines = lines;
+        }
+    }
+}
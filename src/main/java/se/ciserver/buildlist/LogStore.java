@@ -0,0 +1,357 @@
+package se.ciserver.buildlist;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Stores build logs outside the build history, one gzip compressed file
+ * per build, so that logs are neither kept on the heap nor rewritten
+ * with the history.
+ *
+ * Each log is compressed as a series of gzip members of about
+ * {@link #MEMBER_SIZE} bytes that end on a line break, and a
+ * {@link LogIndex} of the members is kept next to it in a {@code .idx}
+ * file. The file is still a plain gzip file, but a byte range or a page
+ * of lines is read by decompressing only the members holding it.
+ */
+public class LogStore {
+
+    /** Approximate uncompressed size of one gzip member of a log. */
+    static final int MEMBER_SIZE = 64 * 1024;
+
+    private final Path directory;
+
+    /**
+     * Creates a LogStore keeping its files in the given directory.
+     *
+     * @param directory The log directory, created on the first write
+     */
+    public LogStore(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Compresses and writes the log of a build together with its index.
+     * The files are written under a temporary name and then moved into
+     * place, so a crash never leaves a truncated log behind.
+     *
+     * @param buildId The id of the build
+     * @param log     The build log
+     *
+     * @return The name of the log file, to be stored with the build
+     *
+     * @throws IOException If the log can not be written
+     */
+    public String write(String buildId, String log) throws IOException {
+        String fileName = buildId.replaceAll("[^A-Za-z0-9._-]", "_") + ".log.gz";
+        writeFile(fileName, log.getBytes(StandardCharsets.UTF_8));
+        return fileName;
+    }
+
+    /**
+     * Reads and decompresses a log file.
+     *
+     * @param fileName The name returned by {@link #write(String, String)}
+     *
+     * @return The build log, or null if the file does not exist
+     *
+     * @throws IOException If the log can not be read
+     */
+    public String read(String fileName) throws IOException {
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(directory.resolve(fileName)))) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            in.transferTo(out);
+            return out.toString(StandardCharsets.UTF_8);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the index of a log file. A log written before logs were
+     * indexed, or whose index does not match it, is rewritten with a new
+     * index.
+     *
+     * @param fileName The name of the log file
+     *
+     * @return The index, or null if the log file does not exist
+     *
+     * @throws IOException If the log can not be read
+     */
+    public LogIndex index(String fileName) throws IOException {
+        Path file = directory.resolve(fileName);
+        if (!Files.exists(file)) {
+            return null;
+        }
+
+        try (InputStream in = Files.newInputStream(indexPath(fileName))) {
+            LogIndex index = LogIndex.readFrom(in);
+            if (index.compressedLength == Files.size(file)) {
+                return index;
+            }
+        } catch (IOException e) {
+            /* missing or unreadable index, rebuilt below */
+        }
+
+        String log = read(fileName);
+        return log == null ? null : writeFile(fileName, log.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Opens a log for reading from a byte offset, decompressing only the
+     * members from the one holding that byte on.
+     *
+     * @param fileName The name of the log file
+     * @param offset   The offset of the first byte read
+     *
+     * @return The decompressed log from the offset, or null if the log file does not exist
+     *
+     * @throws IOException If the log can not be read
+     */
+    public InputStream open(String fileName, long offset) throws IOException {
+        LogIndex index = index(fileName);
+        if (index == null) {
+            return null;
+        }
+
+        int member = index.memberAtOffset(offset);
+        InputStream in = openMembers(fileName, index, member);
+        try {
+            in.skipNBytes(Math.min(offset, index.length) - index.rawOffset(member));
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        return in;
+    }
+
+    /**
+     * Reads a page of lines of a log.
+     *
+     * @param fileName The name of the log file
+     * @param from     The number of the first line, starting at 0
+     * @param count    The maximum number of lines
+     *
+     * @return The lines without line breaks, or null if the log file does not exist
+     *
+     * @throws IOException If the log can not be read
+     */
+    public List<String> readLines(String fileName, long from, int count) throws IOException {
+        LogIndex index = index(fileName);
+        if (index == null) {
+            return null;
+        }
+
+        List<String> lines = new ArrayList<>();
+        if (from >= index.lines) {
+            return lines;
+        }
+
+        int member = index.memberAtLine(from);
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                openMembers(fileName, index, member), StandardCharsets.UTF_8))) {
+            for (long skip = from - index.firstLine(member); skip > 0; skip--) {
+                readLine(reader);
+            }
+            String line;
+            while (lines.size() < count && (line = readLine(reader)) != null) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Reads a line ending on {@code '\n'}, the only line break counted by
+     * {@link LogIndex}. Unlike {@link BufferedReader#readLine()} a lone
+     * {@code '\r'}, e.g. of progress output, stays part of the line, and
+     * only the {@code '\r'} of a {@code "\r\n"} is dropped.
+     *
+     * @param reader The reader
+     *
+     * @return The line without its line break, or null at the end of the log
+     *
+     * @throws IOException If the log can not be read
+     */
+    private static String readLine(BufferedReader reader) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = reader.read()) != -1 && c != '\n') {
+            line.append((char) c);
+        }
+        if (c == -1 && line.length() == 0) {
+            return null;
+        }
+        int length = line.length();
+        if (length > 0 && line.charAt(length - 1) == '\r') {
+            line.setLength(length - 1);
+        }
+        return line.toString();
+    }
+
+    /**
+     * Returns the directory holding the log files.
+     *
+     * @return The log directory
+     */
+    public Path directory() {
+        return directory;
+    }
+
+    /**
+     * Writes a log as gzip members ending on line breaks, and its index.
+     *
+     * @param fileName The name of the log file
+     * @param bytes    The UTF-8 bytes of the log
+     *
+     * @return The index of the written log
+     *
+     * @throws IOException If the files can not be written
+     */
+    private LogIndex writeFile(String fileName, byte[] bytes) throws IOException {
+        Path file = directory.resolve(fileName);
+        Path tmp = directory.resolve(fileName + ".tmp");
+        Path indexFile = indexPath(fileName);
+        Path indexTmp = directory.resolve(indexFile.getFileName() + ".tmp");
+
+        List<long[]> members = new ArrayList<>();
+        long compressed = 0;
+        long line = 0;
+
+        Files.createDirectories(directory);
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(tmp))) {
+            int pos = 0;
+            do {
+                int end = Math.min(bytes.length, pos + MEMBER_SIZE);
+                while (end < bytes.length && bytes[end - 1] != '\n') {
+                    end++;
+                }
+
+                members.add(new long[] { pos, compressed, line });
+
+                ByteArrayOutputStream member = new ByteArrayOutputStream();
+                try (OutputStream gzip = new GZIPOutputStream(member)) {
+                    gzip.write(bytes, pos, end - pos);
+                }
+                member.writeTo(out);
+                compressed += member.size();
+
+                for (int i = pos; i < end; i++) {
+                    if (bytes[i] == '\n') {
+                        line++;
+                    }
+                }
+                pos = end;
+            } while (pos < bytes.length);
+        }
+
+        if (bytes.length > 0 && bytes[bytes.length - 1] != '\n') {
+            line++;
+        }
+
+        long[] rawOffsets = new long[members.size()];
+        long[] compressedOffsets = new long[members.size()];
+        long[] firstLines = new long[members.size()];
+        for (int i = 0; i < members.size(); i++) {
+            rawOffsets[i] = members.get(i)[0];
+            compressedOffsets[i] = members.get(i)[1];
+            firstLines[i] = members.get(i)[2];
+        }
+        LogIndex index = new LogIndex(bytes.length, line, compressed,
+                                      rawOffsets, compressedOffsets, firstLines);
+
+        try (OutputStream out = Files.newOutputStream(indexTmp)) {
+            index.writeTo(out);
+        }
+
+        // The log first: an index that does not match its log is rebuilt on read
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.move(indexTmp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        return index;
+    }
+
+    /**
+     * Opens a log for reading from the start of a member, decompressing
+     * only the members that are actually read.
+     *
+     * @param fileName The name of the log file
+     * @param index    The index of the log
+     * @param first    The first member to read
+     *
+     * @return The decompressed log from the start of the member
+     *
+     * @throws IOException If the log file can not be opened
+     */
+    private InputStream openMembers(String fileName, LogIndex index, int first) throws IOException {
+        FileChannel channel = FileChannel.open(directory.resolve(fileName));
+
+        Enumeration<InputStream> members = new Enumeration<InputStream>() {
+            private int next = first;
+
+            @Override
+            public boolean hasMoreElements() {
+                return next < index.members();
+            }
+
+            @Override
+            public InputStream nextElement() {
+                int member = next++;
+                try {
+                    ByteBuffer buffer = ByteBuffer.allocate(
+                            (int) (index.compressedEnd(member) - index.compressedStart(member)));
+                    long position = index.compressedStart(member);
+                    while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) >= 0) {
+                        // keep reading until the member is complete
+                    }
+                    return new GZIPInputStream(new ByteArrayInputStream(buffer.array(), 0, buffer.position()));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+
+        return new FilterInputStream(new SequenceInputStream(members)) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    channel.close();
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns the path of the index file of a log.
+     *
+     * @param fileName The name of the log file
+     *
+     * @return The path of its {@code .idx} file
+     */
+    private Path indexPath(String fileName) {
+        return directory.resolve(fileName + ".idx");
+    }
+}
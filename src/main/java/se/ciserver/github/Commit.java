@@ -13,6 +13,12 @@ public class Commit
     public final String timestamp;
     public final String tree_id;
     public final String url;
+    /** Paths of the files the commit added, or null if the payload did not list them. */
+    public final String[] added;
+    /** Paths of the files the commit modified, or null if the payload did not list them. */
+    public final String[] modified;
+    /** Paths of the files the commit removed, or null if the payload did not list them. */
+    public final String[] removed;
 
     /**
      * Constructs a GitHub Commit.
@@ -29,6 +35,29 @@ public class Commit
     public Commit(Author author, Author committer, boolean distinct,
                   String id, String message, String timestamp,
                   String tree_id, String url)
+    {
+        this(author, committer, distinct, id, message, timestamp, tree_id, url, null, null, null);
+    }
+
+    /**
+     * Constructs a GitHub Commit with the files it changed.
+     *
+     * @param author    Metaproperties for Git author/committer information
+     * @param committer Metaproperties for Git author/committer information
+     * @param distinct  Whether this commit is distinct from any that have been pushed before
+     * @param id        The commit identifier
+     * @param message   The commit message
+     * @param timestamp The ISO 8601 timestamp of the commit
+     * @param tree_id   The id of the tree the commit points at describing the current condition of file system
+     * @param url       URL that points to the commit API resource
+     * @param added     Paths of the files the commit added, or null if unknown
+     * @param modified  Paths of the files the commit modified, or null if unknown
+     * @param removed   Paths of the files the commit removed, or null if unknown
+     */
+    public Commit(Author author, Author committer, boolean distinct,
+                  String id, String message, String timestamp,
+                  String tree_id, String url,
+                  String[] added, String[] modified, String[] removed)
     {
         this.author     = author;
         this.committer  = committer;
@@ -38,5 +67,8 @@ public class Commit
         this. timestamp = timestamp;
         this.tree_id    = tree_id;
         this.url        = url;
+        this.added      = added;
+        this.modified   = modified;
+        this.removed    = removed;
     }
 }
\ No newline at end of file
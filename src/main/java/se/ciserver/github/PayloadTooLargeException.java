@@ -0,0 +1,18 @@
+package se.ciserver.github;
+
+/**
+ * Defines an Exception thrown when a GitHub payload is larger than the
+ * maximum size accepted by the {@link PushParser}.
+ */
+public class PayloadTooLargeException extends InvalidPayloadException
+{
+    /**
+     * Constructs a PayloadTooLargeException for the given size limit.
+     *
+     * @param maxBytes The maximum accepted payload size in bytes
+     */
+    public PayloadTooLargeException(long maxBytes)
+    {
+        super("Payload exceeds the maximum size of " + maxBytes + " bytes");
+    }
+}
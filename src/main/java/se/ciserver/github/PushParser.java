@@ -1,14 +1,27 @@
 package se.ciserver.github;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 
 /**
  * Handles parsing of GitHub push event.
+ *
+ * The payload is read with Jackson's streaming parser: only the fields
+ * needed by {@link Push} are extracted and everything else is skipped
+ * without building a tree of the whole document.
  */
 public class PushParser
 {
-    private final ObjectMapper mapper = new ObjectMapper();
+    private final JsonFactory factory = new JsonFactory();
 
     /**
      * Parses GitHub push event.
@@ -21,81 +34,393 @@ public class PushParser
      */
     public Push parse(String json) throws InvalidPayloadException
     {
-        try
+        return parse(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)), Long.MAX_VALUE);
+    }
+
+    /**
+     * Parses GitHub push event directly from a stream, such as the body
+     * of the webhook request.
+     *
+     * @param in       The JSON push event stream
+     * @param maxBytes The maximum number of bytes read from the stream
+     *
+     * @return A Push object defining the attributes of the JSON push file.
+     *
+     * @throws PayloadTooLargeException If the payload is longer than {@code maxBytes}
+     * @throws InvalidPayloadException  If the payload object has invalid attributes.
+     */
+    public Push parse(InputStream in, long maxBytes) throws InvalidPayloadException
+    {
+        LimitedInputStream limited = new LimitedInputStream(in, maxBytes);
+
+        try (JsonParser p = factory.createParser(limited))
         {
-            JsonNode root = mapper.readTree(json);
+            expect(p.nextToken(), JsonToken.START_OBJECT);
+
+            String after = null, base_ref = null, before = null, ref = null, compare = null;
+            Boolean created = null, deleted = null, forced = null;
+            Commit[] commits = null;
+            Commit head_commit = null;
+            Pusher pusher = null;
+            Repository repository = null;
 
-            JsonNode commitsNode    = root.get("commits");
-            JsonNode headCommitNode = root.get("head_commit");
-            JsonNode repositoryNode = root.get("repository");
-            JsonNode ownerNode      = repositoryNode.get("owner");
+            while (p.nextToken() == JsonToken.FIELD_NAME)
+            {
+                String field = p.getCurrentName();
+                p.nextToken();
+
+                switch (field)
+                {
+                    case "after":       after       = text(p);           break;
+                    case "base_ref":    base_ref    = text(p);           break;
+                    case "before":      before      = text(p);           break;
+                    case "ref":         ref         = text(p);           break;
+                    case "compare":     compare     = text(p);           break;
+                    case "created":     created     = bool(p);           break;
+                    case "deleted":     deleted     = bool(p);           break;
+                    case "forced":      forced      = bool(p);           break;
+                    case "commits":     commits     = readCommits(p);    break;
+                    case "head_commit": head_commit = readCommit(p);     break;
+                    case "pusher":      pusher      = readPusher(p);     break;
+                    case "repository":  repository  = readRepository(p); break;
+                    default:            p.skipChildren();                break;
+                }
+            }
+
+            return new Push(require(after, "after"), base_ref, require(before, "before"),
+                            require(commits, "commits"), require(compare, "compare"), require(created, "created"),
+                            require(deleted, "deleted"), require(forced, "forced"), head_commit,
+                            require(pusher, "pusher"), require(ref, "ref").replace("refs/heads/", ""),
+                            require(repository, "repository"));
+        }
+        catch (InvalidPayloadException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            if (limited.exceeded)
+            {
+                throw new PayloadTooLargeException(maxBytes);
+            }
+            throw new InvalidPayloadException("Invalid GitHub push payload", e);
+        }
+    }
 
-            String after    = root.get("after").asText();
-            String base_ref = root.get("base_ref") == null || root.get("base_ref").isNull() ? null : root.get("base_ref").asText();
-            String before   = root.get("before").asText();
-            String ref      = root.get("ref").asText().replace("refs/heads/", "");
-            String compare  = root.get("compare").asText();
+    /**
+     * Reads the array of pushed commits.
+     *
+     * @param p The parser positioned at the start of the array
+     *
+     * @return The commits
+     *
+     * @throws IOException             If the JSON can not be read
+     * @throws InvalidPayloadException If a commit is invalid
+     */
+    private Commit[] readCommits(JsonParser p) throws IOException, InvalidPayloadException
+    {
+        expect(p.currentToken(), JsonToken.START_ARRAY);
 
-            boolean created = root.get("created").asBoolean();
-            boolean deleted = root.get("deleted").asBoolean();
-            boolean forced  = root.get("forced").asBoolean();
+        List<Commit> commits = new ArrayList<>();
+        while (p.nextToken() != JsonToken.END_ARRAY)
+        {
+            commits.add(require(readCommit(p), "commits[]"));
+        }
+        return commits.toArray(new Commit[0]);
+    }
 
-            Pusher pusher = new Pusher(root.get("pusher").get("name").asText());
+    /**
+     * Reads a commit object.
+     *
+     * @param p The parser positioned at the start of the object
+     *
+     * @return The commit, or null for a JSON null
+     *
+     * @throws IOException             If the JSON can not be read
+     * @throws InvalidPayloadException If a required field is missing
+     */
+    private Commit readCommit(JsonParser p) throws IOException, InvalidPayloadException
+    {
+        if (p.currentToken() == JsonToken.VALUE_NULL)
+        {
+            return null;
+        }
+        expect(p.currentToken(), JsonToken.START_OBJECT);
 
+        Author author = null, committer = null;
+        Boolean distinct = null;
+        String id = null, message = null, timestamp = null, tree_id = null, url = null;
+        String[] added = null, modified = null, removed = null;
 
-            Commit[] commits = new Commit[commitsNode.size()];
+        while (p.nextToken() == JsonToken.FIELD_NAME)
+        {
+            String field = p.getCurrentName();
+            p.nextToken();
 
-            for (int commitIndex = 0; commitIndex < commitsNode.size(); commitIndex++)
+            switch (field)
             {
-                JsonNode commitNode    = commitsNode.get(commitIndex);
-                JsonNode authorNode    = commitNode.get("author");
-                JsonNode committerNode = commitNode.get("committer");
+                case "author":    author    = readAuthor(p); break;
+                case "committer": committer = readAuthor(p); break;
+                case "distinct":  distinct  = bool(p);       break;
+                case "id":        id        = text(p);       break;
+                case "message":   message   = text(p);       break;
+                case "timestamp": timestamp = text(p);       break;
+                case "tree_id":   tree_id   = text(p);       break;
+                case "url":       url       = text(p);       break;
+                case "added":     added     = texts(p);      break;
+                case "modified":  modified  = texts(p);      break;
+                case "removed":   removed   = texts(p);      break;
+                default:          p.skipChildren();          break;
+            }
+        }
 
-                Author author    = new Author(authorNode.get("email").asText(),
-                                              authorNode.get("name").asText());
-                Author committer = new Author(committerNode.hasNonNull("email") ? committerNode.get("email").asText() : null,
-                                              committerNode.get("name").asText());
+        return new Commit(require(author, "author"), require(committer, "committer"), require(distinct, "distinct"),
+                          require(id, "id"), require(message, "message"), require(timestamp, "timestamp"),
+                          require(tree_id, "tree_id"), require(url, "url"),
+                          added, modified, removed);
+    }
 
-                commits[commitIndex] = new Commit(author, committer, commitNode.get("distinct").asBoolean(),
-                                                  commitNode.get("id").asText(), commitNode.get("message").asText(), commitNode.get("timestamp").asText(),
-                                                  commitNode.get("tree_id").asText(), commitNode.get("url").asText());
+    /**
+     * Reads a git author, committer or repository owner object.
+     *
+     * @param p The parser positioned at the start of the object
+     *
+     * @return The author; the email is null if it is missing
+     *
+     * @throws IOException             If the JSON can not be read
+     * @throws InvalidPayloadException If the name is missing
+     */
+    private Author readAuthor(JsonParser p) throws IOException, InvalidPayloadException
+    {
+        expect(p.currentToken(), JsonToken.START_OBJECT);
 
+        String email = null, name = null;
+
+        while (p.nextToken() == JsonToken.FIELD_NAME)
+        {
+            String field = p.getCurrentName();
+            p.nextToken();
+
+            switch (field)
+            {
+                case "email": email = text(p);    break;
+                case "name":  name  = text(p);    break;
+                default:      p.skipChildren();   break;
             }
+        }
+
+        return new Author(email, require(name, "name"));
+    }
+
+    /**
+     * Reads the pusher object.
+     *
+     * @param p The parser positioned at the start of the object
+     *
+     * @return The pusher
+     *
+     * @throws IOException             If the JSON can not be read
+     * @throws InvalidPayloadException If the name is missing
+     */
+    private Pusher readPusher(JsonParser p) throws IOException, InvalidPayloadException
+    {
+        return new Pusher(readAuthor(p).name);
+    }
+
+    /**
+     * Reads the repository object.
+     *
+     * @param p The parser positioned at the start of the object
+     *
+     * @return The repository
+     *
+     * @throws IOException             If the JSON can not be read
+     * @throws InvalidPayloadException If a required field is missing
+     */
+    private Repository readRepository(JsonParser p) throws IOException, InvalidPayloadException
+    {
+        expect(p.currentToken(), JsonToken.START_OBJECT);
+
+        String id = null, name = null, clone_url = null, default_branch = null;
+        Author owner = null;
 
-            Commit head_commit;
+        while (p.nextToken() == JsonToken.FIELD_NAME)
+        {
+            String field = p.getCurrentName();
+            p.nextToken();
 
-            if(headCommitNode != null)
+            switch (field)
             {
-                JsonNode headAuthorNode    = headCommitNode.get("author");
-                JsonNode headCommitterNode = headCommitNode.get("committer");
-
-                Author author = new Author(headAuthorNode.hasNonNull("email") ? headAuthorNode.get("email").asText() : null,
-                        headAuthorNode.get("name").asText());
-                Author committer = new Author(headCommitterNode.hasNonNull("email") ? headCommitterNode.get("email").asText() : null,
-                                              headCommitterNode.get("name").asText());
-                head_commit = new Commit(author, committer, headCommitNode.get("distinct").asBoolean(),
-                                         headCommitNode.get("id").asText(), headCommitNode.get("message").asText(), headCommitNode.get("timestamp").asText(),
-                                         headCommitNode.get("tree_id").asText(), headCommitNode.get("url").asText());
+                case "id":             id             = text(p);       break;
+                case "name":           name           = text(p);       break;
+                case "clone_url":      clone_url      = text(p);       break;
+                case "default_branch": default_branch = text(p);       break;
+                case "owner":          owner          = readAuthor(p); break;
+                default:               p.skipChildren();               break;
             }
-            else
-                head_commit = null;
+        }
 
-            Author owner          = new Author(ownerNode.hasNonNull("email") ? ownerNode.get("email").asText() : null,
-                                               ownerNode.get("name").asText());
-            Repository repository = new Repository(repositoryNode.get("id").asText(),
-                                                   repositoryNode.get("name").asText(),
-                                                   repositoryNode.get("clone_url").asText(),
-                                                   owner);
+        return new Repository(require(id, "id"), require(name, "name"),
+                              require(clone_url, "clone_url"), require(owner, "owner"),
+                              default_branch);
+    }
 
-            return new Push(after, base_ref, before,
-                            commits, compare, created,
-                            deleted, forced, head_commit,
-                            pusher, ref, repository);
+    /**
+     * Returns the current scalar value as text, e.g. numeric ids.
+     *
+     * @param p The parser positioned at a value
+     *
+     * @return The text of the value, or null for a JSON null
+     *
+     * @throws IOException             If the JSON can not be read
+     * @throws InvalidPayloadException If the value is an object or array
+     */
+    private static String text(JsonParser p) throws IOException, InvalidPayloadException
+    {
+        JsonToken token = p.currentToken();
+        if (token == JsonToken.VALUE_NULL)
+        {
+            return null;
+        }
+        if (!token.isScalarValue())
+        {
+            throw new InvalidPayloadException("Invalid GitHub push payload",
+                new IllegalArgumentException("Expected a value for " + p.getCurrentName()));
+        }
+        return p.getText();
+    }
+
+    /**
+     * Returns the current value as an array of strings.
+     *
+     * @param p The parser positioned at the start of the array
+     *
+     * @return The strings, or null for a JSON null
+     *
+     * @throws IOException             If the JSON can not be read
+     * @throws InvalidPayloadException If the value is not an array of values
+     */
+    private static String[] texts(JsonParser p) throws IOException, InvalidPayloadException
+    {
+        if (p.currentToken() == JsonToken.VALUE_NULL)
+        {
+            return null;
+        }
+        expect(p.currentToken(), JsonToken.START_ARRAY);
 
+        List<String> values = new ArrayList<>();
+        while (p.nextToken() != JsonToken.END_ARRAY)
+        {
+            values.add(require(text(p), "file"));
         }
-        catch (Exception e)
+        return values.toArray(new String[0]);
+    }
+
+    /**
+     * Returns the current value as a boolean.
+     *
+     * @param p The parser positioned at a value
+     *
+     * @return The boolean value, or null for a JSON null
+     *
+     * @throws IOException             If the JSON can not be read
+     * @throws InvalidPayloadException If the value is an object or array
+     */
+    private static Boolean bool(JsonParser p) throws IOException, InvalidPayloadException
+    {
+        JsonToken token = p.currentToken();
+        if (token == JsonToken.VALUE_TRUE || token == JsonToken.VALUE_FALSE)
         {
-            throw new InvalidPayloadException("Invalid GitHub push payload", e);
+            return token == JsonToken.VALUE_TRUE;
+        }
+        String value = text(p);
+        return value == null ? null : Boolean.parseBoolean(value.trim());
+    }
+
+    /**
+     * Checks that the parser is at the expected token.
+     *
+     * @param actual   The current token
+     * @param expected The expected token
+     *
+     * @throws InvalidPayloadException If the tokens differ
+     */
+    private static void expect(JsonToken actual, JsonToken expected) throws InvalidPayloadException
+    {
+        if (actual != expected)
+        {
+            throw new InvalidPayloadException("Invalid GitHub push payload",
+                new IllegalArgumentException("Expected " + expected + " but found " + actual));
+        }
+    }
+
+    /**
+     * Checks that a required field was present in the payload.
+     *
+     * @param value The parsed value
+     * @param field The name of the field
+     * @param <T>   The type of the value
+     *
+     * @return The value
+     *
+     * @throws InvalidPayloadException If the value is null
+     */
+    private static <T> T require(T value, String field) throws InvalidPayloadException
+    {
+        if (value == null)
+        {
+            throw new InvalidPayloadException("Invalid GitHub push payload",
+                new IllegalArgumentException("Missing field: " + field));
+        }
+        return value;
+    }
+
+    /**
+     * An InputStream that fails once more than a given number of bytes
+     * has been read, so oversized payloads are rejected while streaming.
+     */
+    private static class LimitedInputStream extends FilterInputStream
+    {
+        private final long maxBytes;
+        private long       count    = 0;
+        boolean            exceeded = false;
+
+        LimitedInputStream(InputStream in, long maxBytes)
+        {
+            super(in);
+            this.maxBytes = maxBytes;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            int b = super.read();
+            if (b >= 0)
+            {
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException
+        {
+            int n = super.read(buffer, offset, length);
+            if (n > 0)
+            {
+                count(n);
+            }
+            return n;
+        }
+
+        private void count(long n) throws IOException
+        {
+            count += n;
+            if (count > maxBytes)
+            {
+                exceeded = true;
+                throw new IOException("Payload exceeds " + maxBytes + " bytes");
+            }
         }
     }
-}
\ No newline at end of file
+}
@@ -9,9 +9,11 @@ public class Repository
     public final String name;
     public final String clone_url;
     public final Author owner;
+    /** The default branch of the repository, or null if the payload has none. */
+    public final String default_branch;
 
     /**
-     * Constructs a GitHub repository.
+     * Constructs a GitHub repository without a known default branch.
      *
      * @param id        The Node ID of the Repository object
      * @param name      The name of the repository
@@ -20,9 +22,24 @@ public class Repository
      */
     public Repository(String id, String name, String clone_url, Author owner)
     {
-        this.id        = id;
-        this.name      = name;
-        this.clone_url = clone_url;
-        this.owner     = owner;
+        this(id, name, clone_url, owner, null);
+    }
+
+    /**
+     * Constructs a GitHub repository.
+     *
+     * @param id             The Node ID of the Repository object
+     * @param name           The name of the repository
+     * @param clone_url      The clone URL of the repository
+     * @param owner          The User owner of the repository
+     * @param default_branch The default branch of the repository, or null
+     */
+    public Repository(String id, String name, String clone_url, Author owner, String default_branch)
+    {
+        this.id             = id;
+        this.name           = name;
+        this.clone_url      = clone_url;
+        this.owner          = owner;
+        this.default_branch = default_branch;
     }
 }
\ No newline at end of file
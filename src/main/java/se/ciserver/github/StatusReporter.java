@@ -0,0 +1,375 @@
+package se.ciserver.github;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.client.api.Result;
+import org.eclipse.jetty.client.util.StringContentProvider;
+
+/**
+ * Posts GitHub commit statuses in the background.
+ *
+ * Requests are sent with the asynchronous API of Jetty's HttpClient, so
+ * reporting never blocks a build. Failed posts are retried with
+ * exponential backoff, and rate limited posts wait for the time given by
+ * GitHub's {@code Retry-After} or {@code X-RateLimit-Reset} headers.
+ * A "pending" status is given up after a fixed number of attempts, but
+ * a final state is retried, at most a minute apart, until it is
+ * delivered or replaced by a newer status, so an outage of GitHub never
+ * loses the outcome of a build.
+ *
+ * At most one post per commit and context is in flight. Statuses
+ * reported meanwhile replace each other, so only the latest one is sent
+ * next and a stale "pending" is never posted after the final state.
+ */
+public class StatusReporter
+{
+    /** Upper bound of the delay between two attempts of the same post. */
+    static final long MAX_BACKOFF_MILLIS = 60_000;
+
+    /** The only state given up after the configured number of attempts. */
+    private static final String PENDING = "pending";
+
+    /** Timeout of a single post. */
+    private static final long REQUEST_TIMEOUT_SECONDS = 30;
+
+    private final HttpClient               httpClient;
+    private final String                   accessToken;
+    private final int                      maxAttempts;
+    private final long                     initialBackoffMillis;
+    private final ScheduledExecutorService scheduler;
+
+    /** Commit status URL and context to the post in flight for them. */
+    private final Map<String, Slot> slots = new HashMap<>();
+
+    private volatile long         pausedUntilMillis = 0;
+    private volatile LongConsumer postListener      = nanos -> {};
+
+    /**
+     * Constructs a StatusReporter.
+     *
+     * @param httpClient           A started HttpClient
+     * @param accessToken          A GitHub access token, empty to disable reporting
+     * @param maxAttempts          The number of attempts made for a "pending" post; final
+     *                             states are retried until they are delivered
+     * @param initialBackoffMillis The delay before the first retry, doubled for each further retry
+     */
+    public StatusReporter(HttpClient httpClient, String accessToken, int maxAttempts, long initialBackoffMillis)
+    {
+        if (maxAttempts < 1)
+        {
+            throw new IllegalArgumentException("At least one attempt is required");
+        }
+
+        this.httpClient           = httpClient;
+        this.accessToken          = accessToken;
+        this.maxAttempts          = maxAttempts;
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.scheduler            = Executors.newSingleThreadScheduledExecutor(runnable ->
+        {
+            Thread thread = new Thread(runnable, "ci-status-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Reports a commit status without waiting for it to be posted.
+     *
+     * @param url         The commit status URL of the commit
+     * @param state       The state, "pending", "success", "failure" or "error"
+     * @param description Description of the status
+     * @param context     The system setting the status
+     */
+    public void report(String url, String state, String description, String context)
+    {
+        // only runs if an accessToken was provided
+        if (accessToken.isEmpty())
+        {
+            return;
+        }
+
+        Update update = new Update(url, state, description, context);
+
+        synchronized (this)
+        {
+            Slot slot = slots.get(update.key);
+            if (slot != null)
+            {
+                // Sent once the post in flight is done, replacing any older waiting status
+                slot.next = update;
+                return;
+            }
+            slots.put(update.key, new Slot());
+        }
+
+        send(update);
+    }
+
+    /**
+     * Waits until every reported status has been posted or given up.
+     *
+     * @param timeout The maximum time to wait
+     * @param unit    The unit of the timeout
+     *
+     * @return true if no post is left, false if the timeout elapsed
+     *
+     * @throws InterruptedException If the wait is interrupted
+     */
+    public synchronized boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException
+    {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+        while (!slots.isEmpty())
+        {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0)
+            {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+
+    /**
+     * Stops retrying. Posts in flight still complete, but are not retried.
+     */
+    public void shutdown()
+    {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Sets a listener told the duration of every completed post attempt,
+     * successful or not, e.g. to record it in a histogram.
+     *
+     * @param listener Receives the duration of each post in nanoseconds
+     */
+    public void setPostListener(LongConsumer listener)
+    {
+        this.postListener = listener;
+    }
+
+    /**
+     * Posts an update, or schedules it for later while GitHub's rate
+     * limit is exhausted.
+     *
+     * @param update The status to post
+     */
+    private void send(Update update)
+    {
+        long paused = pausedUntilMillis - System.currentTimeMillis();
+        if (paused > 0)
+        {
+            retryLater(update, paused);
+            return;
+        }
+
+        update.attempts++;
+
+        try
+        {
+            long start = System.nanoTime();
+            httpClient.POST(update.url)
+                .header("Accept", "application/vnd.github+json")
+                .header("Authorization", "Bearer " + accessToken)
+                .header("X-GitHub-Api-Version", "2022-11-28")
+                .content(new StringContentProvider("{\"state\":\"" + update.state + "\",\"description\":\"" + update.description
+                                                   + "\",\"context\":\"" + update.context + "\"}"), "application/json")
+                .timeout(REQUEST_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .send(result ->
+                {
+                    postListener.accept(System.nanoTime() - start);
+                    onComplete(update, result);
+                });
+        }
+        catch (RuntimeException e)
+        {
+            // e.g. a malformed URL, which no retry can fix
+            System.out.println("Set Commit Status failed, post request exception");
+            finish(update);
+        }
+    }
+
+    /**
+     * Handles the outcome of a post.
+     *
+     * @param update The status that was posted
+     * @param result The result of the request
+     */
+    private void onComplete(Update update, Result result)
+    {
+        Response response = result.getResponse();
+        int status = result.isFailed() || response == null ? 0 : response.getStatus();
+
+        if (status >= 200 && status < 300)
+        {
+            finish(update);
+            return;
+        }
+
+        long rateLimitDelay = response == null ? -1 : rateLimitDelay(response);
+        if ((status == 403 || status == 429) && rateLimitDelay >= 0)
+        {
+            pausedUntilMillis = Math.max(pausedUntilMillis, System.currentTimeMillis() + rateLimitDelay);
+            retry(update, rateLimitDelay);
+        }
+        else if (status == 0 || status == 408 || status >= 500)
+        {
+            // Network failure, timeout or a GitHub outage
+            long backoff = initialBackoffMillis << Math.min(update.attempts - 1, 30);
+            retry(update, Math.min(backoff, MAX_BACKOFF_MILLIS));
+        }
+        else
+        {
+            System.out.println(status == 404
+                ? "Set Commit Status failed, possibly wrong repository url"
+                : "Set Commit Status failed with HTTP status " + status);
+            finish(update);
+        }
+    }
+
+    /**
+     * Retries a failed post after a delay, unless it is a "pending"
+     * status that has used all its attempts.
+     *
+     * @param update The status that failed to post
+     * @param delay  The delay in milliseconds
+     */
+    private void retry(Update update, long delay)
+    {
+        if (PENDING.equals(update.state) && update.attempts >= maxAttempts)
+        {
+            System.out.println("Set Commit Status failed, post request exception after " + update.attempts + " attempts");
+            finish(update);
+            return;
+        }
+        retryLater(update, delay);
+    }
+
+    /**
+     * Sends an update after a delay. A newer status reported for the
+     * same commit and context in the meantime is sent instead.
+     *
+     * @param update The status to send
+     * @param delay  The delay in milliseconds
+     */
+    private void retryLater(Update update, long delay)
+    {
+        try
+        {
+            scheduler.schedule(() ->
+            {
+                Update newer;
+                synchronized (this)
+                {
+                    Slot slot = slots.get(update.key);
+                    newer = slot.next;
+                    slot.next = null;
+                }
+                send(newer != null ? newer : update);
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+        catch (RuntimeException e)
+        {
+            // Shut down
+            finish(update);
+        }
+    }
+
+    /**
+     * Completes the post of an update and sends the status reported for
+     * the same commit and context meanwhile, if any.
+     *
+     * @param update The status whose post is done
+     */
+    private void finish(Update update)
+    {
+        Update next;
+
+        synchronized (this)
+        {
+            Slot slot = slots.get(update.key);
+            next = slot.next;
+            slot.next = null;
+
+            if (next == null)
+            {
+                slots.remove(update.key);
+                notifyAll();
+                return;
+            }
+        }
+
+        send(next);
+    }
+
+    /**
+     * Returns how long GitHub asks clients to wait before the next request.
+     *
+     * @param response The response of a rejected post
+     *
+     * @return The delay in milliseconds, or -1 if the response is not rate limited
+     */
+    private static long rateLimitDelay(Response response)
+    {
+        try
+        {
+            String retryAfter = response.getHeaders().get("Retry-After");
+            if (retryAfter != null)
+            {
+                return Math.max(0, Long.parseLong(retryAfter.trim()) * 1000);
+            }
+
+            String remaining = response.getHeaders().get("X-RateLimit-Remaining");
+            String reset     = response.getHeaders().get("X-RateLimit-Reset");
+            if ("0".equals(remaining) && reset != null)
+            {
+                return Math.max(0, Long.parseLong(reset.trim()) * 1000 - System.currentTimeMillis());
+            }
+        }
+        catch (NumberFormatException e)
+        {
+            /* not a usable rate limit header */
+        }
+        return -1;
+    }
+
+    /**
+     * A commit status to post.
+     */
+    private static class Update
+    {
+        final String key;
+        final String url;
+        final String state;
+        final String description;
+        final String context;
+        int          attempts = 0;
+
+        Update(String url, String state, String description, String context)
+        {
+            this.key         = url + "\n" + context;
+            this.url         = url;
+            this.state       = state;
+            this.description = description;
+            this.context     = context;
+        }
+    }
+
+    /**
+     * The state of one commit and context while a post is in flight.
+     */
+    private static class Slot
+    {
+        /** The latest status reported while the post was in flight. */
+        Update next;
+    }
+}
@@ -0,0 +1,91 @@
+package se.ciserver.loadtest;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+
+/**
+ * Stands in for the GitHub commit status API during a load test. It
+ * accepts every {@code POST .../statuses/<sha>} and records when the
+ * first final status (anything but {@code pending}) of each commit
+ * arrived, which ends the commit's end-to-end latency.
+ */
+public class FakeStatusEndpoint extends AbstractHandler
+{
+    private final ObjectMapper      mapper     = new ObjectMapper();
+    private final Map<String, Long> finalNanos = new ConcurrentHashMap<>();
+    private final LongAdder         posts      = new LongAdder();
+
+    /**
+     * Records a commit status post and answers it like GitHub does.
+     *
+     * @param target      - The requested URL
+     * @param baseRequest - Jetty-specific request object, used to mark the request as handled
+     * @param request     - Standard Java Servlet request
+     * @param response    - Standard Java Servlet response
+     *
+     * @throws IOException If the request can not be read
+     */
+    @Override
+    public void handle(String target,
+                       Request baseRequest,
+                       HttpServletRequest request,
+                       HttpServletResponse response)
+            throws IOException
+    {
+        int statuses = target.lastIndexOf("/statuses/");
+        if (!"POST".equalsIgnoreCase(request.getMethod()) || statuses < 0)
+        {
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            baseRequest.setHandled(true);
+            return;
+        }
+
+        long     received = System.nanoTime();
+        String   sha      = target.substring(statuses + "/statuses/".length());
+        JsonNode state    = mapper.readTree(request.getInputStream()).get("state");
+
+        posts.increment();
+        if (state != null && !"pending".equals(state.asText()))
+        {
+            finalNanos.putIfAbsent(sha, received);
+        }
+
+        response.setStatus(HttpServletResponse.SC_CREATED);
+        response.setContentType("application/json");
+        response.getWriter().print("{}");
+        baseRequest.setHandled(true);
+    }
+
+    /**
+     * Returns when the first final status of a commit arrived.
+     *
+     * @param sha The commit SHA
+     *
+     * @return The {@link System#nanoTime()} of the post, or null if none arrived yet
+     */
+    public Long finalStatusNanos(String sha)
+    {
+        return finalNanos.get(sha);
+    }
+
+    /**
+     * Returns the number of status posts received, pending ones included.
+     *
+     * @return The number of posts
+     */
+    public long posts()
+    {
+        return posts.sum();
+    }
+}
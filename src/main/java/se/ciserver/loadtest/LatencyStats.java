@@ -0,0 +1,66 @@
+package se.ciserver.loadtest;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Collects the latencies of a load test and computes their percentiles.
+ * Every latency is kept, so the percentiles are exact.
+ */
+public class LatencyStats
+{
+    private final ConcurrentLinkedQueue<Long> nanos = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Records one latency.
+     *
+     * @param latencyNanos The latency in nanoseconds
+     */
+    public void record(long latencyNanos)
+    {
+        nanos.add(latencyNanos);
+    }
+
+    /**
+     * Returns the number of recorded latencies.
+     *
+     * @return The count
+     */
+    public int count()
+    {
+        return nanos.size();
+    }
+
+    /**
+     * Returns a percentile of the recorded latencies, using the nearest
+     * rank method.
+     *
+     * @param percentile The percentile, e.g. 99 for p99
+     *
+     * @return The latency in milliseconds, or 0 if none was recorded
+     */
+    public double percentileMillis(double percentile)
+    {
+        long[] sorted = nanos.stream().mapToLong(Long::longValue).toArray();
+        if (sorted.length == 0)
+        {
+            return 0;
+        }
+        Arrays.sort(sorted);
+
+        int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length, rank) - 1)] / 1e6;
+    }
+
+    /**
+     * Formats the p50, p95, p99 and maximum latency.
+     *
+     * @return The summary, e.g. {@code p50 1.2 ms  p95 3.4 ms  p99 8.0 ms  max 9.1 ms}
+     */
+    public String summary()
+    {
+        return String.format("p50 %.1f ms  p95 %.1f ms  p99 %.1f ms  max %.1f ms  (n=%d)",
+                             percentileMillis(50), percentileMillis(95),
+                             percentileMillis(99), percentileMillis(100), count());
+    }
+}
@@ -0,0 +1,486 @@
+package se.ciserver.loadtest;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.client.util.BytesContentProvider;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+
+import se.ciserver.ContinuousIntegrationServer;
+import se.ciserver.ServerConfig;
+
+/**
+ * Replays GitHub push payloads against {@code /webhook} of an in-process
+ * CI server at a given rate and concurrency, and reports the throughput
+ * and the acknowledgment and end-to-end latency percentiles.
+ *
+ * The server runs with a {@link StubCompiler} and posts its commit
+ * statuses to a local {@link FakeStatusEndpoint}, so the test measures
+ * queueing and request handling only. Every replayed push gets a fresh
+ * commit SHA and git tree, so none is answered from the result cache.
+ *
+ * Latencies are measured from the time a request was scheduled to be
+ * sent, not from when it was actually sent, so that a server falling
+ * behind shows up in the percentiles instead of slowing the load down.
+ *
+ * Server settings are read from the usual {@code ci.*} system properties:
+ * <pre>
+ * mvn compile exec:java -Dexec.mainClass=se.ciserver.loadtest.LoadGenerator \
+ *     -Dci.buildWorkers=4 -Dexec.args="--requests=1000 --rate=50 --concurrency=16"
+ * </pre>
+ */
+public class LoadGenerator
+{
+    /** A push payload replayed when no recorded payloads are given. */
+    static final String SYNTHETIC_PAYLOAD = """
+        {
+          "ref": "refs/heads/main", "before": "0000000000000000000000000000000000000000",
+          "after": "0000000000000000000000000000000000000000",
+          "created": false, "deleted": false, "forced": false, "base_ref": null,
+          "compare": "https://github.com/load/repo/compare/0000000...0000000",
+          "commits": [],
+          "head_commit": {
+            "id": "0000000000000000000000000000000000000000",
+            "tree_id": "0000000000000000000000000000000000000000",
+            "distinct": true, "message": "Load test commit",
+            "timestamp": "2026-01-01T00:00:00Z",
+            "url": "https://github.com/load/repo/commit/0000000",
+            "author": { "name": "load", "email": "load@example.com" },
+            "committer": { "name": "load", "email": "load@example.com" }
+          },
+          "pusher": { "name": "load" },
+          "repository": {
+            "id": "1", "name": "repo", "clone_url": "https://github.com/load/repo.git",
+            "owner": { "name": "load", "email": "load@example.com" }
+          }
+        }
+        """;
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /**
+     * Runs a load test with the options given on the command line and
+     * prints its report.
+     *
+     * @param args Options of the form {@code --name=value}, see {@link Options}
+     *
+     * @throws Exception If a server fails to start or the payloads can not be read
+     */
+    public static void main(String[] args) throws Exception
+    {
+        Options options = Options.parse(args);
+        Report  report  = run(options, ServerConfig.fromSystemProperties());
+        System.out.println();
+        System.out.println(report.format());
+    }
+
+    /**
+     * Starts a fake status endpoint and a CI server with a stub compiler,
+     * replays the payloads and waits for every accepted push to get its
+     * final commit status.
+     *
+     * @param options The load to generate
+     * @param config  The configuration of the CI server; its history file
+     *                and GitHub API URL are replaced for the test
+     *
+     * @return The results of the run
+     *
+     * @throws Exception If a server fails to start or the payloads can not be read
+     */
+    public static Report run(Options options, ServerConfig config) throws Exception
+    {
+        List<ObjectNode> templates = loadPayloads(options.payloads);
+        byte[][]         bodies    = new byte[options.requests][];
+        String[]         shas      = new String[options.requests];
+        for (int i = 0; i < options.requests; i++)
+        {
+            shas[i]   = (UUID.randomUUID().toString().replace("-", "") + "00000000").substring(0, 40);
+            bodies[i] = payload(templates.get(i % templates.size()), shas[i], i, options.branches);
+        }
+
+        Path               historyDir = Files.createTempDirectory("ci-load-");
+        FakeStatusEndpoint statuses   = new FakeStatusEndpoint();
+        Server             github     = new Server(0);
+        github.setHandler(statuses);
+        github.start();
+
+        config.historyFile  = historyDir.resolve("history.json").toString();
+        config.githubApiUrl = "http://localhost:" + port(github);
+
+        Server ci = new Server(0);
+        ci.setHandler(new ContinuousIntegrationServer("load-test", config, new StubCompiler(options.buildMillis)));
+        ci.start();
+
+        HttpClient client = new HttpClient();
+        client.setMaxConnectionsPerDestination(options.concurrency);
+        client.start();
+
+        Report report = new Report();
+        try
+        {
+            replay(options, bodies, shas, client, "http://localhost:" + port(ci) + "/webhook", statuses, report);
+        }
+        finally
+        {
+            client.stop();
+            ci.stop();
+            github.stop();
+        }
+        return report;
+    }
+
+    /**
+     * Sends the payloads and collects the latencies.
+     *
+     * @param options  The load to generate
+     * @param bodies   The payloads, one per request
+     * @param shas     The commit SHA of each payload
+     * @param client   A started HttpClient
+     * @param url      The webhook URL
+     * @param statuses The endpoint receiving the commit statuses
+     * @param report   Receives the results
+     *
+     * @throws InterruptedException If the run is interrupted
+     */
+    private static void replay(Options options, byte[][] bodies, String[] shas, HttpClient client,
+                               String url, FakeStatusEndpoint statuses, Report report)
+            throws InterruptedException
+    {
+        int            requests  = bodies.length;
+        long[]         scheduled = new long[requests];
+        boolean[]      acked     = new boolean[requests];
+        Semaphore      inFlight  = new Semaphore(options.concurrency);
+        CountDownLatch answered  = new CountDownLatch(requests);
+        AtomicInteger  accepted  = new AtomicInteger();
+        AtomicInteger  reused    = new AtomicInteger();
+        AtomicInteger  rejected  = new AtomicInteger();
+        AtomicInteger  failed    = new AtomicInteger();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < requests; i++)
+        {
+            if (options.rate > 0)
+            {
+                scheduled[i] = start + (long) (i * 1e9 / options.rate);
+                for (long wait; (wait = scheduled[i] - System.nanoTime()) > 0; )
+                {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+            inFlight.acquire();
+            if (options.rate <= 0)
+            {
+                scheduled[i] = System.nanoTime();
+            }
+
+            int request = i;
+            client.POST(url)
+                .header("X-GitHub-Event", "push")
+                .content(new BytesContentProvider("application/json", bodies[i]))
+                .timeout(options.timeoutSeconds, TimeUnit.SECONDS)
+                .send(result ->
+                {
+                    long     now      = System.nanoTime();
+                    Response response = result.getResponse();
+                    int      status   = result.isFailed() || response == null ? 0 : response.getStatus();
+
+                    report.acknowledgment.record(now - scheduled[request]);
+                    if (status == 202)
+                    {
+                        accepted.incrementAndGet();
+                        acked[request] = true;
+                    }
+                    else if (status == 200)
+                    {
+                        reused.incrementAndGet();
+                        acked[request] = true;
+                    }
+                    else if (status == 503)
+                    {
+                        rejected.incrementAndGet();
+                    }
+                    else
+                    {
+                        failed.incrementAndGet();
+                    }
+                    inFlight.release();
+                    answered.countDown();
+                });
+        }
+        long sent = System.nanoTime();
+
+        answered.await(options.timeoutSeconds, TimeUnit.SECONDS);
+
+        // Wait for the final status of every acknowledged push
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(options.timeoutSeconds);
+        long last     = sent;
+        for (int i = 0; i < requests; i++)
+        {
+            if (!acked[i])
+            {
+                continue;
+            }
+            Long done;
+            while ((done = statuses.finalStatusNanos(shas[i])) == null && System.nanoTime() < deadline)
+            {
+                Thread.sleep(10);
+            }
+            if (done != null)
+            {
+                report.endToEnd.record(done - scheduled[i]);
+                last = Math.max(last, done);
+            }
+        }
+
+        report.sent          = requests;
+        report.accepted      = accepted.get();
+        report.reused        = reused.get();
+        report.rejected      = rejected.get();
+        report.failed        = failed.get();
+        report.sendNanos     = sent - start;
+        report.durationNanos = last - start;
+        report.statusPosts   = statuses.posts();
+    }
+
+    /**
+     * Reads the payloads to replay.
+     *
+     * @param location A JSON file, a directory of {@code .json} files, or
+     *                 empty for the synthetic payload
+     *
+     * @return The payloads
+     *
+     * @throws IOException If a payload can not be read or is not a JSON object
+     */
+    static List<ObjectNode> loadPayloads(String location) throws IOException
+    {
+        List<Path> files = new ArrayList<>();
+        if (location != null && !location.isBlank())
+        {
+            Path path = Paths.get(location);
+            if (Files.isDirectory(path))
+            {
+                try (Stream<Path> list = Files.list(path))
+                {
+                    files = list.filter(p -> p.toString().endsWith(".json")).sorted().collect(Collectors.toList());
+                }
+            }
+            else
+            {
+                files.add(path);
+            }
+        }
+
+        List<ObjectNode> payloads = new ArrayList<>();
+        for (Path file : files)
+        {
+            payloads.add(asObject(MAPPER.readTree(file.toFile()), file.toString()));
+        }
+        if (payloads.isEmpty())
+        {
+            payloads.add(asObject(MAPPER.readTree(SYNTHETIC_PAYLOAD), "synthetic payload"));
+        }
+        return payloads;
+    }
+
+    /**
+     * Copies a payload with a new head commit SHA and git tree, and a
+     * branch out of the given number of branches.
+     *
+     * @param template The payload to copy
+     * @param sha      The new commit SHA, also used as its tree id
+     * @param index    The number of the request
+     * @param branches The number of branches pushes are spread over, 0 to keep the payload's branch
+     *
+     * @return The JSON bytes of the payload
+     *
+     * @throws IOException If the payload can not be serialized
+     */
+    private static byte[] payload(ObjectNode template, String sha, int index, int branches) throws IOException
+    {
+        ObjectNode push = template.deepCopy();
+        push.put("after", sha);
+        if (branches > 0)
+        {
+            push.put("ref", "refs/heads/load-" + (index % branches));
+        }
+        if (push.get("head_commit") instanceof ObjectNode)
+        {
+            ObjectNode head = (ObjectNode) push.get("head_commit");
+            head.put("id", sha);
+            head.put("tree_id", sha);
+        }
+        return MAPPER.writeValueAsBytes(push);
+    }
+
+    /**
+     * Checks that a payload is a JSON object.
+     *
+     * @param node   The parsed payload
+     * @param source Where the payload came from, for the error message
+     *
+     * @return The payload as an object
+     *
+     * @throws IOException If the payload is not a JSON object
+     */
+    private static ObjectNode asObject(JsonNode node, String source) throws IOException
+    {
+        if (!(node instanceof ObjectNode))
+        {
+            throw new IOException("Not a push payload: " + source);
+        }
+        return (ObjectNode) node;
+    }
+
+    /**
+     * Returns the port a started server listens on.
+     *
+     * @param server The server
+     *
+     * @return The local port
+     */
+    private static int port(Server server)
+    {
+        return ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+    }
+
+    /**
+     * The load a run generates.
+     */
+    public static class Options
+    {
+        /** Number of webhooks sent. */
+        public int    requests       = 200;
+        /** Webhooks sent per second, 0 to send as fast as the concurrency allows. */
+        public double rate           = 20;
+        /** Maximum number of webhook requests in flight. */
+        public int    concurrency    = 8;
+        /** Number of branches the pushes are spread over, 0 to keep the branches of the payloads. */
+        public int    branches       = 10;
+        /** Time every stub build takes. */
+        public long   buildMillis    = 200;
+        /** A recorded payload or a directory of them, empty for a synthetic payload. */
+        public String payloads       = "";
+        /** Time to wait for the acknowledgments, and again for the final statuses. */
+        public int    timeoutSeconds = 120;
+
+        /**
+         * Parses command line options of the form {@code --name=value},
+         * e.g. {@code --requests=1000 --rate=50 --build-millis=500}.
+         *
+         * @param args The command line arguments
+         *
+         * @return The options, with defaults for the ones not given
+         *
+         * @throws IllegalArgumentException If an option is unknown or has an invalid value
+         */
+        public static Options parse(String[] args)
+        {
+            Options options = new Options();
+            for (String arg : args)
+            {
+                int equals = arg.indexOf('=');
+                if (!arg.startsWith("--") || equals < 0)
+                {
+                    throw new IllegalArgumentException("Expected --name=value but got " + arg);
+                }
+                String name  = arg.substring(2, equals);
+                String value = arg.substring(equals + 1);
+
+                try
+                {
+                    switch (name)
+                    {
+                        case "requests":        options.requests       = Integer.parseInt(value);   break;
+                        case "rate":            options.rate           = Double.parseDouble(value); break;
+                        case "concurrency":     options.concurrency    = Integer.parseInt(value);   break;
+                        case "branches":        options.branches       = Integer.parseInt(value);   break;
+                        case "build-millis":    options.buildMillis    = Long.parseLong(value);     break;
+                        case "payloads":        options.payloads       = value;                     break;
+                        case "timeout-seconds": options.timeoutSeconds = Integer.parseInt(value);   break;
+                        default: throw new IllegalArgumentException("Unknown option --" + name);
+                    }
+                }
+                catch (NumberFormatException e)
+                {
+                    throw new IllegalArgumentException("Invalid value for --" + name + ": " + value, e);
+                }
+            }
+
+            if (options.requests < 1 || options.concurrency < 1)
+            {
+                throw new IllegalArgumentException("--requests and --concurrency must be positive");
+            }
+            return options;
+        }
+    }
+
+    /**
+     * The results of a run.
+     */
+    public static class Report
+    {
+        /** Latency from scheduling a webhook to receiving its HTTP answer. */
+        public final LatencyStats acknowledgment = new LatencyStats();
+        /** Latency from scheduling a webhook to its final commit status. */
+        public final LatencyStats endToEnd       = new LatencyStats();
+
+        /** Webhooks sent. */
+        public int  sent;
+        /** Webhooks answered with 202, i.e. queued. */
+        public int  accepted;
+        /** Webhooks answered with 200, i.e. reusing an earlier result. */
+        public int  reused;
+        /** Webhooks answered with 503 because the queue was full. */
+        public int  rejected;
+        /** Webhooks that failed or got any other answer. */
+        public int  failed;
+        /** Commit status posts received, pending ones included. */
+        public long statusPosts;
+        /** Time taken to send all webhooks. */
+        public long sendNanos;
+        /** Time from the first webhook to the last final commit status. */
+        public long durationNanos;
+
+        /**
+         * Formats the report for the console.
+         *
+         * @return The report
+         */
+        public String format()
+        {
+            double sendSeconds = sendNanos / 1e9;
+            double seconds     = durationNanos / 1e9;
+            int    missing     = accepted + reused - endToEnd.count();
+
+            return String.format(
+                "Webhooks:        %d sent in %.1f s (%.1f/s): %d queued, %d reused, %d rejected, %d failed%n"
+              + "Builds:          %d completed in %.1f s (%.1f/s), %d without final status, %d status posts%n"
+              + "Acknowledgment:  %s%n"
+              + "End-to-end:      %s",
+                sent, sendSeconds, sent / Math.max(sendSeconds, 1e-9), accepted, reused, rejected, failed,
+                endToEnd.count(), seconds, endToEnd.count() / Math.max(seconds, 1e-9), missing, statusPosts,
+                acknowledgment.summary(),
+                endToEnd.summary());
+        }
+    }
+}
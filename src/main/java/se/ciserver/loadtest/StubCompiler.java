@@ -0,0 +1,63 @@
+package se.ciserver.loadtest;
+
+import se.ciserver.build.BuildJob;
+import se.ciserver.build.CompilationResult;
+import se.ciserver.build.Compiler;
+import se.ciserver.build.PhaseTimings;
+
+/**
+ * A Compiler that runs no git or Maven processes and instead takes a
+ * fixed time per build, so that a load test measures the server rather
+ * than the builds. Like a real build, it stops early when its job is
+ * superseded.
+ */
+public class StubCompiler extends Compiler
+{
+    /** Interval at which a running stub build checks for being superseded. */
+    private static final long POLL_MILLIS = 10;
+
+    private final long buildMillis;
+
+    /**
+     * Constructs a StubCompiler.
+     *
+     * @param buildMillis The time every build takes
+     */
+    public StubCompiler(long buildMillis)
+    {
+        this.buildMillis = buildMillis;
+    }
+
+    /**
+     * Waits for the build time, or until the job is superseded, and
+     * reports a successful build.
+     *
+     * @param job The build to run
+     *
+     * @return A successful {@link CompilationResult} with its timing
+     */
+    @Override
+    public CompilationResult compile(BuildJob job)
+    {
+        long start    = System.nanoTime();
+        long deadline = System.currentTimeMillis() + buildMillis;
+
+        try
+        {
+            long remaining;
+            while (!job.isCancelled() && (remaining = deadline - System.currentTimeMillis()) > 0)
+            {
+                Thread.sleep(Math.min(POLL_MILLIS, remaining));
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        String output = "Stub build of " + job.commitSha;
+        job.output.append(output);
+        job.timings.record(PhaseTimings.COMPILE, start);
+        return new CompilationResult(true, true, output, "").withTimings(job.timings);
+    }
+}
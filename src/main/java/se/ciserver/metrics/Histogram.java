@@ -0,0 +1,106 @@
+package se.ciserver.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A latency histogram with fixed buckets. Observations only increment
+ * {@link LongAdder}s, so recording is lock-free and concurrent builds
+ * never contend on it; the buckets are summed up when the histogram is
+ * scraped.
+ */
+public class Histogram
+{
+    /** Upper bounds of the buckets in seconds, from HTTP calls up to long builds. */
+    static final double[] BUCKETS =
+    {
+        0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 120, 300, 600, 1800
+    };
+
+    private final long[]      boundsNanos = new long[BUCKETS.length];
+    private final LongAdder[] counts      = new LongAdder[BUCKETS.length + 1];
+    private final LongAdder   sumNanos    = new LongAdder();
+
+    /**
+     * Constructs an empty Histogram.
+     */
+    public Histogram()
+    {
+        for (int i = 0; i < BUCKETS.length; i++)
+        {
+            boundsNanos[i] = (long) (BUCKETS[i] * 1e9);
+        }
+        for (int i = 0; i < counts.length; i++)
+        {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records a duration in nanoseconds.
+     *
+     * @param nanos The duration
+     */
+    public void observeNanos(long nanos)
+    {
+        int bucket = 0;
+        while (bucket < boundsNanos.length && nanos > boundsNanos[bucket])
+        {
+            bucket++;
+        }
+        counts[bucket].increment();
+        sumNanos.add(nanos);
+    }
+
+    /**
+     * Records a duration in milliseconds.
+     *
+     * @param millis The duration
+     */
+    public void observeMillis(long millis)
+    {
+        observeNanos(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    /**
+     * Returns the number of recorded durations.
+     *
+     * @return The count
+     */
+    public long count()
+    {
+        long count = 0;
+        for (LongAdder bucket : counts)
+        {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    /**
+     * Appends the histogram in the Prometheus text format, as cumulative
+     * {@code _bucket} series followed by {@code _sum} and {@code _count}.
+     *
+     * @param out    The exposition being written
+     * @param name   The metric name, without suffix
+     * @param labels Labels shared by all series, e.g. {@code phase="clone"}, or empty
+     */
+    void appendTo(StringBuilder out, String name, String labels)
+    {
+        String prefix     = labels.isEmpty() ? "{" : "{" + labels + ",";
+        long   cumulative = 0;
+
+        for (int i = 0; i < counts.length; i++)
+        {
+            cumulative += counts[i].sum();
+            String le = i < BUCKETS.length ? Metrics.formatDouble(BUCKETS[i]) : "+Inf";
+            out.append(name).append("_bucket").append(prefix).append("le=\"").append(le).append("\"} ")
+               .append(cumulative).append('\n');
+        }
+
+        String suffix = labels.isEmpty() ? "" : "{" + labels + "}";
+        out.append(name).append("_sum").append(suffix).append(' ')
+           .append(Metrics.formatDouble(sumNanos.sum() / 1e9)).append('\n');
+        out.append(name).append("_count").append(suffix).append(' ').append(cumulative).append('\n');
+    }
+}
@@ -0,0 +1,293 @@
+package se.ciserver.metrics;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Collects the metrics of the CI server and renders them in the
+ * Prometheus text exposition format for the {@code /metrics} endpoint.
+ *
+ * Counters and histograms are built on {@link LongAdder}s and looked up
+ * in concurrent maps, so recording from webhook handlers, build workers
+ * and HTTP client threads never takes a lock. Gauges such as the queue
+ * depth and the JVM figures are only read when the metrics are scraped.
+ */
+public class Metrics
+{
+    /** Content type of the Prometheus text exposition format. */
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final Map<String, LongAdder>  webhooks    = new ConcurrentHashMap<>();
+    private final Map<String, Histogram>  phases      = new ConcurrentHashMap<>();
+    private final Map<Integer, Histogram> queueWaits  = new ConcurrentHashMap<>();
+    private final Map<String, Histogram>  repoWaits   = new ConcurrentHashMap<>();
+    private final Map<String, Histogram>  repoBuilds  = new ConcurrentHashMap<>();
+    private final Histogram               statusPosts = new Histogram();
+    private final Histogram               storeSaves  = new Histogram();
+    private final IntSupplier             queueDepth;
+    private final IntSupplier             activeBuilds;
+
+    private volatile Supplier<Map<String, Integer>> repoQueued = Collections::emptyMap;
+    private volatile Supplier<Map<String, Integer>> repoActive = Collections::emptyMap;
+
+    /**
+     * Constructs a Metrics registry.
+     *
+     * @param queueDepth   Supplies the number of builds waiting for a worker
+     * @param activeBuilds Supplies the number of builds being run
+     */
+    public Metrics(IntSupplier queueDepth, IntSupplier activeBuilds)
+    {
+        this.queueDepth   = queueDepth;
+        this.activeBuilds = activeBuilds;
+    }
+
+    /**
+     * Sets the gauges reporting the waiting and running builds of each
+     * repository.
+     *
+     * @param queued Supplies the number of waiting builds of each repository
+     * @param active Supplies the number of running builds of each repository
+     */
+    public void setRepositoryGauges(Supplier<Map<String, Integer>> queued,
+                                    Supplier<Map<String, Integer>> active)
+    {
+        this.repoQueued = queued;
+        this.repoActive = active;
+    }
+
+    /**
+     * Counts a received webhook.
+     *
+     * @param outcome How the webhook was answered, e.g. {@code queued} or {@code invalid}
+     */
+    public void countWebhook(String outcome)
+    {
+        LongAdder counter = webhooks.get(outcome);
+        if (counter == null)
+        {
+            counter = webhooks.computeIfAbsent(outcome, k -> new LongAdder());
+        }
+        counter.increment();
+    }
+
+    /**
+     * Records the duration of a build phase.
+     *
+     * @param phase  The phase, see {@link se.ciserver.build.PhaseTimings}
+     * @param millis The duration in milliseconds
+     */
+    public void recordPhase(String phase, long millis)
+    {
+        histogram(phases, phase).observeMillis(millis);
+    }
+
+    /**
+     * Records how long a build waited in the queue.
+     *
+     * @param priority The priority the build was queued with
+     * @param nanos    The waiting time in nanoseconds
+     */
+    public void recordQueueWait(int priority, long nanos)
+    {
+        histogram(queueWaits, priority).observeNanos(nanos);
+    }
+
+    /**
+     * Records how long a build of a repository waited in the queue.
+     *
+     * @param repository The repository of the build
+     * @param nanos      The waiting time in nanoseconds
+     */
+    public void recordRepositoryWait(String repository, long nanos)
+    {
+        histogram(repoWaits, repository).observeNanos(nanos);
+    }
+
+    /**
+     * Records how long a build of a repository took from its push to its
+     * stored result.
+     *
+     * @param repository The repository of the build
+     * @param nanos      The time from queuing to completion in nanoseconds
+     */
+    public void recordRepositoryBuild(String repository, long nanos)
+    {
+        histogram(repoBuilds, repository).observeNanos(nanos);
+    }
+
+    /**
+     * Records the duration of one commit status post.
+     *
+     * @param nanos The duration in nanoseconds
+     */
+    public void recordStatusPost(long nanos)
+    {
+        statusPosts.observeNanos(nanos);
+    }
+
+    /**
+     * Records the duration of saving a build to the build store.
+     *
+     * @param nanos The duration in nanoseconds
+     */
+    public void recordStoreSave(long nanos)
+    {
+        storeSaves.observeNanos(nanos);
+    }
+
+    /**
+     * Renders all metrics in the Prometheus text exposition format.
+     *
+     * @return The exposition
+     */
+    public String scrape()
+    {
+        StringBuilder out = new StringBuilder(4096);
+
+        header(out, "ci_webhooks_total", "counter", "Webhooks received, by how they were answered.");
+        new TreeMap<>(webhooks).forEach((outcome, count) ->
+            out.append("ci_webhooks_total{outcome=\"").append(outcome).append("\"} ").append(count.sum()).append('\n'));
+
+        header(out, "ci_queue_depth", "gauge", "Builds waiting for a worker.");
+        out.append("ci_queue_depth ").append(queueDepth.getAsInt()).append('\n');
+
+        header(out, "ci_active_builds", "gauge", "Builds being run by a worker.");
+        out.append("ci_active_builds ").append(activeBuilds.getAsInt()).append('\n');
+
+        header(out, "ci_build_phase_seconds", "histogram", "Duration of each build phase.");
+        new TreeMap<>(phases).forEach((phase, histogram) ->
+            histogram.appendTo(out, "ci_build_phase_seconds", "phase=\"" + phase + "\""));
+
+        header(out, "ci_queue_wait_seconds", "histogram", "Time builds waited for a worker, by priority.");
+        new TreeMap<>(queueWaits).forEach((priority, histogram) ->
+            histogram.appendTo(out, "ci_queue_wait_seconds", "priority=\"" + priority + "\""));
+
+        header(out, "ci_repository_queue_depth", "gauge", "Builds waiting for a worker, by repository.");
+        repoQueued.get().forEach((repository, count) ->
+            out.append("ci_repository_queue_depth{repository=\"").append(escape(repository)).append("\"} ")
+               .append(count).append('\n'));
+
+        header(out, "ci_repository_active_builds", "gauge", "Builds being run, by repository.");
+        repoActive.get().forEach((repository, count) ->
+            out.append("ci_repository_active_builds{repository=\"").append(escape(repository)).append("\"} ")
+               .append(count).append('\n'));
+
+        header(out, "ci_repository_queue_wait_seconds", "histogram", "Time builds waited for a worker, by repository.");
+        new TreeMap<>(repoWaits).forEach((repository, histogram) ->
+            histogram.appendTo(out, "ci_repository_queue_wait_seconds", "repository=\"" + escape(repository) + "\""));
+
+        header(out, "ci_repository_build_seconds", "histogram", "Time from push to build result, by repository.");
+        new TreeMap<>(repoBuilds).forEach((repository, histogram) ->
+            histogram.appendTo(out, "ci_repository_build_seconds", "repository=\"" + escape(repository) + "\""));
+
+        header(out, "ci_status_post_seconds", "histogram", "Duration of one GitHub commit status post.");
+        statusPosts.appendTo(out, "ci_status_post_seconds", "");
+
+        header(out, "ci_store_save_seconds", "histogram", "Duration of saving a build to the build store.");
+        storeSaves.appendTo(out, "ci_store_save_seconds", "");
+
+        appendJvm(out);
+        return out.toString();
+    }
+
+    /**
+     * Appends the heap, thread and garbage collection figures of the JVM.
+     *
+     * @param out The exposition being written
+     */
+    private static void appendJvm(StringBuilder out)
+    {
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+
+        header(out, "jvm_memory_heap_used_bytes", "gauge", "Used heap memory.");
+        out.append("jvm_memory_heap_used_bytes ").append(heap.getUsed()).append('\n');
+        header(out, "jvm_memory_heap_committed_bytes", "gauge", "Heap memory committed by the JVM.");
+        out.append("jvm_memory_heap_committed_bytes ").append(heap.getCommitted()).append('\n');
+        header(out, "jvm_memory_heap_max_bytes", "gauge", "Maximum heap memory, -1 if undefined.");
+        out.append("jvm_memory_heap_max_bytes ").append(heap.getMax()).append('\n');
+
+        header(out, "jvm_threads_live", "gauge", "Live JVM threads.");
+        out.append("jvm_threads_live ").append(ManagementFactory.getThreadMXBean().getThreadCount()).append('\n');
+
+        header(out, "jvm_gc_collections_total", "counter", "Garbage collections, by collector.");
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+        {
+            out.append("jvm_gc_collections_total{gc=\"").append(gc.getName()).append("\"} ")
+               .append(Math.max(0, gc.getCollectionCount())).append('\n');
+        }
+        header(out, "jvm_gc_collection_seconds_total", "counter", "Time spent in garbage collection, by collector.");
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+        {
+            out.append("jvm_gc_collection_seconds_total{gc=\"").append(gc.getName()).append("\"} ")
+               .append(formatDouble(Math.max(0, gc.getCollectionTime()) / 1000.0)).append('\n');
+        }
+    }
+
+    /**
+     * Returns the histogram of a label value, creating it on first use.
+     *
+     * @param histograms The histograms by label value
+     * @param key        The label value
+     * @param <K>        The type of the label value
+     *
+     * @return The histogram
+     */
+    private static <K> Histogram histogram(Map<K, Histogram> histograms, K key)
+    {
+        Histogram histogram = histograms.get(key);
+        if (histogram == null)
+        {
+            histogram = histograms.computeIfAbsent(key, k -> new Histogram());
+        }
+        return histogram;
+    }
+
+    /**
+     * Escapes a label value of the text exposition format.
+     *
+     * @param value The label value, e.g. a repository name
+     *
+     * @return The value with backslashes, quotes and newlines escaped
+     */
+    static String escape(String value)
+    {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * Appends the HELP and TYPE lines of a metric.
+     *
+     * @param out  The exposition being written
+     * @param name The metric name
+     * @param type The metric type
+     * @param help The description of the metric
+     */
+    private static void header(StringBuilder out, String name, String type, String help)
+    {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n')
+           .append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    /**
+     * Formats a number without an exponent or trailing zeros, e.g.
+     * {@code 0.005} or {@code 10}.
+     *
+     * @param value The number
+     *
+     * @return The formatted number
+     */
+    static String formatDouble(double value)
+    {
+        return BigDecimal.valueOf(value).stripTrailingZeros().toPlainString();
+    }
+}
@@ -1,19 +1,38 @@
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.io.UncheckedIOException;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -25,14 +44,38 @@ import org.eclipse.jetty.server.handler.AbstractHandler;
 import static org.junit.Assert.assertNull;
 
 import se.ciserver.ContinuousIntegrationServer;
+import se.ciserver.ServerConfig;
 import se.ciserver.TestUtils;
 import se.ciserver.buildlist.Build;
+import se.ciserver.buildlist.BuildQuery;
 import se.ciserver.buildlist.BuildStore;
+import se.ciserver.buildlist.LogIndex;
+import se.ciserver.buildlist.LogSearchIndex;
+import se.ciserver.buildlist.LogStore;
+import se.ciserver.github.Author;
+import se.ciserver.github.Commit;
 import se.ciserver.github.InvalidPayloadException;
+import se.ciserver.github.Pusher;
+import se.ciserver.github.Repository;
+import se.ciserver.github.PayloadTooLargeException;
 import se.ciserver.github.Push;
 import se.ciserver.github.PushParser;
+import se.ciserver.github.StatusReporter;
+import se.ciserver.loadtest.LoadGenerator;
+import se.ciserver.metrics.Metrics;
+import se.ciserver.build.BuildJob;
+import se.ciserver.build.BuildQueue;
+import se.ciserver.build.BuildResources;
 import se.ciserver.build.CompilationResult;
 import se.ciserver.build.Compiler;
+import se.ciserver.build.LogBuffer;
+import se.ciserver.build.MirrorCache;
+import se.ciserver.build.ModuleSelector;
+import se.ciserver.build.PriorityRules;
+import se.ciserver.build.RepositoryQuotas;
+import se.ciserver.build.WarmMavenRunner;
+import se.ciserver.build.WarmRunnerPool;
+import se.ciserver.build.WorkspacePool;
 
 /**
  * Test class
@@ -49,9 +92,12 @@ public class MainTest
     @Test
     public void ciServerHandlePushValidPayloadLocal() throws Exception
     {
+        // Fresh history, so an earlier run of the same payload is not reused
+        ServerConfig config = new ServerConfig();
+        config.historyFile = Files.createTempDirectory("ci-history-").resolve("history.json").toString();
 
         Server server = new Server(0);
-        server.setHandler(new ContinuousIntegrationServer(""));
+        server.setHandler(new ContinuousIntegrationServer("", config, fakeMavenCompiler("exit 0")));
         server.start();
         int port = ((ServerConnector) server.getConnectors()[0]).getLocalPort();
 
@@ -68,7 +114,79 @@ public class MainTest
             os.write(json.getBytes());
         }
 
-        assertEquals(200, conn.getResponseCode());
+        assertEquals(202, conn.getResponseCode());
+        String location = conn.getHeaderField("Location");
+        assertNotNull(location);
+
+        // Let the queued build finish, so it does not print into other tests
+        String buildId = location.substring("/builds/".length());
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (new BuildStore(config.historyFile).getById(buildId) == null
+               && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(50);
+        }
+
+        Build build = new BuildStore(config.historyFile).getById(buildId);
+        assertNotNull(build);
+        assertEquals(Arrays.asList("queue", "clone", "checkout", "compile", "cleanup"),
+                     new ArrayList<>(build.timings.keySet()));
+
+        server.stop();
+        server.join();
+    }
+
+    /**
+     * Tests that a build failing with an unexpected exception, e.g. an
+     * unchecked I/O error while cleaning up, is still stored as failed
+     * with the exception instead of staying pending.
+     *
+     * @throws Exception If the server fails to start or if sending the
+     *                   HTTP request fails
+     */
+    @Test
+    public void ciServerRecordsBuildsThatFailUnexpectedly() throws Exception
+    {
+        ServerConfig config = new ServerConfig();
+        config.historyFile = Files.createTempDirectory("ci-history-").resolve("history.json").toString();
+
+        Compiler failing = new Compiler()
+        {
+            @Override
+            public CompilationResult compile(BuildJob job)
+            {
+                throw new UncheckedIOException(new IOException("file vanished during cleanup"));
+            }
+        };
+
+        Server server = new Server(0);
+        server.setHandler(new ContinuousIntegrationServer("", config, failing));
+        server.start();
+        int port = ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+
+        HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + port + "/webhook").openConnection();
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        try (OutputStream os = conn.getOutputStream())
+        {
+            os.write(TestUtils.readFile("githubPush.json").getBytes(StandardCharsets.UTF_8));
+        }
+        assertEquals(202, conn.getResponseCode());
+        String buildId = conn.getHeaderField("Location").substring("/builds/".length());
+
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (new BuildStore(config.historyFile).getById(buildId) == null
+               && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(50);
+        }
+
+        BuildStore store = new BuildStore(config.historyFile);
+        Build build = store.getById(buildId);
+        assertNotNull("the failed build must be recorded", build);
+        assertFalse(build.status);
+        assertFalse(build.testStatus);
+        assertTrue(store.readLog(build).contains("file vanished during cleanup"));
 
         server.stop();
         server.join();
@@ -84,9 +202,11 @@ public class MainTest
     @Test
     public void ciServerHandlePushInvalidPayloadLocal() throws Exception
     {
+        ServerConfig config = new ServerConfig();
+        config.historyFile = Files.createTempDirectory("ci-history-").resolve("history.json").toString();
 
         Server server = new Server(0);
-        server.setHandler(new ContinuousIntegrationServer(""));
+        server.setHandler(new ContinuousIntegrationServer("", config, new Compiler()));
         server.start();
         int port = ((ServerConnector) server.getConnectors()[0]).getLocalPort();
 
@@ -129,6 +249,10 @@ public class MainTest
         assertEquals("https://github.com/user/repo.git", push.repository.clone_url);
         assertEquals("name", push.pusher.name);
         assertEquals("Update README", push.head_commit.message);
+        assertArrayEquals(new String[0], push.commits[0].added);
+        assertArrayEquals(new String[] { "README.md" }, push.commits[0].modified);
+        assertArrayEquals(new String[] { "docs/old.md" }, push.commits[0].removed);
+        assertNull("files missing from the payload are unknown", push.head_commit.added);
     }
 
     /**
@@ -146,6 +270,73 @@ public class MainTest
         parser.parse(brokenJson);
     }
 
+    /**
+     * Tests that the streaming PushParser skips fields it does not need,
+     * including nested ones, and stops reading payloads over the limit.
+     *
+     * @throws Exception If the JSON file can not be read or if
+     *                   parsing the payload fails
+     */
+    @Test
+    public void pushParserStreamSkipsUnusedFieldsAndLimitsSize() throws Exception
+    {
+        String json = TestUtils.readFile("githubPush.json").trim();
+        String padded = "{\"sender\": {\"login\": \"x\", \"tags\": [1, {\"ref\": \"other\"}]},"
+                      + json.substring(1);
+        byte[] bytes = padded.getBytes(StandardCharsets.UTF_8);
+        PushParser parser = new PushParser();
+
+        Push push = parser.parse(new ByteArrayInputStream(bytes), bytes.length);
+
+        assertEquals("main", push.ref);
+        assertEquals("Update README", push.head_commit.message);
+
+        try
+        {
+            parser.parse(new ByteArrayInputStream(bytes), bytes.length - 1);
+            fail("Expected the payload to be rejected as too large");
+        }
+        catch (PayloadTooLargeException e)
+        {
+            assertTrue(e.getMessage().contains(String.valueOf(bytes.length - 1)));
+        }
+    }
+
+    /**
+     * Tests that the CI-server answers 413 to a push payload larger than
+     * the configured maximum.
+     *
+     * @throws Exception If the server fails to start or if sending the
+     *                   HTTP request fails
+     */
+    @Test
+    public void ciServerRejectsOversizedPayload() throws Exception
+    {
+        ServerConfig config = new ServerConfig();
+        config.historyFile     = Files.createTempDirectory("ci-history-").resolve("history.json").toString();
+        config.maxPayloadBytes = 64;
+
+        Server server = new Server(0);
+        server.setHandler(new ContinuousIntegrationServer("", config, new Compiler()));
+        server.start();
+        int port = ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+
+        HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + port + "/webhook").openConnection();
+        conn.setRequestMethod("POST");
+        conn.setRequestProperty("Content-Type", "application/json");
+        conn.setDoOutput(true);
+
+        try (OutputStream os = conn.getOutputStream())
+        {
+            os.write(TestUtils.readFile("githubPush.json").getBytes(StandardCharsets.UTF_8));
+        }
+
+        assertEquals(413, conn.getResponseCode());
+
+        server.stop();
+        server.join();
+    }
+
    /**
      * Tests that at least one test fails
      */
@@ -195,7 +386,9 @@ public class MainTest
             }
         }
 
-        ContinuousIntegrationServer ciServer = new ContinuousIntegrationServer("github_acces_token");
+        ServerConfig config = new ServerConfig();
+        config.historyFile = Files.createTempDirectory("ci-history-").resolve("history.json").toString();
+        ContinuousIntegrationServer ciServer = new ContinuousIntegrationServer("github_acces_token", config, new Compiler());
 
         Server server = new Server(0);
         server.setHandler(new TestServer());
@@ -229,13 +422,177 @@ public class MainTest
         ByteArrayOutputStream systemOutCatcher = new ByteArrayOutputStream();
         System.setOut(new PrintStream(systemOutCatcher));
 
-        ContinuousIntegrationServer ciServer = new ContinuousIntegrationServer("github_acces_token");
+        ServerConfig config = new ServerConfig();
+        config.historyFile = Files.createTempDirectory("ci-history-").resolve("history.json").toString();
+        ContinuousIntegrationServer ciServer = new ContinuousIntegrationServer("github_acces_token", config, new Compiler());
         ciServer.setCommitStatus("http://invalid", "success", "desc", "context");
 
         assertEquals("Set Commit Status failed, post request exception\n", systemOutCatcher.toString());
         System.setOut(originalOut);
     }
 
+    /**
+     * Starts a local server standing in for the GitHub commit status API.
+     *
+     * @param handler Answers the status posts
+     *
+     * @return The started server
+     *
+     * @throws Exception If the server fails to start
+     */
+    private static Server startStatusStub(AbstractHandler handler) throws Exception
+    {
+        Server server = new Server(0);
+        server.setHandler(handler);
+        server.start();
+        return server;
+    }
+
+    /**
+     * Tests that StatusReporter retries a failed post with backoff and
+     * waits for the delay asked for by a rate limited response.
+     *
+     * @throws Exception If the stub server or the HttpClient fail
+     */
+    @Test
+    public void statusReporterRetriesFailuresAndRateLimits() throws Exception
+    {
+        List<Integer> answers = new CopyOnWriteArrayList<>();
+
+        Server github = startStatusStub(new AbstractHandler()
+        {
+            public void handle(String target, Request baseRequest,
+                               HttpServletRequest request, HttpServletResponse response)
+            {
+                int attempt = answers.size();
+                int status  = attempt == 0 ? 502 : attempt == 1 ? 429 : 201;
+                if (status == 429)
+                {
+                    response.setHeader("Retry-After", "1");
+                }
+                answers.add(status);
+                response.setStatus(status);
+                baseRequest.setHandled(true);
+            }
+        });
+        int port = ((ServerConnector) github.getConnectors()[0]).getLocalPort();
+
+        org.eclipse.jetty.client.HttpClient client = new org.eclipse.jetty.client.HttpClient();
+        client.start();
+        StatusReporter reporter = new StatusReporter(client, "token", 5, 10);
+
+        long start = System.nanoTime();
+        reporter.report("http://localhost:" + port + "/statuses/abc", "success", "desc", "ci_server");
+
+        assertTrue(reporter.awaitIdle(10, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(502, 429, 201), answers);
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 900);
+
+        reporter.shutdown();
+        client.stop();
+        github.stop();
+    }
+
+    /**
+     * Tests that StatusReporter gives up a "pending" status after its
+     * attempts but keeps retrying a final state until GitHub accepts it.
+     *
+     * @throws Exception If the stub server or the HttpClient fail
+     */
+    @Test
+    public void statusReporterNeverDropsFinalStates() throws Exception
+    {
+        List<String> attempts = new CopyOnWriteArrayList<>();
+
+        // GitHub is down for the first eight posts
+        Server github = startStatusStub(new AbstractHandler()
+        {
+            public void handle(String target, Request baseRequest,
+                               HttpServletRequest request, HttpServletResponse response)
+            {
+                attempts.add(target);
+                response.setStatus(attempts.size() <= 8 ? 503 : 201);
+                baseRequest.setHandled(true);
+            }
+        });
+        int port = ((ServerConnector) github.getConnectors()[0]).getLocalPort();
+
+        org.eclipse.jetty.client.HttpClient client = new org.eclipse.jetty.client.HttpClient();
+        client.start();
+        StatusReporter reporter = new StatusReporter(client, "token", 2, 1);
+
+        reporter.report("http://localhost:" + port + "/statuses/pending", "pending", "desc", "ci_server");
+        assertTrue(reporter.awaitIdle(10, TimeUnit.SECONDS));
+        assertEquals("pending is given up", 2, attempts.size());
+
+        reporter.report("http://localhost:" + port + "/statuses/final", "failure", "desc", "ci_server");
+        assertTrue(reporter.awaitIdle(10, TimeUnit.SECONDS));
+        assertEquals("the final state is retried until delivered", 9, attempts.size());
+
+        reporter.shutdown();
+        client.stop();
+        github.stop();
+    }
+
+    /**
+     * Tests that StatusReporter posts only the latest status reported
+     * for a commit while an earlier post is in flight, so a stale
+     * "pending" is never sent after the final state.
+     *
+     * @throws Exception If the stub server or the HttpClient fail
+     */
+    @Test
+    public void statusReporterSendsOnlyLatestStatus() throws Exception
+    {
+        List<String> posted  = new CopyOnWriteArrayList<>();
+        CountDownLatch first   = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        Server github = startStatusStub(new AbstractHandler()
+        {
+            public void handle(String target, Request baseRequest,
+                               HttpServletRequest request, HttpServletResponse response)
+                throws IOException
+            {
+                posted.add(request.getReader().lines().collect(Collectors.joining()));
+                first.countDown();
+                try
+                {
+                    release.await(10, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                response.setStatus(201);
+                baseRequest.setHandled(true);
+            }
+        });
+        int port = ((ServerConnector) github.getConnectors()[0]).getLocalPort();
+
+        org.eclipse.jetty.client.HttpClient client = new org.eclipse.jetty.client.HttpClient();
+        client.start();
+        StatusReporter reporter = new StatusReporter(client, "token", 3, 10);
+        String url = "http://localhost:" + port + "/statuses/abc";
+
+        reporter.report(url, "pending", "Queued", "ci_server");
+        assertTrue(first.await(10, TimeUnit.SECONDS));
+
+        // Reported while the first post is in flight; only the last one survives
+        reporter.report(url, "pending", "Testing in progress...", "ci_server");
+        reporter.report(url, "success", "All tests succeeded", "ci_server");
+        release.countDown();
+
+        assertTrue(reporter.awaitIdle(10, TimeUnit.SECONDS));
+        assertEquals(2, posted.size());
+        assertTrue(posted.get(0).contains("\"state\":\"pending\""));
+        assertTrue(posted.get(1).contains("\"state\":\"success\""));
+
+        reporter.shutdown();
+        client.stop();
+        github.stop();
+    }
+
     private static final String TEST_FILE = "build-history-test.json";
     
     /**
@@ -391,6 +748,7 @@ public class MainTest
 
         assertFalse(result.success);
         assertNotNull(result.output);
+        assertFalse("a failed clone says nothing about the code", result.completed);
     }
 
     /**
@@ -415,4 +773,1653 @@ public class MainTest
 
         assertTrue(result.success);
     }
-}
\ No newline at end of file
+
+    /**
+     * Tests that the BuildQueue runs submitted jobs and rejects jobs
+     * once its capacity is reached instead of blocking.
+     *
+     * @throws Exception If waiting for the worker is interrupted
+     */
+    @Test
+    public void buildQueueRejectsJobsWhenFull() throws Exception
+    {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> ran = new CopyOnWriteArrayList<>();
+
+        BuildQueue queue = new BuildQueue(1, 1, job ->
+        {
+            started.countDown();
+            try
+            {
+                release.await();
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+            ran.add(job.id);
+        });
+
+        assertTrue(queue.submit(new BuildJob("b1", "url", "main", "sha1")));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        assertTrue(queue.submit(new BuildJob("b2", "url", "main", "sha2")));
+        assertFalse("a full queue should reject the job",
+                    queue.submit(new BuildJob("b3", "url", "main", "sha3")));
+        assertEquals(1, queue.size());
+        assertEquals(1, queue.activeCount());
+
+        release.countDown();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (ran.size() < 2 && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+        }
+        assertEquals(Arrays.asList("b1", "b2"), ran);
+
+        queue.shutdown();
+        assertFalse(queue.submit(new BuildJob("b4", "url", "main", "sha4")));
+    }
+
+    /**
+     * Tests that in coalescing mode a new push supersedes the running
+     * and queued builds of the same branch but not of other branches.
+     *
+     * @throws Exception If waiting for the worker is interrupted
+     */
+    @Test
+    public void buildQueueCoalescesBuildsOfSameBranch() throws Exception
+    {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> ran     = new CopyOnWriteArrayList<>();
+        List<String> dropped = new CopyOnWriteArrayList<>();
+
+        BuildQueue queue = new BuildQueue(1, 10, true, job ->
+        {
+            started.countDown();
+            try
+            {
+                release.await();
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+            ran.add(job.id);
+        }, job -> dropped.add(job.id));
+
+        BuildJob running = new BuildJob("b1", "url", "main", "sha1");
+        assertTrue(queue.submit(running));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        assertTrue(queue.submit(new BuildJob("b2", "url", "main", "sha2")));
+        assertTrue(queue.submit(new BuildJob("b3", "url", "feature", "sha3")));
+        assertTrue(queue.submit(new BuildJob("b4", "url", "main", "sha4")));
+
+        assertTrue("running build should be cancelled", running.isCancelled());
+        assertEquals("b4", running.supersededBy().id);
+        assertEquals(Arrays.asList("b2"), dropped);
+        assertEquals(2, queue.size());
+
+        release.countDown();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (ran.size() < 3 && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+        }
+        assertEquals(Arrays.asList("b1", "b3", "b4"), ran);
+
+        queue.shutdown();
+    }
+
+    /**
+     * Tests that the BuildQueue only runs as many builds as fit in the
+     * cores, the memory budget and the free memory, counting the memory
+     * reserved for forked test JVMs, and hands each build its Maven
+     * threads and heap.
+     *
+     * @throws Exception If waiting for the workers is interrupted
+     */
+    @Test
+    public void buildQueueAdmitsBuildsByResources() throws Exception
+    {
+        BuildResources machine = new BuildResources(8, 6144, 4, 2048, () -> 8192);
+        CountDownLatch release = new CountDownLatch(1);
+        List<String>   ran     = new CopyOnWriteArrayList<>();
+
+        BuildQueue queue = new BuildQueue(3, 10, false, job ->
+        {
+            ran.add(job.id + " -T " + job.allocation().threads + " -Xmx" + job.allocation().heapMb + "m");
+            try
+            {
+                release.await();
+            }
+            catch (InterruptedException e)
+            {
+                /* finish the build */
+            }
+        }, job -> {}, machine);
+
+        assertTrue(queue.submit(new BuildJob("b1", "url", "main", "sha1")));
+        assertTrue(queue.submit(new BuildJob("b2", "url", "main", "sha2")));
+        assertTrue(queue.submit(new BuildJob("b3", "url", "main", "sha3")));
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (ran.size() < 2 && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+        }
+        Thread.sleep(100);
+        List<String> admitted = new ArrayList<>(ran);
+        admitted.sort(null);
+        assertEquals("the third build does not fit in 8 cores",
+                     Arrays.asList("b1 -T 4 -Xmx2048m", "b2 -T 4 -Xmx2048m"), admitted);
+        assertEquals(1, queue.size());
+        assertEquals(2, machine.admittedCount());
+
+        // A single build is admitted even without enough free memory
+        BuildResources tight = new BuildResources(8, 6144, 2, 2048, () -> 100);
+        BuildResources.Allocation first = tight.acquire();
+        assertEquals(Arrays.asList("-T", "2"), first.mavenArgs());
+        assertEquals("-Dfoo=1 -Xmx2048m", first.mavenOpts("-Dfoo=1"));
+        assertEquals(1, tight.admittedCount());
+        tight.release(first);
+
+        // Forked test JVMs count against the memory next to the Maven heap
+        BuildResources forks = new BuildResources(8, 6144, 2, 2048, 1024, () -> 8192);
+        List<BuildResources.Allocation> held = new ArrayList<>();
+        held.add(forks.acquire());
+        held.add(forks.acquire());
+        assertEquals(1024, held.get(0).forkMb);
+        Thread third = new Thread(() ->
+        {
+            try
+            {
+                forks.release(forks.acquire());
+            }
+            catch (InterruptedException e)
+            {
+                /* test ends */
+            }
+        });
+        third.start();
+        Thread.sleep(100);
+        assertEquals("a third heap fits in 6144 MB, its forks do not", 2, forks.admittedCount());
+        forks.release(held.get(0));
+        third.join(5000);
+        assertFalse(third.isAlive());
+        forks.release(held.get(1));
+
+        release.countDown();
+        deadline = System.currentTimeMillis() + 5000;
+        while (ran.size() < 3 && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+        }
+        assertEquals(3, ran.size());
+
+        queue.shutdown();
+    }
+
+    /**
+     * Tests that the BuildQueue runs jobs by the priority of their branch,
+     * lets waiting jobs age past newer high priority ones and tells the
+     * waiting jobs their queue positions.
+     *
+     * @throws Exception If waiting for the worker is interrupted
+     */
+    @Test
+    public void buildQueueRunsJobsByPriority() throws Exception
+    {
+        PriorityRules rules = PriorityRules.parse("main=10, release/*=5, url:docs/*=-5");
+        assertEquals(10, rules.priorityOf(new BuildJob("a", "url", "refs/heads/main", "sha")));
+        assertEquals(5, rules.priorityOf(new BuildJob("a", "url", "release/1.0", "sha")));
+        assertEquals(-5, rules.priorityOf(new BuildJob("a", "url", "docs/readme", "sha")));
+        assertEquals(0, rules.priorityOf(new BuildJob("a", "other", "docs/readme", "sha")));
+
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<String>   ran     = new CopyOnWriteArrayList<>();
+        List<String>   moves   = new CopyOnWriteArrayList<>();
+
+        BuildQueue queue = new BuildQueue(1, 10, job ->
+        {
+            started.countDown();
+            try
+            {
+                release.await();
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+            ran.add(job.id);
+        });
+        queue.setPriorityRules(rules, 0);
+
+        assertTrue(queue.submit(new BuildJob("b1", "url", "feature", "sha1")));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        queue.setPositionListener((job, position, queued) -> moves.add(job.id + "@" + position + "/" + queued));
+
+        BuildJob main = new BuildJob("m1", "url", "main", "sha3");
+        assertTrue(queue.submit(new BuildJob("f1", "url", "feature", "sha2")));
+        assertTrue(queue.submit(main));
+        assertEquals(10, main.priority());
+        assertEquals(1, queue.position(main));
+        assertEquals(Arrays.asList("f1@1/1", "m1@1/2", "f1@2/2"), moves);
+
+        // With aging the feature build, waiting longer, overtakes a new release build
+        queue.setPriorityRules(rules, 5);
+        Thread.sleep(100);
+        assertTrue(queue.submit(new BuildJob("r1", "url", "release/2.0", "sha4")));
+
+        release.countDown();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (ran.size() < 4 && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+        }
+        assertEquals(Arrays.asList("b1", "m1", "f1", "r1"), ran);
+
+        queue.shutdown();
+    }
+
+    /**
+     * Tests that the BuildQueue shares its workers between repositories
+     * by weight and enforces the per-repository caps.
+     *
+     * @throws Exception If waiting for the workers is interrupted
+     */
+    @Test
+    public void buildQueueSharesWorkersFairlyBetweenRepositories() throws Exception
+    {
+        Properties properties = new Properties();
+        properties.setProperty("a.weight", "2");
+        properties.setProperty("a.queueCapacity", "4");
+        properties.setProperty("c.maxConcurrent", "1");
+        properties.setProperty("*.weight", "1");
+        RepositoryQuotas quotas = RepositoryQuotas.parse(properties);
+        assertEquals(2, quotas.quotaFor("a").weight);
+        assertEquals(1, quotas.quotaFor("unlisted").weight);
+
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<String>   ran     = new CopyOnWriteArrayList<>();
+
+        BuildQueue queue = new BuildQueue(1, 20, job ->
+        {
+            started.countDown();
+            try
+            {
+                release.await();
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+            ran.add(job.id);
+        });
+        queue.setQuotas(quotas);
+
+        assertTrue(queue.submit(new BuildJob("gate", "gate", "main", "sha0")));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        for (int i = 1; i <= 4; i++)
+        {
+            assertTrue(queue.submit(new BuildJob("a" + i, "a", "main", "sha-a" + i)));
+        }
+        assertFalse("repository a may only queue 4 builds",
+                    queue.submit(new BuildJob("a5", "a", "main", "sha-a5")));
+        assertTrue(queue.submit(new BuildJob("b1", "b", "main", "sha-b1")));
+        assertTrue(queue.submit(new BuildJob("b2", "b", "main", "sha-b2")));
+        assertEquals(Integer.valueOf(4), queue.queuedByRepository().get("a"));
+
+        release.countDown();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (ran.size() < 7 && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+        }
+        assertEquals("a has twice the weight of b",
+                     Arrays.asList("gate", "a1", "b1", "a2", "a3", "b2", "a4"), ran);
+        queue.shutdown();
+
+        // A capped repository leaves the second worker idle
+        CountDownLatch hold   = new CountDownLatch(1);
+        BuildQueue     capped = new BuildQueue(2, 20, job ->
+        {
+            try
+            {
+                hold.await();
+            }
+            catch (InterruptedException e)
+            {
+                /* finish the build */
+            }
+        });
+        capped.setQuotas(quotas);
+        assertTrue(capped.submit(new BuildJob("c1", "c", "main", "sha-c1")));
+        assertTrue(capped.submit(new BuildJob("c2", "c", "feature", "sha-c2")));
+        Thread.sleep(100);
+
+        Map<String, Integer> active = capped.activeByRepository();
+        assertEquals(Integer.valueOf(1), active.get("c"));
+        assertEquals(1, capped.size());
+        hold.countDown();
+        capped.shutdown();
+    }
+
+    /**
+     * Tests that superseding a job kills the process it is running and
+     * makes the Compiler return a cancelled result.
+     *
+     * @throws Exception If waiting for the build is interrupted
+     */
+    @Test
+    public void compilerKillsSupersededBuild() throws Exception
+    {
+        Compiler slowCompiler = new Compiler()
+        {
+            @Override
+            protected ProcessBuilder createProcessBuilder(String... command)
+            {
+                return new ProcessBuilder("sleep", "30");
+            }
+        };
+
+        BuildJob job = new BuildJob("b1", "https://example.com/repo.git", "main", "sha1");
+        Thread canceller = new Thread(() ->
+        {
+            try
+            {
+                Thread.sleep(300);
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+            job.supersede(new BuildJob("b2", "https://example.com/repo.git", "main", "sha2"));
+        });
+
+        long start = System.nanoTime();
+        canceller.start();
+        CompilationResult result = slowCompiler.compile(job);
+        canceller.join();
+
+        assertTrue("build should be killed well before the process ends",
+                   System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+        assertFalse(result.success);
+        assertTrue(result.output.contains("superseded by sha2"));
+    }
+
+    /**
+     * Tests that a Compiler with a MirrorCache clones a mirror on the
+     * first build, fetches new commits into it on later builds and
+     * checks out the exact pushed commit, and that it recovers a mirror
+     * with stale lock files or a failing fetch.
+     *
+     * @throws Exception If the local test repository can not be created
+     */
+    @Test
+    public void compilerBuildsFromMirrorCache() throws Exception
+    {
+        Path origin = Files.createTempDirectory("ci-origin-");
+        Path cache  = Files.createTempDirectory("ci-mirrors-");
+
+        git(origin, "init", "-q", "-b", "main");
+        Files.write(origin.resolve("file.txt"), "one".getBytes());
+        git(origin, "add", "file.txt");
+        git(origin, "-c", "user.name=ci", "-c", "user.email=ci@example.com",
+            "commit", "-q", "-m", "first");
+        String first = git(origin, "rev-parse", "HEAD");
+
+        // Run git for real but replace Maven with a command recording the checkout
+        MirrorCache mirrors = new MirrorCache(cache);
+        Compiler mirrorCompiler = new Compiler(mirrors)
+        {
+            @Override
+            protected ProcessBuilder createProcessBuilder(String... command)
+            {
+                if ("mvn".equals(command[0]))
+                {
+                    return new ProcessBuilder("git", "rev-parse", "HEAD");
+                }
+                return new ProcessBuilder(command);
+            }
+        };
+
+        String url = origin.toUri().toString();
+        CompilationResult result = mirrorCompiler.compile(url, "main", first);
+        assertTrue(result.output, result.success);
+        assertTrue(result.output.contains(first));
+        assertTrue("mirror should be created", mirrors.exists(url));
+
+        Files.write(origin.resolve("file.txt"), "two".getBytes());
+        git(origin, "-c", "user.name=ci", "-c", "user.email=ci@example.com",
+            "commit", "-q", "-am", "second");
+        String second = git(origin, "rev-parse", "HEAD");
+
+        result = mirrorCompiler.compile(url, "main", second);
+        assertTrue(result.output, result.success);
+        assertTrue("new commit should be fetched into the mirror", result.output.contains(second));
+
+        // A lock file left by a killed fetch no longer blocks the mirror
+        Path mirror = mirrors.mirrorPath(url);
+        Files.createDirectories(mirror.resolve("refs/heads"));
+        Files.createFile(mirror.resolve("refs/heads/main.lock"));
+        Files.createFile(mirror.resolve("marker"));
+        Files.write(origin.resolve("file.txt"), "three".getBytes());
+        git(origin, "-c", "user.name=ci", "-c", "user.email=ci@example.com",
+            "commit", "-q", "-am", "third");
+        String third = git(origin, "rev-parse", "HEAD");
+
+        result = mirrorCompiler.compile(url, "main", third);
+        assertTrue(result.output, result.success);
+        assertTrue(result.output.contains(third));
+        assertTrue("the mirror should be fetched into, not cloned again", Files.exists(mirror.resolve("marker")));
+
+        // A mirror that can not be fetched into is cloned again
+        git(mirror, "config", "remote.origin.url", cache.resolve("missing").toString());
+        result = mirrorCompiler.compile(url, "main", third);
+        assertTrue(result.output, result.success);
+        assertTrue(mirrors.exists(url));
+        assertEquals(url, git(mirror, "config", "remote.origin.url"));
+    }
+
+    /**
+     * Tests that builds of one repository reuse a workspace: the next
+     * commit is fetched and checked out over the earlier checkout, files
+     * left by the earlier build are cleaned except the excluded build
+     * output, and Maven runs without clean.
+     *
+     * @throws Exception If git fails or waiting for the build is interrupted
+     */
+    @Test
+    public void compilerReusesWorkspaces() throws Exception
+    {
+        Path origin = Files.createTempDirectory("ci-origin-");
+        Path root   = Files.createTempDirectory("ci-workspaces-");
+
+        git(origin, "init", "-q", "-b", "main");
+        Files.write(origin.resolve("file.txt"), "one".getBytes());
+        git(origin, "add", "file.txt");
+        git(origin, "-c", "user.name=ci", "-c", "user.email=ci@example.com",
+            "commit", "-q", "-m", "first");
+        String first = git(origin, "rev-parse", "HEAD");
+
+        // Replace Maven with a command listing the workspace and leaving files behind
+        List<String>  mavenArgs  = new CopyOnWriteArrayList<>();
+        WorkspacePool workspaces = new WorkspacePool(root, Arrays.asList("target/"));
+        Compiler workspaceCompiler = new Compiler(null, null, workspaces)
+        {
+            @Override
+            protected ProcessBuilder createProcessBuilder(String... command)
+            {
+                if ("mvn".equals(command[0]))
+                {
+                    mavenArgs.add(String.join(" ", command));
+                    return new ProcessBuilder("sh", "-c",
+                        "ls -A; cat file.txt; echo; mkdir -p target; touch target/built stray.txt");
+                }
+                return new ProcessBuilder(command);
+            }
+        };
+
+        String url = origin.toUri().toString();
+        CompilationResult result = workspaceCompiler.compile(url, "main", first);
+        assertTrue(result.output, result.success);
+        assertFalse(result.output.contains("stray.txt"));
+        assertFalse("a new workspace builds from scratch", result.incremental);
+
+        Files.write(origin.resolve("file.txt"), "two".getBytes());
+        git(origin, "-c", "user.name=ci", "-c", "user.email=ci@example.com",
+            "commit", "-q", "-am", "second");
+        String second = git(origin, "rev-parse", "HEAD");
+
+        result = workspaceCompiler.compile(url, "main", second);
+        List<String> lines = Arrays.asList(result.output.split("\\R"));
+        assertTrue(result.output, result.success);
+        assertTrue("the new commit should be checked out", lines.contains("two"));
+        assertTrue("the build output should be kept", lines.contains("target"));
+        assertFalse("files of the earlier build should be cleaned", lines.contains("stray.txt"));
+        assertTrue("the reset workspace reuses the earlier output", result.incremental);
+        assertEquals(Arrays.asList("mvn test", "mvn test"), mavenArgs);
+
+        assertEquals(0, workspaces.leasedCount());
+        try (Stream<Path> repositories = Files.list(root))
+        {
+            Path repository = repositories.findFirst().get();
+            assertEquals(Arrays.asList("1"), Arrays.asList(repository.toFile().list()));
+        }
+    }
+
+    /**
+     * Tests that a push to a multi-module project only builds the modules
+     * containing the files it changed, that the whole reactor is built
+     * when a pom.xml or a file outside the modules changed, and that a
+     * coalesced build covers the changes of the build it superseded.
+     *
+     * @throws Exception If git fails or waiting for the build is interrupted
+     */
+    @Test
+    public void compilerBuildsOnlyChangedModules() throws Exception
+    {
+        Path origin = Files.createTempDirectory("ci-modules-");
+
+        git(origin, "init", "-q", "-b", "main");
+        Files.write(origin.resolve("pom.xml"),
+            "<project><modules><module>core</module><module>tools</module></modules></project>".getBytes());
+        Files.createDirectories(origin.resolve("core/src"));
+        Files.write(origin.resolve("core/pom.xml"), "<project/>".getBytes());
+        Files.createDirectories(origin.resolve("tools/cli/src"));
+        Files.write(origin.resolve("tools/pom.xml"),
+            "<project><modules><module>cli/pom.xml</module></modules></project>".getBytes());
+        Files.write(origin.resolve("tools/cli/pom.xml"), "<project/>".getBytes());
+        Files.write(origin.resolve("README.md"), "readme".getBytes());
+        git(origin, "add", ".");
+        git(origin, "-c", "user.name=ci", "-c", "user.email=ci@example.com",
+            "commit", "-q", "-m", "first");
+        String sha = git(origin, "rev-parse", "HEAD");
+
+        assertEquals(Arrays.asList("core", "tools/cli"),
+                     ModuleSelector.select(origin, Arrays.asList("core/src/A.java", "tools/cli/src/C.java")));
+        assertEquals(Arrays.asList("tools"), ModuleSelector.select(origin, Arrays.asList("tools/NOTES")));
+        assertNull(ModuleSelector.select(origin, Arrays.asList("core/src/A.java", "core/pom.xml")));
+        assertNull(ModuleSelector.select(origin, Arrays.asList("core/src/A.java", "README.md")));
+        assertNull(ModuleSelector.select(origin, null));
+
+        List<String> mavenArgs = new CopyOnWriteArrayList<>();
+        Compiler moduleCompiler = new Compiler()
+        {
+            @Override
+            protected ProcessBuilder createProcessBuilder(String... command)
+            {
+                if ("mvn".equals(command[0]))
+                {
+                    mavenArgs.add(String.join(" ", command));
+                    return new ProcessBuilder("true");
+                }
+                return new ProcessBuilder(command);
+            }
+        };
+        moduleCompiler.setIncrementalModules(true);
+
+        String url = origin.toUri().toString();
+        CompilationResult result = moduleCompiler.compile(new BuildJob("m1", modulePush(url, sha, "core/src/A.java")));
+        assertTrue(result.output, result.success);
+        assertTrue(result.output.contains("Building changed modules core"));
+        assertTrue(result.partial);
+        CompilationResult whole = moduleCompiler.compile(url, "main", sha);
+        assertTrue(whole.success);
+        assertFalse(whole.partial);
+        assertEquals(Arrays.asList("mvn -pl core -am -amd clean test", "mvn clean test"), mavenArgs);
+
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        BuildQueue queue = new BuildQueue(1, 10, true, job ->
+        {
+            started.countDown();
+            try
+            {
+                release.await();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }, job -> { });
+
+        assertTrue(queue.submit(new BuildJob("gate", url, "gate", sha)));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        BuildJob older = new BuildJob("c1", modulePush(url, sha, "core/src/A.java"));
+        BuildJob newer = new BuildJob("c2", modulePush(url, sha, "tools/cli/src/C.java"));
+        assertTrue(queue.submit(older));
+        assertTrue(queue.submit(newer));
+        assertEquals(new TreeSet<>(Arrays.asList("core/src/A.java", "tools/cli/src/C.java")),
+                     newer.changedFiles());
+
+        release.countDown();
+        queue.shutdown();
+    }
+
+    /**
+     * Creates a push of one commit modifying the given files.
+     *
+     * @param cloneUrl The clone URL of the repository
+     * @param sha      The pushed commit
+     * @param modified The paths of the modified files
+     *
+     * @return The push to the main branch
+     */
+    private static Push modulePush(String cloneUrl, String sha, String... modified)
+    {
+        Author author = new Author("ci@example.com", "ci");
+        Commit commit = new Commit(author, author, true, sha, "change", "2026-01-01T00:00:00Z",
+                                   "tree", "url", new String[0], modified, new String[0]);
+
+        return new Push(sha, null, "before", new Commit[] { commit }, "compare", false, false, false,
+                        commit, new Pusher("ci"), "main", new Repository("1", "repo", cloneUrl, author));
+    }
+
+    /**
+     * Runs a git command in a directory and returns its trimmed output.
+     *
+     * @param dir  The working directory
+     * @param args The git arguments
+     *
+     * @return The output of the command
+     *
+     * @throws Exception If the command fails
+     */
+    private static String git(Path dir, String... args) throws Exception
+    {
+        List<String> command = new ArrayList<>();
+        command.add("git");
+        command.addAll(Arrays.asList(args));
+
+        Process process = new ProcessBuilder(command)
+            .directory(dir.toFile())
+            .redirectErrorStream(true)
+            .start();
+        String output = new String(process.getInputStream().readAllBytes()).trim();
+        assertEquals(output, 0, process.waitFor());
+        return output;
+    }
+
+    /**
+     * Tests that the single Maven invocation is split into compile and
+     * test results: a build failing in the test phase still counts as a
+     * successful compilation.
+     */
+    @Test
+    public void compilerSeparatesCompileAndTestOutcome()
+    {
+        CompilationResult result = fakeMavenCompiler(
+            "echo '--- maven-compiler-plugin:3.11.0:compile (default-compile) @ app ---';"
+          + "echo '--- maven-surefire-plugin:3.2.5:test (default-test) @ app ---';"
+          + "echo 'Tests run: 2, Failures: 1';"
+          + "echo '[ERROR] Failed to execute goal org.apache.maven.plugins:maven-surefire-plugin:3.2.5:test (default-test) on project app: There are test failures.';"
+          + "exit 1").compile("https://example.com/repo.git", "main", "abc123");
+
+        assertTrue(result.success);
+        assertFalse(result.testSuccess);
+        assertTrue(result.completed);
+        assertTrue(result.output.contains("(default-compile)"));
+        assertFalse(result.output.contains("Tests run"));
+        assertTrue(result.testOutput.contains("Tests run: 2, Failures: 1"));
+    }
+
+    /**
+     * Tests that a later module's main steps go to the compile output and
+     * that only failures of test steps count as compiled: a dependency
+     * failure after the first tests, a Maven killed by a signal and a
+     * failed warm runner all fail the compilation.
+     */
+    @Test
+    public void compilerJudgesCompilationByFailedStep()
+    {
+        String coreTested = "echo '--- maven-compiler-plugin:3.11.0:compile (default-compile) @ core ---';"
+          + "echo 'core compiled';"
+          + "echo '--- maven-surefire-plugin:3.2.5:test (default-test) @ core ---';"
+          + "echo 'Tests run: 1, Failures: 0';";
+
+        CompilationResult result = fakeMavenCompiler(coreTested
+          + "echo '--- maven-compiler-plugin:3.11.0:compile (default-compile) @ web ---';"
+          + "echo 'web compiled';"
+          + "echo '--- maven-surefire-plugin:3.2.5:test (default-test) @ web ---';"
+          + "echo 'Tests run: 2, Failures: 1';"
+          + "echo '[ERROR] Failed to execute goal org.apache.maven.plugins:maven-surefire-plugin:3.2.5:test (default-test) on project web: There are test failures.';"
+          + "exit 1").compile("https://example.com/repo.git", "main", "abc123");
+        assertTrue(result.success);
+        assertTrue(result.output.contains("web compiled"));
+        assertFalse(result.testOutput.contains("web compiled"));
+        assertTrue(result.testOutput.contains("Tests run: 2, Failures: 1"));
+
+        result = fakeMavenCompiler(coreTested
+          + "echo '[ERROR] Failed to execute goal on project web: Could not resolve dependencies for project se.app:web:jar:1.0';"
+          + "exit 1").compile("https://example.com/repo.git", "main", "abc123");
+        assertFalse("a dependency failure is not a test failure", result.success);
+        assertTrue(result.completed);
+
+        result = fakeMavenCompiler(coreTested + "exit 137")
+            .compile("https://example.com/repo.git", "main", "abc123");
+        assertFalse("a killed Maven did not compile everything", result.success);
+        assertFalse(result.completed);
+
+        result = fakeMavenCompiler(coreTested
+          + "echo '" + WarmMavenRunner.FAILURE_PREFIX + "java.lang.OutOfMemoryError';"
+          + "exit 1").compile("https://example.com/repo.git", "main", "abc123");
+        assertFalse(result.success);
+        assertFalse(result.completed);
+    }
+
+    /**
+     * Tests that a failure of the main compiler execution fails both the
+     * compilation and the tests.
+     */
+    @Test
+    public void compilerReportsCompileFailureFromSingleInvocation()
+    {
+        CompilationResult result = fakeMavenCompiler(
+            "echo '--- maven-compiler-plugin:3.11.0:compile (default-compile) @ app ---';"
+          + "echo '[ERROR] Failed to execute goal org.apache.maven.plugins:maven-compiler-plugin:3.11.0:compile (default-compile) on project app';"
+          + "exit 1").compile("https://example.com/repo.git", "main", "abc123");
+
+        assertFalse(result.success);
+        assertFalse(result.testSuccess);
+        assertEquals("", result.testOutput);
+    }
+
+    /**
+     * Tests that the Compiler times each build phase and splits the Maven
+     * time into compile and test time at the first test step.
+     */
+    @Test
+    public void compilerRecordsPhaseTimings()
+    {
+        CompilationResult result = fakeMavenCompiler(
+            "sleep 0.3;"
+          + "echo '--- maven-surefire-plugin:3.2.5:test (default-test) @ app ---';"
+          + "sleep 0.2;"
+          + "exit 0").compile("https://example.com/repo.git", "main", "abc123");
+
+        assertEquals(Arrays.asList("clone", "checkout", "compile", "test", "cleanup"),
+                     new ArrayList<>(result.timings.keySet()));
+        assertTrue(result.timings.get("compile") >= 250);
+        assertTrue(result.timings.get("test") >= 150);
+        assertTrue(result.timings.get("test") < 2000);
+    }
+
+    /**
+     * Creates a Compiler whose git commands succeed and whose single
+     * Maven invocation runs the given shell script instead.
+     *
+     * @param mavenScript The shell script standing in for Maven
+     *
+     * @return The fake Compiler
+     */
+    private static Compiler fakeMavenCompiler(String mavenScript)
+    {
+        return new Compiler()
+        {
+            @Override
+            protected ProcessBuilder createProcessBuilder(String... command)
+            {
+                if ("mvn".equals(command[0]))
+                {
+                    return new ProcessBuilder("sh", "-c", mavenScript);
+                }
+                return new ProcessBuilder("true");
+            }
+        };
+    }
+
+    /**
+     * Tests that the WarmRunnerPool sends builds to one long-lived runner
+     * and returns each build's output and exit code.
+     *
+     * @throws Exception If the runner can not be started
+     */
+    @Test
+    public void warmRunnerPoolReusesRunner() throws Exception
+    {
+        // Stands in for WarmMavenRunner: echoes each request and exits with code 3
+        WarmRunnerPool pool = new WarmRunnerPool(1, Arrays.asList("sh", "-c",
+            "while IFS= read -r line; do echo \"ran $line\"; printf '\\001ci-exit 3\\n'; done"));
+
+        Path workDir = Files.createTempDirectory("ci-warm-");
+        BuildJob job = new BuildJob("b1", "url", "main", "sha1");
+
+        List<String> output = new ArrayList<>();
+        assertEquals(3, pool.run(job, workDir, output::add, "clean", "test"));
+        assertEquals(Arrays.asList("ran " + workDir.toAbsolutePath() + "\tclean\ttest"), output);
+
+        output.clear();
+        assertEquals(3, pool.run(job, workDir, output::add, "test"));
+        assertEquals(1, output.size());
+        assertEquals("runner should be reused", 1, pool.startedCount());
+
+        // Stopping the server stops the warm runners of its compiler
+        ServerConfig config = new ServerConfig();
+        config.historyFile = Files.createTempDirectory("ci-history-").resolve("history.json").toString();
+        Server server = new Server(0);
+        server.setHandler(new ContinuousIntegrationServer("", config, new Compiler(null, pool)));
+        server.start();
+        server.stop();
+        try
+        {
+            pool.run(job, workDir, output::add, "test");
+            fail("the pool should be shut down with the server");
+        }
+        catch (IOException expected)
+        {
+        }
+    }
+
+    /**
+     * Tests that a push of an already built git tree is answered at once
+     * with the earlier result and recorded as a cache hit.
+     *
+     * @throws Exception If the server fails to start or the request fails
+     */
+    @Test
+    public void ciServerReusesResultOfSameTree() throws Exception
+    {
+        ServerConfig config = new ServerConfig();
+        config.historyFile = Files.createTempDirectory("ci-history-").resolve("history.json").toString();
+
+        // githubPush.json has head commit tree 1111aaaa
+        Build earlier = Build.newBuild("0000aaaa", "other-branch", true, "earlier log");
+        earlier.testStatus = false;
+        earlier.treeId     = "1111aaaa";
+        earlier.completed  = true;
+        new BuildStore(config.historyFile).add(earlier);
+        config.resultCache = true;
+
+        Server server = new Server(0);
+        server.setHandler(new ContinuousIntegrationServer("", config, new Compiler()));
+        server.start();
+        int port = ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+
+        HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + port + "/webhook").openConnection();
+        conn.setRequestMethod("POST");
+        conn.setRequestProperty("Content-Type", "application/json");
+        conn.setDoOutput(true);
+        try (OutputStream os = conn.getOutputStream())
+        {
+            os.write(TestUtils.readFile("githubPush.json").getBytes());
+        }
+
+        assertEquals(200, conn.getResponseCode());
+        String location = conn.getHeaderField("Location");
+
+        server.stop();
+        server.join();
+
+        Build reused = new BuildStore(config.historyFile)
+            .getById(location.substring("/builds/".length()));
+        assertNotNull(reused);
+        assertEquals(earlier.id, reused.cachedFrom);
+        assertEquals("e5f6g7h8", reused.commitId);
+        assertTrue(reused.status);
+        assertFalse(reused.testStatus);
+    }
+
+    /**
+     * Tests that only builds in which Maven ran to completion are offered
+     * for reuse by their tree id.
+     */
+    @Test
+    public void getByTreeIdSkipsSupersededAndReusedBuilds()
+    {
+        BuildStore store = new BuildStore(TEST_FILE);
+
+        Build built = Build.newBuild("c1", "main", true, "log");
+        built.testStatus = true;
+        built.treeId     = "tree-" + built.id;
+        built.completed  = true;
+
+        Build superseded = Build.newBuild("c2", "main", false, "log");
+        superseded.testStatus   = false;
+        superseded.treeId       = built.treeId;
+        superseded.supersededBy = "newer";
+
+        Build cloneFailed = Build.newBuild("c3", "main", false, "Git clone failed with exit code 128");
+        cloneFailed.testStatus = false;
+        cloneFailed.treeId     = "tree-" + cloneFailed.id;
+
+        Build incremental = Build.newBuild("c5", "main", true, "mvn test in a reused workspace");
+        incremental.testStatus  = true;
+        incremental.treeId      = "tree-" + incremental.id;
+        incremental.completed   = true;
+        incremental.incremental = true;
+
+        Build partial = Build.newBuild("c4", "main", true, "Building changed modules core");
+        partial.testStatus = true;
+        partial.treeId     = "tree-" + partial.id;
+        partial.completed  = true;
+        partial.partial    = true;
+
+        store.add(built);
+        store.add(superseded);
+        store.add(cloneFailed);
+        store.add(partial);
+        store.add(incremental);
+
+        assertEquals(built.id, store.getByTreeId(built.treeId).id);
+        assertNull(store.getByTreeId(cloneFailed.treeId));
+        assertNull("a build of some modules did not test the whole tree", store.getByTreeId(partial.treeId));
+        assertNull("a build on stale output is not a result of the tree", store.getByTreeId(incremental.treeId));
+        assertNull(store.getByTreeId("unknown-tree"));
+    }
+
+    /**
+     * Tests that a torn last journal record, as left by a crash during an
+     * append, is dropped on load and the journal is repaired.
+     *
+     * @throws Exception If the journal file can not be written
+     */
+    @Test
+    public void buildStoreRecoversFromTornJournalTail() throws Exception
+    {
+        Path journal = Files.createTempDirectory("ci-history-").resolve("history.json");
+
+        BuildStore store = new BuildStore(journal.toString());
+        Build b1 = Build.newBuild("c1", "main", true, "log1");
+        Build b2 = Build.newBuild("c2", "main", false, "log2");
+        store.add(b1);
+        store.add(b2);
+        assertEquals(2, Files.readAllLines(journal).size());
+
+        Files.write(journal, "{\"id\":\"torn".getBytes(), StandardOpenOption.APPEND);
+
+        BuildStore reloaded = new BuildStore(journal.toString());
+        assertEquals(2, reloaded.getAll().size());
+        assertEquals(b2.id, reloaded.getAll().get(1).id);
+        assertEquals("journal should be rewritten without the torn record",
+                     2, Files.readAllLines(journal).size());
+
+        // Appending after recovery must start on a fresh line
+        reloaded.add(Build.newBuild("c3", "main", true, "log3"));
+        assertEquals(3, new BuildStore(journal.toString()).getAll().size());
+    }
+
+    /**
+     * Tests that a build that can not be appended to the journal fails
+     * the add and is not listed as stored.
+     *
+     * @throws Exception If the history directory can not be created
+     */
+    @Test
+    public void buildStoreRejectsBuildsItCannotJournal() throws Exception
+    {
+        Path journal = Files.createTempDirectory("ci-history-").resolve("history.json");
+        BuildStore store = new BuildStore(journal.toString());
+
+        // A directory in place of the journal makes every append fail
+        Files.createDirectories(journal);
+        Build lost = Build.newBuild("c1", "main", true, "log1");
+        try
+        {
+            store.add(lost);
+            fail("a build that was not journaled must not be reported as stored");
+        }
+        catch (UncheckedIOException expected)
+        {
+        }
+        assertNull(store.getById(lost.id));
+        assertTrue(store.getAll().isEmpty());
+    }
+
+    /**
+     * Tests that a history file in the old JSON array format is loaded
+     * and converted into a journal.
+     *
+     * @throws Exception If the history file can not be written
+     */
+    @Test
+    public void buildStoreMigratesLegacyHistoryFile() throws Exception
+    {
+        Path history = Files.createTempDirectory("ci-history-").resolve("history.json");
+        Files.write(history, ("[ {\n  \"id\" : \"b1\",\n  \"commitId\" : \"c1\",\n  \"status\" : true\n},"
+                            + " {\n  \"id\" : \"b2\",\n  \"commitId\" : \"c2\",\n  \"status\" : false\n} ]").getBytes());
+
+        BuildStore store = new BuildStore(history.toString());
+        assertEquals(2, store.getAll().size());
+        assertEquals("c2", store.getById("b2").commitId);
+
+        List<String> lines = Files.readAllLines(history);
+        assertEquals(2, lines.size());
+        assertTrue(lines.get(0).startsWith("{\"id\":\"b1\""));
+    }
+
+    /**
+     * Tests the commit and branch indexes, including after a reload and
+     * after a build is replaced by a record with the same id.
+     *
+     * @throws Exception If the history directory can not be created
+     */
+    @Test
+    public void buildStoreIndexesByCommitAndBranch() throws Exception
+    {
+        String file = Files.createTempDirectory("ci-history-").resolve("history.json").toString();
+        BuildStore store = new BuildStore(file);
+
+        Build b1 = Build.newBuild("c1", "main", true, "log1");
+        Build b2 = Build.newBuild("c2", "main", false, "log2");
+        Build b3 = Build.newBuild("c1", "feature", true, "log3");
+        store.add(b1);
+        store.add(b2);
+        store.add(b3);
+
+        BuildStore reloaded = new BuildStore(file);
+        for (BuildStore s : Arrays.asList(store, reloaded))
+        {
+            assertEquals(2, s.getByCommit("c1").size());
+            assertEquals(Arrays.asList(b1.id, b2.id),
+                         Arrays.asList(s.getByBranch("main").get(0).id, s.getByBranch("main").get(1).id));
+            assertEquals(b2.id, s.getLatestByBranch("main").id);
+            assertTrue(s.getByBranch("unknown").isEmpty());
+            assertNull(s.getLatestByBranch("unknown"));
+        }
+
+        Build moved = new Build(b2.id, "c2", "release", b2.timestamp, false, "log2");
+        store.add(moved);
+        assertEquals(3, store.getAll().size());
+        assertEquals("release", store.getById(b2.id).branch);
+        assertEquals(1, store.getByBranch("main").size());
+        assertEquals(1, new BuildStore(file).getByBranch("release").size());
+    }
+
+    /**
+     * Tests that a stored build's log is kept out of the history journal
+     * in a compressed log file and loaded only on request.
+     *
+     * @throws Exception If the history files can not be read
+     */
+    @Test
+    public void buildStoreKeepsLogsOutOfLine() throws Exception
+    {
+        Path dir = Files.createTempDirectory("ci-history-");
+        String file = dir.resolve("history.json").toString();
+        BuildStore store = new BuildStore(file);
+
+        String log = "[INFO] BUILD SUCCESS\n".repeat(1000);
+        Build build = Build.newBuild("c1", "main", true, log);
+        store.add(build);
+
+        assertNull("the log should not stay on the heap", store.getById(build.id).log);
+        assertEquals(log, store.readLog(store.getById(build.id)));
+
+        String journal = new String(Files.readAllBytes(dir.resolve("history.json")));
+        assertFalse(journal.contains("BUILD SUCCESS"));
+        assertTrue(Files.size(dir.resolve("history-logs").resolve(build.logFile)) < log.length() / 10);
+
+        BuildStore reloaded = new BuildStore(file);
+        assertEquals(log, reloaded.readLog(reloaded.getById(build.id)));
+    }
+
+    /**
+     * Tests that the build history is paged newest first, that the
+     * cursor continues where the previous page ended and that the
+     * filters apply across pages.
+     *
+     * @throws Exception If the history directory can not be created
+     */
+    @Test
+    public void buildStorePagesNewestFirstWithFilters() throws Exception
+    {
+        BuildStore store = new BuildStore(
+            Files.createTempDirectory("ci-history-").resolve("history.json").toString());
+
+        for (int i = 0; i < 6; i++)
+        {
+            Build b = new Build("b" + i, "c" + i, i % 2 == 0 ? "main" : "dev",
+                                "2026-02-1" + i + "T10:00:00Z", i % 3 != 0, "log");
+            store.add(b);
+        }
+
+        BuildQuery all = new BuildQuery();
+        List<Build> first = store.page(all, null, 4);
+        assertEquals(Arrays.asList("b5", "b4", "b3", "b2"),
+                     first.stream().map(b -> b.id).collect(Collectors.toList()));
+        List<Build> second = store.page(all, "b2", 4);
+        assertEquals(Arrays.asList("b1", "b0"),
+                     second.stream().map(b -> b.id).collect(Collectors.toList()));
+
+        BuildQuery main = new BuildQuery();
+        main.branch = "main";
+        main.status = true;
+        assertEquals(Arrays.asList("b4", "b2"),
+                     store.page(main, null, 10).stream().map(b -> b.id).collect(Collectors.toList()));
+        assertEquals(Arrays.asList("b2"),
+                     store.page(main, "b4", 10).stream().map(b -> b.id).collect(Collectors.toList()));
+
+        // A re-recorded build keeps its place in its branch
+        store.add(new Build("b2", "c2", "main", "2026-02-12T10:00:00Z", true, "log again"));
+        assertEquals(Arrays.asList("b4", "b2"),
+                     store.page(main, null, 10).stream().map(b -> b.id).collect(Collectors.toList()));
+        BuildQuery dev = new BuildQuery();
+        dev.branch = "dev";
+        assertEquals(Arrays.asList("b1"),
+                     store.page(dev, "b2", 10).stream().map(b -> b.id).collect(Collectors.toList()));
+        assertEquals(Arrays.asList("b3", "b1"),
+                     store.page(dev, "b4", 10).stream().map(b -> b.id).collect(Collectors.toList()));
+
+        BuildQuery range = new BuildQuery();
+        range.since = java.time.Instant.parse("2026-02-11T00:00:00Z");
+        range.until = java.time.Instant.parse("2026-02-13T10:00:00Z");
+        assertEquals(Arrays.asList("b2", "b1"),
+                     store.page(range, null, 10).stream().map(b -> b.id).collect(Collectors.toList()));
+    }
+
+    /**
+     * Tests the JSON build history API, including its next page cursor
+     * and the rejection of invalid parameters.
+     *
+     * @throws Exception If the server fails to start or if sending the
+     *                   HTTP request fails
+     */
+    @Test
+    public void ciServerServesPagedBuildHistoryJson() throws Exception
+    {
+        ServerConfig config = new ServerConfig();
+        config.historyFile = Files.createTempDirectory("ci-history-").resolve("history.json").toString();
+
+        BuildStore store = new BuildStore(config.historyFile);
+        for (int i = 0; i < 3; i++)
+        {
+            store.add(new Build("b" + i, "c" + i, "main", "2026-02-12T10:00:0" + i + "Z", true, "log " + i));
+        }
+
+        Server server = new Server(0);
+        server.setHandler(new ContinuousIntegrationServer("", config, new Compiler()));
+        server.start();
+        int port = ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+
+        HttpURLConnection conn = (HttpURLConnection)
+            new URL("http://localhost:" + port + "/api/builds?branch=main&limit=2").openConnection();
+        assertEquals(200, conn.getResponseCode());
+        assertTrue(conn.getContentType().startsWith("application/json"));
+
+        com.fasterxml.jackson.databind.JsonNode page = new com.fasterxml.jackson.databind.ObjectMapper()
+            .readTree(conn.getInputStream());
+        assertEquals(2, page.get("builds").size());
+        assertEquals("b2", page.get("builds").get(0).get("id").asText());
+        assertFalse("logs are not part of the listing", page.get("builds").get(0).has("log"));
+        assertEquals("b1", page.get("nextCursor").asText());
+
+        conn = (HttpURLConnection)
+            new URL("http://localhost:" + port + "/api/builds?cursor=b1").openConnection();
+        page = new com.fasterxml.jackson.databind.ObjectMapper().readTree(conn.getInputStream());
+        assertEquals(1, page.get("builds").size());
+        assertTrue(page.get("nextCursor").isNull());
+
+        conn = (HttpURLConnection)
+            new URL("http://localhost:" + port + "/api/builds?status=maybe").openConnection();
+        assertEquals(400, conn.getResponseCode());
+
+        server.stop();
+        server.join();
+    }
+
+    /**
+     * Tests that a build page is served gzip compressed with a strong
+     * ETag and long-lived caching, that a revalidation with the ETag is
+     * answered with 304 Not Modified, and that the page of a superseded
+     * build is not cached for good.
+     *
+     * @throws Exception If the server fails to start or if sending the
+     *                   HTTP request fails
+     */
+    @Test
+    public void ciServerCachesAndCompressesBuildPages() throws Exception
+    {
+        ServerConfig config = new ServerConfig();
+        config.historyFile = Files.createTempDirectory("ci-history-").resolve("history.json").toString();
+        new BuildStore(config.historyFile).add(
+            new Build("cached-page", "c1", "main", "2026-02-12T10:00:00Z", true,
+                      "[INFO] Tests run: 1, Failures: 0\n".repeat(2000)));
+        Build superseded = new Build("superseded-page", "c2", "main", "2026-02-12T11:00:00Z", false, "");
+        superseded.supersededBy = "cached-page";
+        new BuildStore(config.historyFile).add(superseded);
+
+        Server server = new Server(0);
+        server.setHandler(ContinuousIntegrationServer.withCompression(
+            new ContinuousIntegrationServer("", config, new Compiler())));
+        server.start();
+        int port = ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+        URL url = new URL("http://localhost:" + port + "/builds/cached-page");
+
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setRequestProperty("Accept-Encoding", "gzip");
+        assertEquals(200, conn.getResponseCode());
+        assertEquals("gzip", conn.getHeaderField("Content-Encoding"));
+        assertTrue(conn.getHeaderField("Cache-Control").contains("immutable"));
+        String etag = conn.getHeaderField("ETag");
+        assertNotNull(etag);
+
+        byte[] compressed = conn.getInputStream().readAllBytes();
+        String page = new String(new java.util.zip.GZIPInputStream(
+            new ByteArrayInputStream(compressed)).readAllBytes(), StandardCharsets.UTF_8);
+        assertTrue(page.contains("Tests run: 1"));
+        assertTrue(compressed.length * 10 < page.length());
+
+        conn = (HttpURLConnection) url.openConnection();
+        conn.setRequestProperty("Accept-Encoding", "gzip");
+        conn.setRequestProperty("If-None-Match", etag);
+        assertEquals(304, conn.getResponseCode());
+        assertTrue("the etag holds the build id and a SHA-256 digest",
+                   etag.matches("\"cached-page-[0-9a-f]{64}(--gzip)?\""));
+
+        // A superseded build may still be re-recorded, so it is only revalidated
+        conn = (HttpURLConnection) new URL("http://localhost:" + port + "/builds/superseded-page").openConnection();
+        assertEquals(200, conn.getResponseCode());
+        assertEquals("public, no-cache", conn.getHeaderField("Cache-Control"));
+
+        server.stop();
+        server.join();
+    }
+
+    /**
+     * Tests that the LogBuffer keeps only its most recent lines, tells a
+     * reader how many lines it missed and wakes up waiting readers.
+     *
+     * @throws Exception If waiting for the buffer is interrupted
+     */
+    @Test
+    public void logBufferKeepsRecentLinesAndWakesReaders() throws Exception
+    {
+        LogBuffer buffer = new LogBuffer(3);
+        for (int i = 0; i < 5; i++)
+        {
+            buffer.append("line " + i);
+        }
+
+        LogBuffer.Chunk chunk = buffer.read(0, 10);
+        assertEquals("the two oldest lines were overwritten", 2, chunk.first);
+        assertEquals(Arrays.asList("line 2", "line 3", "line 4"), chunk.lines);
+        assertFalse(chunk.complete);
+
+        Thread writer = new Thread(() ->
+        {
+            buffer.append("line 5");
+            buffer.close();
+        });
+        writer.start();
+
+        chunk = buffer.await(5, 10, 10_000);
+        assertEquals(Arrays.asList("line 5"), chunk.lines);
+        writer.join();
+        assertTrue(buffer.await(chunk.next(), 10, 10_000).complete);
+    }
+
+    /**
+     * Tests that the output of a running build is streamed as
+     * Server-Sent Events while it runs and ends with the build status.
+     *
+     * @throws Exception If the server fails to start or if sending the
+     *                   HTTP request fails
+     */
+    @Test
+    public void ciServerStreamsLiveBuildOutput() throws Exception
+    {
+        ServerConfig config = new ServerConfig();
+        config.historyFile = Files.createTempDirectory("ci-history-").resolve("history.json").toString();
+        config.maxLogStreams = 1;
+
+        Server server = new Server(0);
+        server.setHandler(ContinuousIntegrationServer.withCompression(new ContinuousIntegrationServer("", config,
+            fakeMavenCompiler("echo first line; sleep 1; echo second line; exit 0"))));
+        server.start();
+        int port = ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+
+        HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + port + "/webhook").openConnection();
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        try (OutputStream os = conn.getOutputStream())
+        {
+            os.write(TestUtils.readFile("githubPush.json").getBytes(StandardCharsets.UTF_8));
+        }
+        assertEquals(202, conn.getResponseCode());
+        String location = conn.getHeaderField("Location");
+
+        conn = (HttpURLConnection) new URL("http://localhost:" + port + location + "/stream").openConnection();
+        conn.setRequestProperty("Accept-Encoding", "gzip");
+        assertEquals(200, conn.getResponseCode());
+        assertTrue(conn.getContentType().startsWith("text/event-stream"));
+        assertNull("events must not be held back by compression", conn.getHeaderField("Content-Encoding"));
+
+        HttpURLConnection second = (HttpURLConnection) new URL("http://localhost:" + port + location + "/stream").openConnection();
+        assertEquals("only one stream may be open at a time", 503, second.getResponseCode());
+        assertNotNull(second.getHeaderField("Retry-After"));
+
+        String events = new String(conn.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        assertTrue(events.contains("data: first line"));
+        assertTrue(events.indexOf("data: first line") < events.indexOf("data: second line"));
+        assertTrue(events.endsWith("event: end\ndata: SUCCESS\n\n"));
+
+        // The finished build is replayed from the stored log once the slot is free again
+        String firstLineId = events.substring(0, events.indexOf("\ndata: first line"));
+        firstLineId = firstLineId.substring(firstLineId.lastIndexOf("id: ") + "id: ".length());
+        for (int attempt = 0; ; attempt++)
+        {
+            conn = (HttpURLConnection) new URL("http://localhost:" + port + location + "/stream").openConnection();
+            conn.setRequestProperty("Last-Event-ID", firstLineId);
+            if (conn.getResponseCode() == 200 || attempt == 50)
+            {
+                break;
+            }
+            Thread.sleep(100);
+        }
+        assertEquals(200, conn.getResponseCode());
+        String replay = new String(conn.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        assertFalse(replay.contains("data: first line"));
+        assertTrue(replay.contains("data: second line"));
+        assertTrue(replay.endsWith("event: end\ndata: SUCCESS\n\n"));
+
+        server.stop();
+        server.join();
+    }
+
+    /**
+     * Tests that a log spanning many gzip members is read back by byte
+     * offset and by line page, and that a log written without an index
+     * gets one on first access.
+     *
+     * @throws Exception If the log files can not be written or read
+     */
+    @Test
+    public void logStoreReadsRangesAndLinePagesOfLargeLogs() throws Exception
+    {
+        Path dir = Files.createTempDirectory("ci-logs-");
+        LogStore logs = new LogStore(dir);
+
+        StringBuilder log = new StringBuilder();
+        for (int i = 0; i < 20000; i++)
+        {
+            log.append("[INFO] line ").append(i).append('\n');
+        }
+        String file = logs.write("big", log.toString());
+
+        LogIndex index = logs.index(file);
+        assertEquals(20000, index.lines);
+        assertEquals(log.length(), index.length);
+
+        assertEquals(Arrays.asList("[INFO] line 15000", "[INFO] line 15001"), logs.readLines(file, 15000, 2));
+        assertEquals(Arrays.asList("[INFO] line 19999"), logs.readLines(file, 19999, 10));
+
+        long offset = log.indexOf("[INFO] line 12345");
+        try (java.io.InputStream in = logs.open(file, offset))
+        {
+            assertEquals("[INFO] line 12345", new String(in.readNBytes(17), StandardCharsets.UTF_8));
+        }
+        assertEquals("the file is still a plain gzip file", log.toString(), logs.read(file));
+
+        // A log stored before logs were indexed
+        try (OutputStream out = new java.util.zip.GZIPOutputStream(Files.newOutputStream(dir.resolve("old.log.gz"))))
+        {
+            out.write("first\nsecond\nthird".getBytes(StandardCharsets.UTF_8));
+        }
+        assertEquals(3, logs.index("old.log.gz").lines);
+        assertEquals(Arrays.asList("third"), logs.readLines("old.log.gz", 2, 5));
+
+        // Progress output overwrites its line with a lone CR, which is no line break
+        String progress = logs.write("progress", "10%\r50%\r100%\nwindows\r\nlast\n");
+        assertEquals(3, logs.index(progress).lines);
+        assertEquals(Arrays.asList("10%\r50%\r100%", "windows", "last"), logs.readLines(progress, 0, 10));
+        assertEquals(Arrays.asList("last"), logs.readLines(progress, 2, 10));
+    }
+
+    /**
+     * Tests the raw log endpoint's byte ranges and that a build page
+     * shows the end of a long log with a link to earlier lines.
+     *
+     * @throws Exception If the server fails to start or if sending the
+     *                   HTTP request fails
+     */
+    @Test
+    public void ciServerServesLogRangesAndTailFirstPages() throws Exception
+    {
+        ServerConfig config = new ServerConfig();
+        config.historyFile = Files.createTempDirectory("ci-history-").resolve("history.json").toString();
+
+        StringBuilder log = new StringBuilder();
+        for (int i = 0; i < 1000; i++)
+        {
+            log.append("line <").append(i).append(">\n");
+        }
+        new BuildStore(config.historyFile).add(
+            new Build("long-log", "c1", "main", "2026-02-12T10:00:00Z", false, log.toString()));
+
+        Server server = new Server(0);
+        server.setHandler(ContinuousIntegrationServer.withCompression(
+            new ContinuousIntegrationServer("", config, new Compiler())));
+        server.start();
+        int port = ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+        String base = "http://localhost:" + port + "/builds/long-log";
+
+        HttpURLConnection conn = (HttpURLConnection) new URL(base + "/log").openConnection();
+        conn.setRequestProperty("Range", "bytes=-11");
+        conn.setRequestProperty("Accept-Encoding", "gzip");
+        assertEquals(206, conn.getResponseCode());
+        assertEquals("bytes " + (log.length() - 11) + "-" + (log.length() - 1) + "/" + log.length(),
+                     conn.getHeaderField("Content-Range"));
+        assertEquals("line <999>\n", new String(conn.getInputStream().readAllBytes(), StandardCharsets.UTF_8));
+
+        conn = (HttpURLConnection) new URL(base + "/log").openConnection();
+        conn.setRequestProperty("Range", "bytes=" + log.length() + "-");
+        assertEquals(416, conn.getResponseCode());
+
+        conn = (HttpURLConnection) new URL(base + "/log").openConnection();
+        assertEquals(200, conn.getResponseCode());
+        assertEquals(log.toString(), new String(conn.getInputStream().readAllBytes(), StandardCharsets.UTF_8));
+
+        conn = (HttpURLConnection) new URL(base).openConnection();
+        String page = new String(conn.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        assertTrue(page.contains("line &lt;999&gt;"));
+        assertTrue(page.contains("line &lt;800&gt;"));
+        assertFalse("only the end of the log is shown", page.contains("line &lt;799&gt;"));
+        assertTrue(page.contains("from=600"));
+
+        server.stop();
+        server.join();
+    }
+
+    /**
+     * Tests that the log search finds the lines holding all query words,
+     * orders builds newest or oldest first, survives a reload and
+     * reindexes builds lost from a torn index file.
+     *
+     * @throws Exception If the history directory can not be created
+     */
+    @Test
+    public void buildStoreSearchesLogsThroughIndex() throws Exception
+    {
+        Path dir = Files.createTempDirectory("ci-history-");
+        String file = dir.resolve("history.json").toString();
+        BuildStore store = new BuildStore(file);
+
+        store.add(new Build("b1", "c1", "main", "2026-02-12T10:00:00Z", true,
+                            "[INFO] Tests run: 3\n[INFO] BUILD SUCCESS\n"));
+        store.add(new Build("b2", "c2", "main", "2026-02-12T11:00:00Z", false,
+                            "[INFO] compiling\n[ERROR] NullPointerException in Foo.bar\n[ERROR] BUILD FAILURE\n"));
+        store.add(new Build("b3", "c3", "main", "2026-02-12T12:00:00Z", false,
+                            "[ERROR] nullpointerexception in foo.bar\n"));
+
+        List<LogSearchIndex.Hit> hits = store.search("NullPointerException Foo.bar", false, 10);
+        assertEquals(2, hits.size());
+        assertEquals("b3", hits.get(0).buildId);
+        assertArrayEquals(new int[] { 0 }, hits.get(0).lines);
+        assertEquals("b2", hits.get(1).buildId);
+        assertArrayEquals(new int[] { 1 }, hits.get(1).lines);
+
+        assertEquals("b2", store.search("nullpointerexception", true, 1).get(0).buildId);
+        assertTrue("words must share a line", store.search("compiling failure", false, 10).isEmpty());
+        assertTrue(store.search("missing", false, 10).isEmpty());
+        try
+        {
+            store.search("3 -", false, 10);
+            fail("a query without words should be rejected");
+        }
+        catch (IllegalArgumentException expected)
+        {
+        }
+
+        Path index = dir.resolve("history-search.idx");
+        Files.write(index, new byte[] { 0, 0, 1 }, StandardOpenOption.APPEND);
+        BuildStore reloaded = new BuildStore(file);
+        assertEquals(2, reloaded.search("foo bar", false, 10).size());
+        assertEquals(1, reloaded.search("success", false, 10).size());
+
+        try (FileChannel channel = FileChannel.open(index, StandardOpenOption.WRITE))
+        {
+            channel.truncate(channel.size() - 5);
+        }
+        reloaded = new BuildStore(file);
+        assertEquals("the torn build is reindexed", 2, reloaded.search("foo bar", false, 10).size());
+
+        // A common word keeps all its lines, not only the first ones
+        StringBuilder noisy = new StringBuilder();
+        for (int i = 0; i < 500; i++)
+        {
+            noisy.append("[ERROR] step ").append(i).append('\n');
+        }
+        noisy.append("[ERROR] connection refused\n");
+        reloaded.add(new Build("b4", "c4", "main", "2026-02-12T13:00:00Z", false, noisy.toString()));
+        hits = reloaded.search("error refused", false, 10);
+        assertEquals(1, hits.size());
+        assertArrayEquals(new int[] { 500 }, hits.get(0).lines);
+
+        // Builds reindexed on load after newer ones are still listed in history order
+        Files.delete(index);
+        new LogSearchIndex(index).add("b3", 2, "[ERROR] nullpointerexception in foo.bar\n");
+        reloaded = new BuildStore(file);
+        hits = reloaded.search("foo bar", false, 10);
+        assertEquals(Arrays.asList("b3", "b2"), hits.stream().map(h -> h.buildId).collect(Collectors.toList()));
+        assertEquals("b2", reloaded.search("foo bar", true, 1).get(0).buildId);
+
+        // An index whose builds are not at their history positions is rebuilt
+        Files.delete(index);
+        new LogSearchIndex(index).add("b3", 0, "[ERROR] nullpointerexception in foo.bar\n");
+        reloaded = new BuildStore(file);
+        hits = reloaded.search("foo bar", false, 10);
+        assertEquals(Arrays.asList("b3", "b2"), hits.stream().map(h -> h.buildId).collect(Collectors.toList()));
+        assertEquals(Arrays.asList("b1"), reloaded.search("success", false, 10).stream()
+            .map(h -> h.buildId).collect(Collectors.toList()));
+    }
+
+    /**
+     * Tests that /builds/search lists the matching builds with links to
+     * the matching lines and rejects an empty query.
+     *
+     * @throws Exception If the server fails to start or if sending the
+     *                   HTTP request fails
+     */
+    @Test
+    public void ciServerSearchesBuildLogs() throws Exception
+    {
+        ServerConfig config = new ServerConfig();
+        config.historyFile = Files.createTempDirectory("ci-history-").resolve("history.json").toString();
+        new BuildStore(config.historyFile).add(
+            new Build("failing", "c1", "main", "2026-02-12T10:00:00Z", false,
+                      "[INFO] start\n[ERROR] testFoo(MainTest) AssertionError\n"));
+
+        Server server = new Server(0);
+        server.setHandler(new ContinuousIntegrationServer("", config, new Compiler()));
+        server.start();
+        int port = ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+        String base = "http://localhost:" + port + "/builds/search";
+
+        HttpURLConnection conn = (HttpURLConnection) new URL(base + "?q=assertionerror+testFoo").openConnection();
+        assertEquals(200, conn.getResponseCode());
+        String page = new String(conn.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        assertTrue(page.contains("href=\"/builds/failing\""));
+        assertTrue(page.contains("href=\"/builds/failing?from=1\">2</a>"));
+
+        conn = (HttpURLConnection) new URL(base + "?q=").openConnection();
+        assertEquals(400, conn.getResponseCode());
+
+        server.stop();
+        server.join();
+    }
+
+    /**
+     * Tests that histograms are exposed with cumulative buckets and that
+     * the registry renders counters and gauges in the Prometheus format.
+     */
+    @Test
+    public void metricsRenderPrometheusText()
+    {
+        Metrics metrics = new Metrics(() -> 3, () -> 1);
+        metrics.countWebhook("queued");
+        metrics.countWebhook("queued");
+        metrics.recordPhase("compile", 40);
+        metrics.recordPhase("compile", 2000);
+        metrics.recordStoreSave(TimeUnit.MILLISECONDS.toNanos(7));
+        metrics.recordRepositoryWait("joss2/\"ci\"", TimeUnit.SECONDS.toNanos(3));
+        metrics.setRepositoryGauges(() -> Collections.singletonMap("joss2/ci", 4), Collections::emptyMap);
+
+        String text = metrics.scrape();
+        assertTrue(text.contains("# TYPE ci_webhooks_total counter\n"));
+        assertTrue(text.contains("ci_webhooks_total{outcome=\"queued\"} 2\n"));
+        assertTrue(text.contains("ci_queue_depth 3\n"));
+        assertTrue(text.contains("ci_active_builds 1\n"));
+        assertTrue(text.contains("ci_build_phase_seconds_bucket{phase=\"compile\",le=\"0.025\"} 0\n"));
+        assertTrue(text.contains("ci_build_phase_seconds_bucket{phase=\"compile\",le=\"0.05\"} 1\n"));
+        assertTrue(text.contains("ci_build_phase_seconds_bucket{phase=\"compile\",le=\"2.5\"} 2\n"));
+        assertTrue(text.contains("ci_build_phase_seconds_bucket{phase=\"compile\",le=\"+Inf\"} 2\n"));
+        assertTrue(text.contains("ci_build_phase_seconds_sum{phase=\"compile\"} 2.04\n"));
+        assertTrue(text.contains("ci_store_save_seconds_bucket{le=\"0.01\"} 1\n"));
+        assertTrue(text.contains("ci_store_save_seconds_count 1\n"));
+        assertTrue(text.contains("ci_repository_queue_depth{repository=\"joss2/ci\"} 4\n"));
+        assertTrue(text.contains("ci_repository_queue_wait_seconds_count{repository=\"joss2/\\\"ci\\\"\"} 1\n"));
+        assertTrue(text.contains("jvm_memory_heap_used_bytes "));
+        assertTrue(text.contains("jvm_gc_collections_total{gc="));
+    }
+
+    /**
+     * Tests that /metrics counts answered webhooks and exposes the queue
+     * and JVM figures.
+     *
+     * @throws Exception If the server fails to start or if sending the
+     *                   HTTP request fails
+     */
+    @Test
+    public void ciServerExposesMetrics() throws Exception
+    {
+        ServerConfig config = new ServerConfig();
+        config.historyFile = Files.createTempDirectory("ci-history-").resolve("history.json").toString();
+
+        Server server = new Server(0);
+        server.setHandler(new ContinuousIntegrationServer("", config, new Compiler()));
+        server.start();
+        int port = ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+
+        HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + port + "/webhook").openConnection();
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        try (OutputStream os = conn.getOutputStream())
+        {
+            os.write("{not json".getBytes(StandardCharsets.UTF_8));
+        }
+        assertEquals(400, conn.getResponseCode());
+
+        conn = (HttpURLConnection) new URL("http://localhost:" + port + "/metrics").openConnection();
+        assertEquals(200, conn.getResponseCode());
+        assertTrue(conn.getContentType().startsWith("text/plain; version=0.0.4"));
+        String text = new String(conn.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        assertTrue(text.contains("ci_webhooks_total{outcome=\"invalid\"} 1\n"));
+        assertTrue(text.contains("ci_queue_depth 0\n"));
+        assertTrue(text.contains("ci_active_builds 0\n"));
+        assertTrue(text.contains("jvm_threads_live "));
+
+        server.stop();
+        server.join();
+    }
+
+    /**
+     * Tests that the load generator replays pushes against a server with
+     * a stub compiler and measures every push up to its final status.
+     *
+     * @throws Exception If a server fails to start
+     */
+    @Test
+    public void loadGeneratorReportsLatencies() throws Exception
+    {
+        LoadGenerator.Options options = LoadGenerator.Options.parse(new String[] {
+            "--requests=20", "--rate=0", "--concurrency=4", "--branches=3", "--build-millis=5" });
+
+        LoadGenerator.Report report = LoadGenerator.run(options, new ServerConfig());
+
+        assertEquals(20, report.sent);
+        assertEquals(20, report.accepted);
+        assertEquals(0, report.rejected + report.failed);
+        assertEquals(20, report.acknowledgment.count());
+        assertEquals(20, report.endToEnd.count());
+        assertTrue(report.endToEnd.percentileMillis(50) >= 5);
+        assertTrue(report.format().contains("20 completed"));
+    }
+}